@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * End-to-end latency benchmark of the blood pressure decode and delivery path.
+ *
+ * Every simulated agent is connected to the service through a local SOCK_SEQPACKET socket pair
+ * standing in for the Bluetooth channel, associates, and then sends fixed scan reports at a
+ * fixed rate.  The systolic value of each report encodes its sequence number, so every stage
+ * can be matched to the injection time of the report:
+ *
+ *   frame    injection until the read thread received the APDU
+ *   decode   APDU arrival until the value is published (the service's decode histogram)
+ *   ack      injection until the agent received the event report response
+ *   enqueue  APDU arrival until a bus consumer was handed the value
+ *   client   injection until the registered client received the RECEIVED_SYS message
+ *
+ * Results are appended to latency-benchmark.ndjson in the app's external files directory, one
+ * JSON object per configuration and stage.
+ */
+public class DeliveryLatencyBenchmark extends ServiceTestCase<BluetoothHDPService> {
+    private static final String TAG = "DeliveryLatencyBenchmark";
+
+    // Configurations: number of concurrent agents and reports per second per agent.
+    private static final int[] AGENT_COUNTS = {1, 4, 8};
+    private static final int[] REPORTS_PER_SECOND = {1, 10, 50};
+    private static final int REPORTS_PER_AGENT = 200;
+    // Systolic values, i.e. report ids, must stay below the largest positive SFLOAT mantissa.
+    private static final int MAX_REPORTS = 2000;
+    private static final String RESULT_FILE = "latency-benchmark.ndjson";
+
+    private static final int BLOOD_PRESSURE = BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE;
+
+    private final long[] mInjectedAt = new long[MAX_REPORTS];
+    private LatencyHistogram mFrame;
+    private LatencyHistogram mAck;
+    private LatencyHistogram mEnqueue;
+    private LatencyHistogram mClient;
+    private volatile int mClientReceived;
+
+    public DeliveryLatencyBenchmark() {
+        super(BluetoothHDPService.class);
+    }
+
+    public void testLatency() throws Exception {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null) {
+            Log.w(TAG, "No Bluetooth adapter, skipping benchmark");
+            return;
+        }
+        Messenger service = new Messenger(bindService(new Intent(getContext(), BluetoothHDPService.class)));
+        HandlerThread clientThread = new HandlerThread("benchmark client");
+        clientThread.start();
+        Message register = Message.obtain(null, BluetoothHDPService.MSG_REG_CLIENT);
+        register.replyTo = new Messenger(new Handler(clientThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == BluetoothHDPService.RECEIVED_SYS && msg.arg1 >= 0 && msg.arg1 < MAX_REPORTS) {
+                    mClient.record(System.nanoTime() - mInjectedAt[msg.arg1]);
+                    mClientReceived++;
+                }
+            }
+        });
+        service.send(register);
+        // Report ids run through the systolic range; keep them from raising alarms.
+        Message rule = Message.obtain(null, BluetoothHDPService.MSG_SET_ALARM_RULE);
+        Bundle noLimits = new Bundle();
+        noLimits.putInt(BluetoothHDPService.KEY_ALARM_METRIC, BluetoothHDPService.RECEIVED_SYS);
+        rule.setData(noLimits);
+        service.send(rule);
+
+        BluetoothHDPService hdpService = getService();
+        hdpService.getMeasurementBus().addConsumer(new MeasurementBus.Consumer("benchmark") {
+            @Override
+            protected void onEvent(MeasurementBus.Producer producer, int what, float value, long timestamp) {
+                int report = (int) value;
+                if (what == BluetoothHDPService.RECEIVED_SYS && report >= 0 && report < MAX_REPORTS) {
+                    mFrame.record(timestamp - mInjectedAt[report]);
+                    mEnqueue.record(System.nanoTime() - timestamp);
+                }
+            }
+        });
+
+        File results = new File(getContext().getExternalFilesDir(null), RESULT_FILE);
+        Writer out = new FileWriter(results, true);
+        try {
+            for (int agents : AGENT_COUNTS) {
+                for (int rate : REPORTS_PER_SECOND) {
+                    run(hdpService, adapter, agents, rate, out);
+                }
+            }
+        }
+        finally {
+            out.close();
+            clientThread.quit();
+        }
+        Log.i(TAG, "Results written to " + results);
+    }
+
+    private void run(BluetoothHDPService service, BluetoothAdapter adapter, int agents, int rate, Writer out)
+            throws Exception {
+        mFrame = new LatencyHistogram("frame");
+        mAck = new LatencyHistogram("ack");
+        mEnqueue = new LatencyHistogram("enqueue");
+        mClient = new LatencyHistogram("client");
+        mClientReceived = 0;
+        Arrays.fill(mInjectedAt, 0);
+        LatencyHistogram decode = service.getDecodeLatency();
+        decode.reset();
+
+        Agent[] agentThreads = new Agent[agents];
+        for (int i = 0; i < agents; i++) {
+            ParcelFileDescriptor[] pair = ParcelFileDescriptor.createReliableSocketPair();
+            String address = String.format(Locale.US, "00:00:5E:00:53:%02X", i);
+            service.startChannel(pair[0], adapter.getRemoteDevice(address), BLOOD_PRESSURE, System.nanoTime());
+            agentThreads[i] = new Agent(pair[1], i, rate);
+            agentThreads[i].start();
+        }
+        for (Agent agent : agentThreads) {
+            agent.join();
+        }
+        // Let the consumers and the client catch up.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mClientReceived < agents * REPORTS_PER_AGENT && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        for (Agent agent : agentThreads) {
+            agent.close();
+        }
+
+        LatencyHistogram[] stages = {mFrame, decode, mAck, mEnqueue, mClient};
+        for (LatencyHistogram stage : stages) {
+            out.write(String.format(Locale.US,
+                    "{\"agents\":%d,\"rate\":%d,\"stage\":\"%s\",\"count\":%d,\"p50\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d}\n",
+                    agents, rate, stage.getName(), stage.getCount(), stage.getValueAtPercentile(50),
+                    stage.getValueAtPercentile(99), stage.getValueAtPercentile(99.9), stage.getMaxNanos()));
+            Log.i(TAG, agents + " agents at " + rate + "/s: " + stage);
+        }
+        out.flush();
+        // Give the read threads time to see the closed sockets and release their producers.
+        Thread.sleep(500);
+    }
+
+    /**
+     * Simulated agent: associates, then sends REPORTS_PER_AGENT fixed scan reports at the given
+     * rate while a second thread reads the manager's responses.
+     */
+    private final class Agent extends Thread {
+        private final ParcelFileDescriptor mSocket;
+        private final int mIndex;
+        private final int mRate;
+        private final FileOutputStream mOut;
+        private final Thread mReader;
+        // Reports sent but not acknowledged yet, in order.
+        private final int[] mUnacknowledged = new int[REPORTS_PER_AGENT];
+        private volatile int mSent;
+
+        Agent(ParcelFileDescriptor socket, int index, int rate) {
+            super("agent " + index);
+            mSocket = socket;
+            mIndex = index;
+            mRate = rate;
+            mOut = new FileOutputStream(socket.getFileDescriptor());
+            mReader = new Thread("agent " + index + " reader") {
+                @Override
+                public void run() {
+                    readResponses();
+                }
+            };
+        }
+
+        @Override
+        public void run() {
+            mReader.start();
+            try {
+                mOut.write(associationRequest(mIndex));
+                // Association response, and the GET of the MDS on a first association.
+                Thread.sleep(500);
+                long period = 1000000000L / mRate;
+                long next = System.nanoTime();
+                for (int i = 0; i < REPORTS_PER_AGENT; i++) {
+                    int report = mIndex * REPORTS_PER_AGENT + i;
+                    byte[] apdu = fixedScanReport(i, report);
+                    mUnacknowledged[i] = report;
+                    mInjectedAt[report] = System.nanoTime();
+                    mOut.write(apdu);
+                    mSent = i + 1;
+                    next += period;
+                    long sleep = next - System.nanoTime();
+                    if (sleep > 0) {
+                        Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                    }
+                }
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Agent " + mIndex + " failed", e);
+            }
+            catch (InterruptedException e) {
+                // Done.
+            }
+        }
+
+        private void readResponses() {
+            FileInputStream in = new FileInputStream(mSocket.getFileDescriptor());
+            byte[] apdu = new byte[300];
+            int acknowledged = 0;
+            try {
+                while (in.read(apdu) > 0) {
+                    // rors-cmip-confirmed-event-report
+                    if (apdu[0] == (byte) 0xE7 && apdu[8] == 0x02 && apdu[9] == 0x01
+                            && acknowledged < mSent) {
+                        mAck.record(System.nanoTime() - mInjectedAt[mUnacknowledged[acknowledged++]]);
+                    }
+                }
+            }
+            catch (IOException e) {
+                // Socket closed.
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    // AARQ of a blood pressure monitor with the standard configuration 700 (0x02BC).
+    private static byte[] associationRequest(int agent) {
+        byte[] apdu = {
+                (byte) 0xE2, 0x00, 0x00, 0x32, (byte) 0x80, 0x00, 0x00, 0x00,
+                0x00, 0x01, 0x00, 0x2A, 0x50, 0x79, 0x00, 0x26,
+                (byte) 0x80, 0x00, 0x00, 0x00, (byte) 0x80, 0x00, (byte) 0x80, 0x00,
+                0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0x80,
+                0x00, 0x00, 0x00, 0x08, 0x00, 0x00, 0x5E, 0x00,
+                0x53, 0x00, 0x00, 0x00, 0x02, (byte) 0xBC, 0x00, 0x01,
+                0x01, 0x00, 0x00, 0x00, 0x00, 0x00};
+        // Unique System-Id per agent.
+        apdu[43] = (byte) agent;
+        return apdu;
+    }
+
+    // Confirmed fixed scan report with a compound SYS/DIA/MEAN observation (handle 1) and a
+    // pulse rate (handle 2), as sent by agents with configuration 700.
+    private static byte[] fixedScanReport(int invokeId, int systolic) {
+        byte[] apdu = new byte[66];
+        int i = 0;
+        i = putShort(apdu, i, 0xE700);
+        i = putShort(apdu, i, apdu.length - 4);
+        i = putShort(apdu, i, apdu.length - 6);
+        i = putShort(apdu, i, invokeId);
+        i = putShort(apdu, i, 0x0101);
+        i = putShort(apdu, i, apdu.length - 12);
+        i = putShort(apdu, i, 0);
+        i = putShort(apdu, i, 0xFFFF);
+        i = putShort(apdu, i, 0xFFFF);
+        i = putShort(apdu, i, Nomenclature.codeOf(Nomenclature.MDC_NOTI_SCAN_REPORT_FIXED));
+        i = putShort(apdu, i, apdu.length - 22);
+        i = putShort(apdu, i, 0xF000);
+        i = putShort(apdu, i, invokeId);
+        i = putShort(apdu, i, 2);
+        i = putShort(apdu, i, apdu.length - 30);
+        // Handle 1: compound value of three SFLOATs and an absolute time stamp.
+        i = putShort(apdu, i, 1);
+        i = putShort(apdu, i, 18);
+        i = putShort(apdu, i, 3);
+        i = putShort(apdu, i, 6);
+        i = putShort(apdu, i, systolic);
+        i = putShort(apdu, i, 80);
+        i = putShort(apdu, i, 100);
+        i += 8;
+        // Handle 2: pulse rate and an absolute time stamp.
+        i = putShort(apdu, i, 2);
+        i = putShort(apdu, i, 10);
+        putShort(apdu, i, 70);
+        return apdu;
+    }
+
+    private static int putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+        return offset + 2;
+    }
+}
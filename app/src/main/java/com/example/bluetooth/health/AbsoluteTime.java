@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * Decoder of the IEEE 11073-20601 Absolute-Time type, used by the Absolute-Time-Stamp of
+ * observations and the MDS Date-and-Time attribute.
+ *
+ * Absolute-Time is 8 BCD-encoded octets: century, year, month, day, hour, minute, second and
+ * hundredths of a second, in the agent's local time without a zone.  {@link #decode} counts the
+ * milliseconds since 1970-01-01 00:00 of that local time as if it were UTC; the zone then becomes
+ * part of the agent's clock offset.
+ */
+final class AbsoluteTime {
+    // decode() result for times that are not set or not valid BCD.
+    static final long INVALID = Long.MIN_VALUE;
+
+    static final int LENGTH = 8;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private AbsoluteTime() {
+    }
+
+    // Decodes the Absolute-Time at the given offset, or returns INVALID.
+    static long decode(byte[] data, int offset) {
+        int century = bcd(data[offset]);
+        int year = bcd(data[offset + 1]);
+        int month = bcd(data[offset + 2]);
+        int day = bcd(data[offset + 3]);
+        int hour = bcd(data[offset + 4]);
+        int minute = bcd(data[offset + 5]);
+        int second = bcd(data[offset + 6]);
+        int hundredths = bcd(data[offset + 7]);
+        if (century < 0 || year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 60 || hundredths < 0) {
+            return INVALID;
+        }
+        long days = daysFromCivil(century * 100 + year, month, day);
+        return days * MILLIS_PER_DAY + ((hour * 60L + minute) * 60L + second) * 1000L + hundredths * 10L;
+    }
+
+    // Value of a BCD octet, or -1 if a digit is not decimal.
+    private static int bcd(byte b) {
+        int high = (b >> 4) & 0x0F;
+        int low = b & 0x0F;
+        return high > 9 || low > 9 ? -1 : high * 10 + low;
+    }
+
+    // Days since 1970-01-01 of a proleptic Gregorian date.
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.Arrays;
+
+/**
+ * State kept for an IEEE 11073-20601 agent across channel disconnects.  An agent is identified by
+ * its Bluetooth address together with the System-Id it sends in the Association Request, so a
+ * reconnecting agent can be re-associated without querying its MDS attributes again and the UI
+ * can show the last known values instead of resetting them.
+ */
+class AgentContext {
+    static final float NO_VALUE = -1;
+    static final int NO_CONFIG = -1;
+
+    // Clock offset samples kept for the estimate, and how long a sample counts.
+    private static final int CLOCK_SAMPLES = 16;
+    private static final long CLOCK_SAMPLE_MAX_AGE_MILLIS = 3600000L;
+
+    final String address;
+    final long systemId;
+
+    // Dev-Configuration-Id announced in the last Association Request.
+    private int mDevConfigId = NO_CONFIG;
+    // Set once the agent has answered a GET MDS request for mDevConfigId.
+    private boolean mMdsKnown;
+    // Whether the current association can skip the GET MDS round trip.
+    private boolean mSkipMds;
+    // Offset between the agent's absolute time and the manager clock, in milliseconds, estimated
+    // from recent samples.
+    private long mClockOffsetMillis;
+    private boolean mClockKnown;
+    private final long[] mClockSamples = new long[CLOCK_SAMPLES];
+    private final long[] mClockSampledAt = new long[CLOCK_SAMPLES];
+    private int mClockSampleCount;
+    private int mNextClockSample;
+    // Last delivered values, indexed by the BluetoothHDPService.RECEIVED_* code.
+    private final float[] mLastValues = new float[BluetoothHDPService.RECEIVED_COUNT];
+
+    private long mConnectedAtNanos;
+    private boolean mReconnect;
+    private boolean mFirstValueDelivered;
+
+    AgentContext(String address, long systemId) {
+        this.address = address;
+        this.systemId = systemId;
+        Arrays.fill(mLastValues, NO_VALUE);
+    }
+
+    static String key(String address, long systemId) {
+        return address + "/" + Long.toHexString(systemId);
+    }
+
+    // Called when the agent (re-)associates with the given Dev-Configuration-Id.
+    synchronized void onAssociation(int devConfigId, long connectedAtNanos) {
+        mSkipMds = mMdsKnown && mDevConfigId == devConfigId;
+        mReconnect = mDevConfigId != NO_CONFIG;
+        if (mDevConfigId != devConfigId) {
+            mDevConfigId = devConfigId;
+            mMdsKnown = false;
+        }
+        mConnectedAtNanos = connectedAtNanos;
+        mFirstValueDelivered = false;
+    }
+
+    // Returns true if the agent's configuration and MDS attributes are already known, in which
+    // case the GET MDS round trip can be skipped on this association.
+    synchronized boolean canSkipMds() {
+        return mSkipMds;
+    }
+
+    synchronized void onMdsReceived() {
+        mMdsKnown = true;
+    }
+
+    synchronized boolean isMdsKnown() {
+        return mMdsKnown;
+    }
+
+    // Restores the state of an agent saved before the process was restarted.
+    synchronized void restore(int devConfigId, boolean mdsKnown, boolean clockKnown, long clockOffsetMillis,
+                              float[] lastValues) {
+        mDevConfigId = devConfigId;
+        mMdsKnown = mdsKnown;
+        mClockKnown = clockKnown;
+        mClockOffsetMillis = clockOffsetMillis;
+        System.arraycopy(lastValues, 0, mLastValues, 0, mLastValues.length);
+    }
+
+    synchronized int getDevConfigId() {
+        return mDevConfigId;
+    }
+
+    /**
+     * Adds a clock offset sample: the agent's absolute time agentMillis, of its clock or of a
+     * measurement, seen at managerMillis on the manager's wall clock.  Transfer and measurement
+     * delays only make a sample smaller than the true offset, so the estimate is the largest
+     * sample of the last hour; samples of stored measurements are far smaller and never win.
+     * Returns true if the estimate changed.
+     */
+    synchronized boolean onClockSample(long agentMillis, long managerMillis) {
+        if (mClockKnown && mClockSampleCount == 0) {
+            // Keep the estimate restored after a restart until a better sample replaces it.
+            mClockSamples[0] = mClockOffsetMillis;
+            mClockSampledAt[0] = managerMillis;
+            mClockSampleCount = 1;
+            mNextClockSample = 1;
+        }
+        mClockSamples[mNextClockSample] = agentMillis - managerMillis;
+        mClockSampledAt[mNextClockSample] = managerMillis;
+        mNextClockSample = (mNextClockSample + 1) % CLOCK_SAMPLES;
+        mClockSampleCount = Math.min(mClockSampleCount + 1, CLOCK_SAMPLES);
+        long estimate = Long.MIN_VALUE;
+        for (int i = 0; i < mClockSampleCount; i++) {
+            if (managerMillis - mClockSampledAt[i] <= CLOCK_SAMPLE_MAX_AGE_MILLIS && mClockSamples[i] > estimate) {
+                estimate = mClockSamples[i];
+            }
+        }
+        boolean changed = !mClockKnown || estimate != mClockOffsetMillis;
+        mClockOffsetMillis = estimate;
+        mClockKnown = true;
+        return changed;
+    }
+
+    synchronized boolean isClockKnown() {
+        return mClockKnown;
+    }
+
+    synchronized long getClockOffsetMillis() {
+        return mClockOffsetMillis;
+    }
+
+    // Converts an absolute time of the agent to the manager's wall clock, or returns
+    // AbsoluteTime.INVALID if the agent's clock offset is not known.
+    synchronized long toManagerMillis(long agentMillis) {
+        return mClockKnown ? agentMillis - mClockOffsetMillis : AbsoluteTime.INVALID;
+    }
+
+    synchronized float getLastValue(int what) {
+        return mLastValues[what - BluetoothHDPService.RECEIVED_SYS];
+    }
+
+    /**
+     * Retains a delivered value.  Returns the time since the channel connected if this is the
+     * first value delivered on the current connection, or -1 otherwise.
+     */
+    synchronized long onValueDelivered(int what, float value, long nowNanos) {
+        mLastValues[what - BluetoothHDPService.RECEIVED_SYS] = value;
+        if (mFirstValueDelivered) {
+            return -1;
+        }
+        mFirstValueDelivered = true;
+        return nowNanos - mConnectedAtNanos;
+    }
+
+    synchronized boolean isReconnect() {
+        return mReconnect;
+    }
+}
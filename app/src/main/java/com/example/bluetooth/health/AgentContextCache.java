@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least-recently-used cache of {@link AgentContext}s keyed by Bluetooth address and
+ * System-Id.  The least recently associated agent is evicted once the cache is full.
+ */
+class AgentContextCache {
+    private final LinkedHashMap<String, AgentContext> mContexts;
+
+    AgentContextCache(final int maxEntries) {
+        mContexts = new LinkedHashMap<String, AgentContext>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AgentContext> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // Returns the context of the given agent, creating it if the agent has not been seen yet.
+    synchronized AgentContext obtain(String address, long systemId) {
+        String key = AgentContext.key(address, systemId);
+        AgentContext context = mContexts.get(key);
+        if (context == null) {
+            context = new AgentContext(address, systemId);
+            mContexts.put(key, context);
+        }
+        return context;
+    }
+
+    // Returns the most recently used context for the given address, or null if there is none.
+    // Used when a channel connects, before the agent has sent its System-Id.
+    synchronized AgentContext findLatest(String address) {
+        AgentContext latest = null;
+        for (AgentContext context : mContexts.values()) {
+            if (context.address.equals(address)) {
+                latest = context;
+            }
+        }
+        return latest;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * Evaluates alarm rules for every decoded observation, directly on the read thread that decoded
+ * it.  Each metric has one {@link Rule} with low and high limits, a hysteresis band that must be
+ * crossed before an alarm clears, a duration the condition must be sustained before the alarm is
+ * raised, and a maximum rate of change.
+ *
+ * State is kept per measurement bus producer and metric in preallocated primitive arrays, so
+ * {@link #evaluate} allocates nothing.  A producer slot is only ever evaluated by its own read
+ * thread.
+ */
+class AlarmEngine {
+    static final int CONDITION_NONE = 0;
+    static final int CONDITION_LOW = 1;
+    static final int CONDITION_HIGH = 2;
+    static final int CONDITION_RATE = 3;
+
+    // evaluate() result if the alarm state did not change.
+    static final int NO_CHANGE = -1;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final double NANOS_PER_MINUTE = 60e9;
+
+    /**
+     * Immutable alarm rule of a single metric.  Use Float.NaN to disable a limit.
+     */
+    static final class Rule {
+        final float low;
+        final float high;
+        final float hysteresis;
+        final long sustainNanos;
+        // Maximum absolute change per minute.
+        final float maxRatePerMinute;
+
+        Rule(float low, float high, float hysteresis, long sustainMillis, float maxRatePerMinute) {
+            this.low = low;
+            this.high = high;
+            this.hysteresis = hysteresis;
+            this.sustainNanos = sustainMillis * NANOS_PER_MILLI;
+            this.maxRatePerMinute = maxRatePerMinute;
+        }
+    }
+
+    // Rules indexed by RECEIVED_* code starting at RECEIVED_SYS.  Replaced as a whole.
+    private volatile Rule[] mRules = new Rule[BluetoothHDPService.RECEIVED_COUNT];
+
+    // Per producer and metric state, indexed by producer * RECEIVED_COUNT + metric.
+    private final int[] mActive;
+    private final int[] mPending;
+    private final long[] mPendingSince;
+    private final float[] mLastValue;
+    private final long[] mLastTimestamp;
+
+    AlarmEngine() {
+        int size = MeasurementBus.MAX_PRODUCERS * BluetoothHDPService.RECEIVED_COUNT;
+        mActive = new int[size];
+        mPending = new int[size];
+        mPendingSince = new long[size];
+        mLastValue = new float[size];
+        mLastTimestamp = new long[size];
+    }
+
+    // Installs default limits for adult patients.
+    void setDefaultRules() {
+        setRule(BluetoothHDPService.RECEIVED_SYS, new Rule(80, 180, 5, 0, Float.NaN));
+        setRule(BluetoothHDPService.RECEIVED_DIA, new Rule(40, 110, 5, 0, Float.NaN));
+        setRule(BluetoothHDPService.RECEIVED_PUL, new Rule(40, 130, 5, 0, Float.NaN));
+        setRule(BluetoothHDPService.RECEIVED_O2, new Rule(90, Float.NaN, 2, 10000, 10));
+        setRule(BluetoothHDPService.RECEIVED_HEART_RATE, new Rule(40, 130, 5, 10000, 60));
+    }
+
+    // Replaces the rule of the metric with the given RECEIVED_* code.  Returns false, leaving the
+    // rules unchanged, if what is not a metric code.
+    synchronized boolean setRule(int what, Rule rule) {
+        int metric = what - BluetoothHDPService.RECEIVED_SYS;
+        if (metric < 0 || metric >= BluetoothHDPService.RECEIVED_COUNT) {
+            return false;
+        }
+        Rule[] rules = mRules.clone();
+        rules[metric] = rule;
+        mRules = rules;
+        return true;
+    }
+
+    // Clears the state of a producer slot when it is (re)opened for a new channel.
+    void reset(int producer) {
+        int start = producer * BluetoothHDPService.RECEIVED_COUNT;
+        for (int i = start; i < start + BluetoothHDPService.RECEIVED_COUNT; i++) {
+            mActive[i] = CONDITION_NONE;
+            mPending[i] = CONDITION_NONE;
+            mPendingSince[i] = 0;
+            mLastTimestamp[i] = 0;
+        }
+    }
+
+    /**
+     * Evaluates a decoded observation.  timestamp is the System.nanoTime() at which the APDU
+     * arrived.  Returns the new alarm condition of the metric if it changed, NO_CHANGE otherwise.
+     */
+    int evaluate(int producer, int what, float value, long timestamp) {
+        int metric = what - BluetoothHDPService.RECEIVED_SYS;
+        if (metric < 0 || metric >= BluetoothHDPService.RECEIVED_COUNT || value < 0) {
+            return NO_CHANGE;
+        }
+        Rule rule = mRules[metric];
+        if (rule == null) {
+            return NO_CHANGE;
+        }
+        int i = producer * BluetoothHDPService.RECEIVED_COUNT + metric;
+        int active = mActive[i];
+
+        int condition = CONDITION_NONE;
+        // An active limit alarm only clears once the value is back beyond the hysteresis band.
+        if (value < rule.low || (active == CONDITION_LOW && value < rule.low + rule.hysteresis)) {
+            condition = CONDITION_LOW;
+        }
+        else if (value > rule.high || (active == CONDITION_HIGH && value > rule.high - rule.hysteresis)) {
+            condition = CONDITION_HIGH;
+        }
+        else if (mLastTimestamp[i] != 0 && timestamp > mLastTimestamp[i] && rule.maxRatePerMinute > 0) {
+            double rate = (value - mLastValue[i]) * NANOS_PER_MINUTE / (timestamp - mLastTimestamp[i]);
+            if (Math.abs(rate) > rule.maxRatePerMinute) {
+                condition = CONDITION_RATE;
+            }
+        }
+        mLastValue[i] = value;
+        mLastTimestamp[i] = timestamp;
+
+        if (condition == active) {
+            mPending[i] = active;
+            return NO_CHANGE;
+        }
+        // Alarms clear immediately; raising requires the condition to be sustained.
+        if (condition != CONDITION_NONE) {
+            if (mPending[i] != condition) {
+                mPending[i] = condition;
+                mPendingSince[i] = timestamp;
+            }
+            if (timestamp - mPendingSince[i] < rule.sustainNanos) {
+                return NO_CHANGE;
+            }
+        }
+        mActive[i] = condition;
+        mPending[i] = condition;
+        return condition;
+    }
+}
@@ -35,6 +35,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 import android.view.View;
@@ -44,6 +45,8 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.IOException;
+
 /**
  * Main user interface for the Sample application.  All Bluetooth health-related
  * operations happen in {@link BluetoothHDPService}.  This activity passes messages to and from
@@ -83,6 +86,9 @@ public class BluetoothHDPActivity extends Activity {
     private final int ORANGE = 2;
     private final int LIGHT_GREEN = 3;
     private final int DARK_GREEN = 4;
+    // Indicator indices in mUiUpdates.
+    private static final int BLOOD_PRESSURE_INDICATOR = 0;
+    private static final int OXYMETER_INDICATOR = 1;
 
 
     private TextView mStatusMessage;
@@ -102,6 +108,19 @@ public class BluetoothHDPActivity extends Activity {
     private TextView mOxygen;
     private TextView mHeartRate;
 
+    // Applies value and indicator updates once per display frame.
+    private UiUpdateCoalescer mUiUpdates;
+
+    // Decoded values, read from the sample ring shared by the service.  The arrays receive one
+    // batch of records at a time.
+    private static final int SHARED_RING_BATCH = 64;
+    private SharedSampleRing.Reader mSharedRing;
+    private final int[] mRingWhat = new int[SHARED_RING_BATCH];
+    private final int[] mRingSource = new int[SHARED_RING_BATCH];
+    private final float[] mRingValue = new float[SHARED_RING_BATCH];
+    private final long[] mRingTimestamp = new long[SHARED_RING_BATCH];
+    private final long[] mRingMeasured = new long[SHARED_RING_BATCH];
+
     // Handles events sent by {@link HealthHDPService}.
     private Handler mIncomingHandler = new Handler() {
         @Override
@@ -110,64 +129,64 @@ public class BluetoothHDPActivity extends Activity {
                 // Application registration complete.
                 case BluetoothHDPService.STATUS_BLOOD_PRESSURE_REG:
                     // mStatusMessage.setText(String.format(mRes.getString(R.string.status_reg), msg.arg1));
-                    mBloodPressureDataIndicator.setImageLevel(RED);
+                    mUiUpdates.setIndicatorLevel(BLOOD_PRESSURE_INDICATOR, RED);
                     break;
                 // Application registration complete.
                 case BluetoothHDPService.STATUS_OXYMETER_REG:
                     // mStatusMessage.setText(String.format(mRes.getString(R.string.status_reg), msg.arg1));
-                    mOxymeterDataIndicator.setImageLevel(RED);
+                    mUiUpdates.setIndicatorLevel(OXYMETER_INDICATOR, RED);
                     break;
                 // Application unregistration complete.
                 case BluetoothHDPService.STATUS_BLOOD_PRESSURE_UNREG:
                     // mStatusMessage.setText(String.format(mRes.getString(R.string.status_unreg), msg.arg1));
-                    mBloodPressureDataIndicator.setImageLevel(GREY);
+                    mUiUpdates.setIndicatorLevel(BLOOD_PRESSURE_INDICATOR, GREY);
                     break;
                 // Application unregistration complete.
                 case BluetoothHDPService.STATUS_OXYMETER_UNREG:
                     // mStatusMessage.setText(String.format(mRes.getString(R.string.status_unreg), msg.arg1));
-                    mOxymeterDataIndicator.setImageLevel(GREY);
+                    mUiUpdates.setIndicatorLevel(OXYMETER_INDICATOR, GREY);
                     break;
                 // Reading data from HDP device.
                 case BluetoothHDPService.STATUS_BLOOD_PRESSURE_CREATE_CHANNEL:
                     // mStatusMessage.setText(mRes.getString(R.string.read_data));
-                    mBloodPressureDataIndicator.setImageLevel(ORANGE);
+                    mUiUpdates.setIndicatorLevel(BLOOD_PRESSURE_INDICATOR, ORANGE);
                     break;
                 // Reading data from HDP device.
                 case BluetoothHDPService.STATUS_OXYMETER_CREATE_CHANNEL:
                     // mStatusMessage.setText(mRes.getString(R.string.read_data));
-                    mOxymeterDataIndicator.setImageLevel(ORANGE);
+                    mUiUpdates.setIndicatorLevel(OXYMETER_INDICATOR, ORANGE);
                     break;
                 // Channel destroy complete.  This happens when either the device disconnects or
                 // there is extended inactivity.
                 case BluetoothHDPService.STATUS_BLOOD_PRESSURE_DESTROY_CHANNEL:
                     // mStatusMessage.setText(mRes.getString(R.string.read_data));
-                    mBloodPressureDataIndicator.setImageLevel(RED);
+                    mUiUpdates.setIndicatorLevel(BLOOD_PRESSURE_INDICATOR, RED);
                     break;
                 // Channel destroy complete.  This happens when either the device disconnects or
                 // there is extended inactivity.
                 case BluetoothHDPService.STATUS_OXYMETER_DESTROY_CHANNEL:
                     // mStatusMessage.setText(mRes.getString(R.string.read_data));
-                    mOxymeterDataIndicator.setImageLevel(RED);
+                    mUiUpdates.setIndicatorLevel(OXYMETER_INDICATOR, RED);
                     break;
                 // Reading data from HDP device.
                 case BluetoothHDPService.STATUS_BLOOD_PRESSURE_READ_DATA:
                     // mStatusMessage.setText(mRes.getString(R.string.read_data_done));
-                    mBloodPressureDataIndicator.setImageLevel(LIGHT_GREEN);
+                    mUiUpdates.setIndicatorLevel(BLOOD_PRESSURE_INDICATOR, LIGHT_GREEN);
                     break;
                 // Reading data from HDP device.
                 case BluetoothHDPService.STATUS_OXYMETER_READ_DATA:
                     // mStatusMessage.setText(mRes.getString(R.string.read_data_done));
-                    mOxymeterDataIndicator.setImageLevel(LIGHT_GREEN);
+                    mUiUpdates.setIndicatorLevel(OXYMETER_INDICATOR, LIGHT_GREEN);
                     break;
                 // Finish reading data from HDP device.
                 case BluetoothHDPService.STATUS_BLOOD_PRESSURE_READ_DATA_DONE:
                     // mStatusMessage.setText(mRes.getString(R.string.read_data_done));
-                    mBloodPressureDataIndicator.setImageLevel(DARK_GREEN);
+                    mUiUpdates.setIndicatorLevel(BLOOD_PRESSURE_INDICATOR, DARK_GREEN);
                     break;
                 // Finish reading data from HDP device.
                 case BluetoothHDPService.STATUS_OXYMETER_READ_DATA_DONE:
                     // mStatusMessage.setText(mRes.getString(R.string.read_data_done));
-                    mOxymeterDataIndicator.setImageLevel(DARK_GREEN);
+                    mUiUpdates.setIndicatorLevel(OXYMETER_INDICATOR, DARK_GREEN);
                     break;
                 // Channel creation complete.  Some devices will automatically establish
                 // connection.
@@ -183,30 +202,52 @@ public class BluetoothHDPActivity extends Activity {
                     mConnectIndicator.setText(R.string.disconnected);
                     break;
                 */
+                // Received values.  Only the latest value per field is shown, once per frame.
                 case BluetoothHDPService.RECEIVED_SYS:
-                    int sys = msg.arg1;
-                    Log.i(TAG, "msg.arg1 @ sys is " + sys);
-                    mSys.setText("" + sys);
-                    break;
                 case BluetoothHDPService.RECEIVED_DIA:
-                    int dia = msg.arg1;
-                    mDia.setText("" + dia);
-                    Log.i(TAG, "msg.arg1 @ dia is " + dia);
-                    break;
                 case BluetoothHDPService.RECEIVED_PUL:
-                    int pul = msg.arg1;
-                    Log.i(TAG, "msg.arg1 @ pulse is " + pul);
-                    mPul.setText("" + pul);
-                    break;
                 case BluetoothHDPService.RECEIVED_O2:
-                    int oxy = msg.arg1;
-                    Log.i(TAG, "msg.arg1 @ o2 is " + oxy);
-                    mOxygen.setText("" + msg.arg1);
-                    break;
                 case BluetoothHDPService.RECEIVED_HEART_RATE:
-                    int heart = msg.arg1;
-                    Log.i(TAG, "msg.arg1 @ heart is " + heart);
-                    mHeartRate.setText("" + msg.arg1);
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "msg.what=" + msg.what + ", msg.arg1=" + msg.arg1);
+                    }
+                    mUiUpdates.setValue(msg.what - BluetoothHDPService.RECEIVED_SYS, msg.arg1);
+                    break;
+                // Values of a data type registered with DELIVERY_BATCHED.
+                case BluetoothHDPService.BATCH:
+                    int[] whats = msg.getData().getIntArray(BluetoothHDPService.KEY_BATCH_WHATS);
+                    float[] values = msg.getData().getFloatArray(BluetoothHDPService.KEY_BATCH_VALUES);
+                    for (int i = 0; i < whats.length; i++) {
+                        mUiUpdates.setValue(whats[i] - BluetoothHDPService.RECEIVED_SYS, Math.round(values[i]));
+                    }
+                    break;
+                // Latest state of all devices, sent when this client registers.  Statuses are
+                // applied like the status messages themselves, then the values oldest first.
+                case BluetoothHDPService.LAST_VALUES:
+                    Bundle last = msg.getData();
+                    for (int status : last.getIntArray(LastValueCache.KEY_STATUSES)) {
+                        if (status != 0) {
+                            handleMessage(Message.obtain(null, status));
+                        }
+                    }
+                    int[] lastWhats = last.getIntArray(LastValueCache.KEY_WHATS);
+                    float[] lastValues = last.getFloatArray(LastValueCache.KEY_VALUES);
+                    for (int i = 0; i < lastWhats.length; i++) {
+                        mUiUpdates.setValue(lastWhats[i] - BluetoothHDPService.RECEIVED_SYS, Math.round(lastValues[i]));
+                    }
+                    break;
+                // The service shares its sample ring; values arrive through it from now on.
+                case BluetoothHDPService.SHARED_RING:
+                    ParcelFileDescriptor descriptor = msg.getData().getParcelable(BluetoothHDPService.KEY_SHARED_RING);
+                    try {
+                        mSharedRing = new SharedSampleRing.Reader(descriptor);
+                    }
+                    catch (IOException e) {
+                        Log.e(TAG, "Cannot map the shared sample ring", e);
+                    }
+                    break;
+                case BluetoothHDPService.SHARED_RING_DOORBELL:
+                    readSharedRing();
                     break;
                 default:
                     super.handleMessage(msg);
@@ -216,6 +257,22 @@ public class BluetoothHDPActivity extends Activity {
 
     private final Messenger mMessenger = new Messenger(mIncomingHandler);
 
+    // Applies all values written to the shared sample ring since the last doorbell.
+    private void readSharedRing() {
+        if (mSharedRing == null) {
+            return;
+        }
+        int count;
+        while ((count = mSharedRing.read(mRingWhat, mRingSource, mRingValue, mRingTimestamp, mRingMeasured)) > 0) {
+            for (int i = 0; i < count; i++) {
+                int field = mRingWhat[i] - BluetoothHDPService.RECEIVED_SYS;
+                if (field >= 0 && field < BluetoothHDPService.RECEIVED_COUNT) {
+                    mUiUpdates.setValue(field, Math.round(mRingValue[i]));
+                }
+            }
+        }
+    }
+
     // Sets up communication with {@link BluetoothHDPService}.
     private ServiceConnection mConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName name, IBinder service) {
@@ -226,6 +283,9 @@ public class BluetoothHDPActivity extends Activity {
             Log.i(TAG, "1 onCreate(), mHealthService="+mHealthService);
             try {
                 mHealthService.send(msg);
+                Message map = Message.obtain(null, BluetoothHDPService.MSG_MAP_SHARED_RING);
+                map.replyTo = mMessenger;
+                mHealthService.send(map);
             }
             catch (RemoteException e) {
                 Log.w(TAG, "Unable to register client to service.");
@@ -269,6 +329,11 @@ public class BluetoothHDPActivity extends Activity {
         mOxygen = (TextView) findViewById(R.id.SpO2);
         mHeartRate = (TextView) findViewById(R.id.HeartRate);
 
+        // Fields are indexed by RECEIVED_* code, starting at RECEIVED_SYS.
+        mUiUpdates = new UiUpdateCoalescer(
+                new TextView[] {mSys, mDia, mPul, mOxygen, mHeartRate},
+                new ImageView[] {mBloodPressureDataIndicator, mOxymeterDataIndicator});
+
         // Initiates application registration through {@link BluetoothHDPService}.
         /*
         Button registerAppButton = (Button) findViewById(R.id.button_register_app);
@@ -357,12 +422,14 @@ public class BluetoothHDPActivity extends Activity {
     protected void onResume() {
 
         super.onResume();
+        mUiUpdates.resume();
     }
 
     @Override
     protected void onPause() {
 
         super.onPause();
+        mUiUpdates.pause();
     }
 
     /**
@@ -18,27 +18,38 @@ package com.example.bluetooth.health;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothHealth;
 import android.bluetooth.BluetoothHealthAppConfiguration;
 import android.bluetooth.BluetoothHealthCallback;
 import android.bluetooth.BluetoothProfile;
 import android.content.Intent;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This Service encapsulates Bluetooth Health API to establish, manage, and disconnect
@@ -103,14 +114,18 @@ public class BluetoothHDPService extends Service {
     public static final int MSG_REG_CLIENT = 200;
     // Unregister client from this service.
     public static final int MSG_UNREG_CLIENT = 201;
-    // Register health application.
+    // Register health application.  arg1 is the data type, arg2 its DELIVERY_* mode.  The data
+    // bundle may hold KEY_DELIVERY_MAX_COUNT and KEY_DELIVERY_MAX_DELAY_MILLIS for the deferred
+    // modes.
     public static final int MSG_REG_HEALTH_APP = 300;
     // Unregister health application.
     public static final int MSG_UNREG_HEALTH_APP = 301;
-    // Connect channel.
-    // public static final int MSG_CONNECT_CHANNEL = 400;
-    // Disconnect channel.
-    // public static final int MSG_DISCONNECT_CHANNEL = 401;
+    // Connect channel.  obj is the BluetoothDevice, arg1 the data type or 0 to derive it from the
+    // device class, arg2 the priority of the device in the connection schedule.
+    public static final int MSG_CONNECT_CHANNEL = 400;
+    // Disconnect channel and remove the device from the connection schedule.  obj is the
+    // BluetoothDevice.
+    public static final int MSG_DISCONNECT_CHANNEL = 401;
 
     // Got Reading
     public static final int RECEIVED_SYS = 500;
@@ -118,29 +133,262 @@ public class BluetoothHDPService extends Service {
     public static final int RECEIVED_PUL = 502;
     public static final int RECEIVED_O2 = 503;
     public static final int RECEIVED_HEART_RATE = 504;
+    // Request statistics of all devices and metrics.  The reply is sent to msg.replyTo.
+    public static final int MSG_GET_STATISTICS = 600;
+    // Statistics snapshot, see StatisticsEngine for the keys of the data bundle.  The bundle
+    // also holds per dispatch lane (protocol, alarm, live, bulk) queueing latencies in
+    // microseconds and the number of rejected items under the KEY_DISPATCH_* keys, and the lag
+    // of the measurement bus consumers under the KEY_CONSUMER_* keys.
+    public static final int STATISTICS = 601;
+    public static final String KEY_DISPATCH_P50_MICROS = "dispatchP50Micros";
+    public static final String KEY_DISPATCH_P99_MICROS = "dispatchP99Micros";
+    public static final String KEY_DISPATCH_REJECTED = "dispatchRejected";
+    // Per measurement bus consumer: its name, the events it has not handled yet, the largest
+    // backlog seen, the events it skipped because it fell a ring behind, the p99 time from
+    // APDU arrival until it handled an event, and the number of times its thread woke up.
+    public static final String KEY_CONSUMER_NAMES = "consumerNames";
+    public static final String KEY_CONSUMER_LAGS = "consumerLags";
+    public static final String KEY_CONSUMER_MAX_LAGS = "consumerMaxLags";
+    public static final String KEY_CONSUMER_DROPPED = "consumerDropped";
+    public static final String KEY_CONSUMER_P99_MICROS = "consumerP99Micros";
+    public static final String KEY_CONSUMER_WAKEUPS = "consumerWakeups";
+
+    // Set the alarm rule of a metric.  The data bundle holds the KEY_ALARM_* values.
+    public static final int MSG_SET_ALARM_RULE = 700;
+    // Alarm state change: arg1 is the RECEIVED_* code of the metric, arg2 the new
+    // AlarmEngine.CONDITION_*, CONDITION_NONE meaning the alarm cleared.
+    public static final int ALARM = 701;
+
+    // Map the shared sample ring.  The reply, sent to msg.replyTo, is SHARED_RING with a
+    // read-only descriptor of the ring under KEY_SHARED_RING.  From then on decoded values are
+    // written to the ring instead of being sent as RECEIVED_* messages.
+    public static final int MSG_MAP_SHARED_RING = 800;
+    public static final int SHARED_RING = 801;
+    // New records are available in the shared sample ring; arg1 is their number.
+    public static final int SHARED_RING_DOORBELL = 802;
+    public static final String KEY_SHARED_RING = "sharedRing";
+
+    // Delivery modes of MSG_REG_HEALTH_APP, see DeliveryPolicy.
+    public static final int DELIVERY_IMMEDIATE = DeliveryPolicy.IMMEDIATE;
+    public static final int DELIVERY_BATCHED = DeliveryPolicy.BATCHED;
+    public static final int DELIVERY_LATEST_ONLY = DeliveryPolicy.LATEST_ONLY;
+    public static final String KEY_DELIVERY_MAX_COUNT = "maxCount";
+    public static final String KEY_DELIVERY_MAX_DELAY_MILLIS = "maxDelayMillis";
+
+    // Batch of values of a data type registered with DELIVERY_BATCHED.  The data bundle holds
+    // parallel arrays of RECEIVED_* codes, values and wall clock timestamps in milliseconds.
+    public static final int BATCH = 900;
+    public static final String KEY_BATCH_WHATS = "whats";
+    public static final String KEY_BATCH_VALUES = "values";
+    public static final String KEY_BATCH_TIMESTAMPS = "timestamps";
+
+    // Latest state of all devices, sent in reply to MSG_REG_CLIENT.  See LastValueCache for the
+    // keys of the data bundle.
+    public static final int LAST_VALUES = 1100;
+
+    // Export the measurement history, see HistoryExport.  The data bundle holds the KEY_EXPORT_*
+    // selection and either a writable descriptor under KEY_EXPORT_DESCRIPTOR or the name of a file
+    // in the exports directory under KEY_EXPORT_FILE.  To resume an export, pass the
+    // KEY_EXPORT_LAST_TIMESTAMP and KEY_EXPORT_BYTES of its last report as KEY_EXPORT_AFTER and
+    // KEY_EXPORT_OFFSET; a file is truncated to the offset, a descriptor must be positioned there.
+    // Progress is sent to msg.replyTo.  Only one export runs at a time.
+    public static final int MSG_EXPORT_HISTORY = 1200;
+    // Cancel the running export.  It stops after the rows of the current timestamp.
+    public static final int MSG_CANCEL_EXPORT = 1201;
+    // Export progress: arg1 is the exported share of the time range in permille.  The data
+    // bundle holds KEY_EXPORT_ROWS, KEY_EXPORT_ROWS_PER_SECOND, KEY_EXPORT_LAST_TIMESTAMP and
+    // KEY_EXPORT_BYTES.
+    public static final int EXPORT_PROGRESS = 1202;
+    // Export finished: arg1 is the HistoryExport.RESULT_*, the data bundle as with EXPORT_PROGRESS.
+    public static final int EXPORT_DONE = 1203;
+    public static final int EXPORT_CSV = HistoryExport.FORMAT_CSV;
+    public static final int EXPORT_NDJSON = HistoryExport.FORMAT_NDJSON;
+    public static final String KEY_EXPORT_DEVICE = "device";
+    public static final String KEY_EXPORT_METRIC = "metric";
+    public static final String KEY_EXPORT_FROM = "from";
+    public static final String KEY_EXPORT_TO = "to";
+    public static final String KEY_EXPORT_FORMAT = "format";
+    public static final String KEY_EXPORT_DESCRIPTOR = "descriptor";
+    public static final String KEY_EXPORT_FILE = "file";
+    public static final String KEY_EXPORT_AFTER = "after";
+    public static final String KEY_EXPORT_OFFSET = "offset";
+    public static final String KEY_EXPORT_ROWS = "rows";
+    public static final String KEY_EXPORT_ROWS_PER_SECOND = "rowsPerSecond";
+    public static final String KEY_EXPORT_LAST_TIMESTAMP = "lastTimestamp";
+    public static final String KEY_EXPORT_BYTES = "bytes";
+
+    // Decoded values were committed to storage: arg1 is their number.  The data bundle holds the
+    // KEY_DURABLE_* values.
+    public static final int DURABLE = 1300;
+    // Wall clock timestamp in milliseconds of the last value of the commit.
+    public static final String KEY_DURABLE_LAST_TIMESTAMP = "lastTimestamp";
+    public static final String KEY_DURABLE_SYNCS = "syncs";
+    public static final String KEY_DURABLE_WRITES_PER_SECOND = "writesPerSecond";
+    // Longest time a decoded value may be lost in a crash.
+    public static final String KEY_DURABLE_MAX_LOSS_MILLIS = "maxLossMillis";
+
+    // Keys of the MSG_SET_ALARM_RULE data bundle.  Missing limits are disabled.
+    public static final String KEY_ALARM_METRIC = "metric";
+    public static final String KEY_ALARM_LOW = "low";
+    public static final String KEY_ALARM_HIGH = "high";
+    public static final String KEY_ALARM_HYSTERESIS = "hysteresis";
+    public static final String KEY_ALARM_SUSTAIN_MILLIS = "sustainMillis";
+    public static final String KEY_ALARM_MAX_RATE = "maxRatePerMinute";
+
+    // Number of RECEIVED_* codes.
+    static final int RECEIVED_COUNT = RECEIVED_HEART_RATE - RECEIVED_SYS + 1;
+
+    // Number of agents whose context is retained across disconnects.
+    private static final int MAX_AGENT_CONTEXTS = 16;
 
     /**
-     * State of communication between Android device and Medical Device
+     * APDUs the write threads send to a Medical Device
      */
-    private int bloodPressureCommunicationState = 0;
-    /**
-     * State of communication between Android device and Oxymeter
-     */
-    private int oxymeterCommunicationState = 0;
     private final int ASSOCIATION_RESPONSE = 1;
     private final int GET_MDS = 2;
     private final int DATA_RECEIVED_RESPONSE = 3;
     private final int ASSOCIATION_RELEASE_RESPONSE = 4;
 
-    private List<BluetoothHealthAppConfiguration> mHealthAppConfig;
+    // Maximum number of outstanding manager requests per channel.
+    private static final int MAX_OUTSTANDING_INVOCATIONS = 8;
+    // Time an agent has to answer a request, TO_get of IEEE 11073-20601.
+    private static final long INVOKE_TIMEOUT_MILLIS = 3000;
+    private static final long INVOKE_TIMEOUT_NANOS = INVOKE_TIMEOUT_MILLIS * 1000000L;
+    // Time an agent has to send its Association Request once the channel is open, TO_assoc.
+    private static final long ASSOCIATION_TIMEOUT_MILLIS = 10000;
+    // Abort reason response-timeout of the ABRT APDU.
+    private static final int ABORT_RESPONSE_TIMEOUT = 3;
+
+    // Protocol timeouts of all channels.  A tick of 100 ms is far below the shortest timeout,
+    // and 512 buckets span the longest one in less than a turn.
+    private static final long TIMEOUT_TICK_MILLIS = 100;
+    private static final int TIMEOUT_WHEEL_SIZE = 512;
+    private final TimingWheel mTimeouts = new TimingWheel("ProtocolTimeouts", TIMEOUT_TICK_MILLIS, TIMEOUT_WHEEL_SIZE);
+
+    // Agents that support manager-initiated data requests are polled every
+    // DATA_POLL_MIN_INTERVAL_MILLIS while their values change by more than DATA_POLL_STABLE_CHANGE,
+    // backing off up to DATA_POLL_MAX_INTERVAL_MILLIS while they are stable.
+    private static final long DATA_POLL_MIN_INTERVAL_MILLIS = 5000;
+    private static final long DATA_POLL_MAX_INTERVAL_MILLIS = 300000;
+    private static final float DATA_POLL_STABLE_CHANGE = 0.02f;
+
+    // Registered application configurations.  Written by the dispatcher thread, read by the
+    // incoming message handler.
+    private final List<BluetoothHealthAppConfiguration> mHealthAppConfig = new CopyOnWriteArrayList<BluetoothHealthAppConfiguration>();
     private BluetoothAdapter mBluetoothAdapter;
+    // Set and read on the main thread only.
     private BluetoothHealth mBluetoothHealth;
+    private SinkRegistrations mSinkRegistrations;
 
     // private BluetoothDevice mDevice;
     // private int mChannelId;
 
-    private Messenger mClient;
-    byte invoke[] = new byte[]{(byte) 0x00, (byte) 0x00};
+    private volatile Messenger mClient;
+
+    // Agent state retained across disconnects, so that reconnecting agents skip GET MDS.
+    private final AgentContextCache mAgentContexts = new AgentContextCache(MAX_AGENT_CONTEXTS);
+    // Registrations and agent state retained across process restarts, in the files directory.
+    private static final String SNAPSHOT_FILE = "service.snapshot";
+    private ServiceSnapshot mSnapshot;
+    // Time from channel connection to the first delivered value, for new and known agents.
+    private final LatencyHistogram mFirstConnectLatency = new LatencyHistogram("first connect");
+    private final LatencyHistogram mReconnectLatency = new LatencyHistogram("reconnect");
+
+    // Capacity of each read thread's ring on the measurement bus.
+    private static final int MEASUREMENT_RING_CAPACITY = 256;
+
+    // Decouples the read threads from everything that consumes decoded measurements.
+    private final MeasurementBus mMeasurementBus = new MeasurementBus(MEASUREMENT_RING_CAPACITY);
+
+    // Number of samples in the rolling windows of the statistics engine, and its EWMA weight.
+    private static final int STATISTICS_WINDOW = 60;
+    private static final double STATISTICS_EWMA_ALPHA = 0.1;
+    private final StatisticsEngine mStatistics = new StatisticsEngine(STATISTICS_WINDOW, STATISTICS_EWMA_ALPHA);
+
+    // Latest values, statuses and alarm conditions per device, for clients that (re)bind.
+    private final LastValueCache mLastValues = new LastValueCache(MAX_AGENT_CONTEXTS);
+
+    // Compressed measurement history.  A block is written once its payload reaches
+    // ARCHIVE_BLOCK_BYTES.  Values in open blocks are committed to the journal in groups of
+    // ARCHIVE_COMMIT_COUNT, or ARCHIVE_COMMIT_DELAY_MILLIS after the first, whichever comes first.
+    private static final int ARCHIVE_BLOCK_BYTES = 1024;
+    private static final int ARCHIVE_COMMIT_COUNT = 64;
+    private static final long ARCHIVE_COMMIT_DELAY_MILLIS = 1000;
+    private MeasurementArchive mArchive;
+
+    // Directory of exports written to files, below the app's files directory.
+    private static final String EXPORT_DIRECTORY = "exports";
+    private volatile HistoryExport mExport;
+
+    // Records in the sample ring shared with clients, and its file in the cache directory.
+    private static final int SHARED_RING_CAPACITY = 1024;
+    private static final String SHARED_RING_FILE = "samples.ring";
+    // Records are held back to merge the channels in measurement time order while another
+    // channel may still deliver an earlier one, by a channel that fell silent at most this long,
+    // and at most SHARED_RING_REORDER_CAPACITY per channel.
+    private static final long SHARED_RING_REORDER_WINDOW_MILLIS = 500;
+    private static final int SHARED_RING_REORDER_CAPACITY = 64;
+    private SharedSampleRing.Writer mSharedRing;
+    // Whether the registered client reads values from the shared ring.
+    private volatile boolean mClientMapsSharedRing;
+
+    // Delivery policies of the registered data types.  Replaced as a whole; data types without
+    // a policy are delivered immediately.
+    private volatile DeliveryPolicy[] mDeliveryPolicies = new DeliveryPolicy[0];
+
+    // Alarms are evaluated on the read threads and delivered through their own bus, ahead of the
+    // UI and persistence traffic on mMeasurementBus.
+    private static final int ALARM_RING_CAPACITY = 16;
+    // Target for the time from APDU arrival to alarm delivery, at the 99th percentile.
+    private static final long ALARM_LATENCY_BUDGET_NANOS = 50000000L;
+    // Shortest interval between two warnings about an exceeded alarm latency budget.
+    private static final long ALARM_BUDGET_WARNING_INTERVAL_NANOS = 10000000000L;
+    private final AlarmEngine mAlarmEngine = new AlarmEngine();
+    private final OximetryFilter mOximetryFilter = new OximetryFilter();
+    private final MeasurementBus mAlarmBus = new MeasurementBus(ALARM_RING_CAPACITY);
+    // Decoded components of a compound observed value, per measurement bus producer, so the read
+    // threads decode without allocating.
+    private final float[][] mComponentValues = new float[MeasurementBus.MAX_PRODUCERS][Nomenclature.MAX_COMPONENTS];
+
+    private final HealthEventDispatcher mEventDispatcher = new HealthEventDispatcher();
+    // Time spent inside the BluetoothHealthCallback methods, and from callback to dispatch.
+    private final LatencyHistogram mCallbackLatency = new LatencyHistogram("health callback");
+    private final LatencyHistogram mDispatchLatency = new LatencyHistogram("health event dispatch");
+    // Time from APDU arrival until a decoded value is published on the measurement bus.
+    private final LatencyHistogram mDecodeLatency = new LatencyHistogram("decode");
+
+    // Manager-initiated connections to bonded sources: at most MAX_CONCURRENT_CONNECTS being set
+    // up at a time, each device polled again POLL_INTERVAL_MILLIS after its session ended, and
+    // failed attempts retried after a backoff doubling from MIN_ to MAX_CONNECT_BACKOFF_MILLIS.
+    private static final int MAX_CONCURRENT_CONNECTS = 2;
+    private static final long POLL_INTERVAL_MILLIS = 60000;
+    private static final long MIN_CONNECT_BACKOFF_MILLIS = 2000;
+    private static final long MAX_CONNECT_BACKOFF_MILLIS = 300000;
+    // Priority of bonded devices that no client asked for explicitly.
+    private static final int DEFAULT_CONNECT_PRIORITY = 0;
+    private final ConnectionScheduler mConnectionScheduler = new ConnectionScheduler(MAX_CONCURRENT_CONNECTS,
+            POLL_INTERVAL_MILLIS, MIN_CONNECT_BACKOFF_MILLIS, MAX_CONNECT_BACKOFF_MILLIS);
+    // Runs the connection schedule on the main thread.
+    private final Handler mMainHandler = new Handler();
+
+    // Outbound work in priority lanes: APDU writes, alarms, live values, then status and bulk
+    // messages.  Indexed by PriorityDispatcher lane.  Live values and bulk traffic that waited
+    // longer than the lane's maximum wait are served ahead of the lanes above them.
+    private static final int[] DISPATCH_LANE_CAPACITIES = {64, 32, 256, 256};
+    private static final long[] DISPATCH_LANE_MAX_WAIT_MILLIS = {0, 0, 200, 1000};
+    private final PriorityDispatcher mDispatcher = new PriorityDispatcher("Dispatch",
+            DISPATCH_LANE_CAPACITIES, DISPATCH_LANE_MAX_WAIT_MILLIS, new PriorityDispatcher.MessageSink() {
+                @Override
+                public void send(Message message) {
+                    deliver(message);
+                }
+            });
+
+    // Bytes read from and written to all data channels, and the time between fresh values of
+    // polled agents.
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final LatencyHistogram mDataAge = new LatencyHistogram("data age");
 
     // Handles events sent by {@link HealthHDPActivity}.
     private class IncomingHandler extends Handler {
@@ -150,33 +398,64 @@ public class BluetoothHDPService extends Service {
                 // Register UI client to this service so the client can receive messages.
                 case MSG_REG_CLIENT:
                     Log.d(TAG, "Activity client registered");
+                    mClientMapsSharedRing = false;
                     mClient = msg.replyTo;
+                    sendRegistrationStatus();
+                    sendLastValues(msg.replyTo);
                     break;
                 // Unregister UI client from this service.
                 case MSG_UNREG_CLIENT:
                     mClient = null;
+                    mClientMapsSharedRing = false;
                     break;
                 // Register health application.
                 case MSG_REG_HEALTH_APP:
+                    setDeliveryPolicy(msg.arg1, msg.arg2, msg.getData());
                     registerApp(msg.arg1);
                     break;
                 // Unregister health application.
                 case MSG_UNREG_HEALTH_APP:
                     unregisterApp();
                     break;
-                /*
+                // Reply with the current statistics, computed without touching stored history.
+                case MSG_GET_STATISTICS:
+                    sendStatistics(msg.replyTo);
+                    break;
+                // Hand out the shared sample ring.
+                case MSG_MAP_SHARED_RING:
+                    sendSharedRing(msg.replyTo);
+                    break;
+                // Replace the alarm rule of a metric.
+                case MSG_SET_ALARM_RULE:
+                    Bundle rule = msg.getData();
+                    int metric = rule.getInt(KEY_ALARM_METRIC, -1);
+                    if (!mAlarmEngine.setRule(metric, new AlarmEngine.Rule(
+                            rule.getFloat(KEY_ALARM_LOW, Float.NaN),
+                            rule.getFloat(KEY_ALARM_HIGH, Float.NaN),
+                            rule.getFloat(KEY_ALARM_HYSTERESIS, 0),
+                            rule.getLong(KEY_ALARM_SUSTAIN_MILLIS, 0),
+                            rule.getFloat(KEY_ALARM_MAX_RATE, Float.NaN)))) {
+                        Log.w(TAG, "Ignoring alarm rule of unknown metric " + metric);
+                    }
+                    break;
                 // Connect channel.
                 case MSG_CONNECT_CHANNEL:
-                    mDevice = (BluetoothDevice) msg.obj;
-                    Log.i(TAG, "3 mDevice="+mDevice);
-                    connectChannel();
+                    connectChannel((BluetoothDevice) msg.obj, msg.arg1, msg.arg2);
                     break;
                 // Disconnect channel.
                 case MSG_DISCONNECT_CHANNEL:
-                    mDevice = (BluetoothDevice) msg.obj;
-                    disconnectChannel();
+                    disconnectChannel((BluetoothDevice) msg.obj);
+                    break;
+                // Export the measurement history on its own thread.
+                case MSG_EXPORT_HISTORY:
+                    startExport(msg.getData(), msg.replyTo);
+                    break;
+                case MSG_CANCEL_EXPORT:
+                    HistoryExport export = mExport;
+                    if (export != null) {
+                        export.cancel();
+                    }
                     break;
-                */
                 default:
                     super.handleMessage(msg);
             }
@@ -191,7 +470,31 @@ public class BluetoothHDPService extends Service {
      */
     @Override
     public void onCreate() {
+        // The cold start time is measured from here; the process start time needs API 24.
+        long startMillis = SystemClock.elapsedRealtime();
         super.onCreate();
+        mSinkRegistrations = new SinkRegistrations(BluetoothHDPActivity.HEALTH_PROFILE_SOURCE_DATA_TYPES,
+                startMillis);
+        List<DeliveryPolicy> restored = restoreSnapshot();
+        mEventDispatcher.start();
+        mTimeouts.start();
+        mDispatcher.start();
+        mMeasurementBus.addConsumer(new ClientConsumer());
+        mMeasurementBus.addConsumer(mStatistics);
+        mMeasurementBus.addConsumer(mLastValues);
+        mArchive = new MeasurementArchive(MeasurementArchive.directoryOf(this), ARCHIVE_BLOCK_BYTES,
+                ARCHIVE_COMMIT_COUNT, ARCHIVE_COMMIT_DELAY_MILLIS);
+        mArchive.setCommitListener(mCommitListener);
+        mMeasurementBus.addConsumer(mArchive);
+        try {
+            mSharedRing = new SharedSampleRing.Writer(new File(getCacheDir(), SHARED_RING_FILE), SHARED_RING_CAPACITY);
+            mMeasurementBus.addConsumer(new SharedRingConsumer());
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Cannot create the shared sample ring", e);
+        }
+        mAlarmEngine.setDefaultRules();
+        mAlarmBus.addConsumer(new AlarmConsumer());
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
         if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled()) {
             // Bluetooth adapter isn't available.  The client of the service is supposed to
@@ -204,6 +507,63 @@ public class BluetoothHDPService extends Service {
             stopSelf();
             return;
         }
+        // Register the sinks without waiting for a client; they are issued once the proxy is up.
+        // Data types registered before the process was restarted come back with their policies.
+        for (DeliveryPolicy policy : restored) {
+            registerApp(policy.dataType);
+        }
+        for (int dataType : BluetoothHDPActivity.HEALTH_PROFILE_SOURCE_DATA_TYPES) {
+            registerApp(dataType);
+        }
+    }
+
+    // Opens the snapshot and restores the known agents and delivery policies from it.  Returns
+    // the registrations to restore.
+    private List<DeliveryPolicy> restoreSnapshot() {
+        long start = System.nanoTime();
+        List<DeliveryPolicy> registrations = new ArrayList<DeliveryPolicy>();
+        try {
+            mSnapshot = new ServiceSnapshot(new File(getFilesDir(), SNAPSHOT_FILE), MAX_AGENT_CONTEXTS);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Cannot open the service snapshot", e);
+            return registrations;
+        }
+        registrations = mSnapshot.readRegistrations();
+        for (DeliveryPolicy policy : registrations) {
+            installDeliveryPolicy(policy);
+        }
+        int agents = mSnapshot.readAgents(mAgentContexts);
+        Log.i(TAG, "Restored " + registrations.size() + " registrations and " + agents + " agents in "
+                + (System.nanoTime() - start) / 1000 + " us");
+        return registrations;
+    }
+
+    @Override
+    public void onDestroy() {
+        mMainHandler.removeCallbacks(mConnectTick);
+        HistoryExport export = mExport;
+        if (export != null) {
+            export.cancel();
+        }
+        mEventDispatcher.quit();
+        mTimeouts.quit();
+        mDispatcher.quit();
+        mMeasurementBus.shutdown();
+        mAlarmBus.shutdown();
+        if (mSharedRing != null) {
+            mSharedRing.close();
+        }
+        if (mSnapshot != null) {
+            mSnapshot.close();
+        }
+        Log.i(TAG, mCallbackLatency.toString());
+        Log.i(TAG, mDispatchLatency.toString());
+        Log.i(TAG, mDecodeLatency.toString());
+        Log.i(TAG, mDataAge.toString() + ", received " + mBytesReceived.get() + " bytes, sent " + mBytesSent.get() + " bytes");
+        Log.i(TAG, "Archive: " + mArchive.getWritesPerSecond() + " writes/s, " + mArchive.getSyncs() + " syncs, max loss window "
+                + mArchive.getMaxLossWindowMillis() + " ms");
+        super.onDestroy();
     }
 
     @Override
@@ -217,32 +577,383 @@ public class BluetoothHDPService extends Service {
         return mMessenger.getBinder();
     };
 
-    // Register health application through the Bluetooth Health API.
+    private void sendSharedRing(Messenger replyTo) {
+        if (replyTo == null || mSharedRing == null) {
+            return;
+        }
+        Message reply = Message.obtain(null, SHARED_RING, mSharedRing.getCapacity(), 0);
+        try {
+            ParcelFileDescriptor descriptor = mSharedRing.openReadOnly();
+            Bundle data = new Bundle();
+            data.putParcelable(KEY_SHARED_RING, descriptor);
+            reply.setData(data);
+            // Not closed here: a client in this process receives this very descriptor, and
+            // the reader closes it after mapping.
+            replyTo.send(reply);
+            mClientMapsSharedRing = replyTo.equals(mClient);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Cannot share the sample ring", e);
+        }
+        catch (RemoteException e) {
+            // Unable to reach client.
+            e.printStackTrace();
+        }
+    }
+
+    private void sendLastValues(Messenger replyTo) {
+        if (replyTo == null) {
+            return;
+        }
+        Message reply = Message.obtain(null, LAST_VALUES);
+        reply.setData(mLastValues.snapshot());
+        try {
+            replyTo.send(reply);
+        }
+        catch (RemoteException e) {
+            // Unable to reach client.
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void startExport(Bundle data, final Messenger replyTo) {
+        final long offset = data.getLong(KEY_EXPORT_OFFSET, 0);
+        if (mExport != null) {
+            Log.w(TAG, "An export is already running");
+            sendExportReport(replyTo, EXPORT_DONE, HistoryExport.RESULT_FAILED, null, offset);
+            return;
+        }
+        OutputStream out;
+        ParcelFileDescriptor descriptor = data.getParcelable(KEY_EXPORT_DESCRIPTOR);
+        try {
+            if (descriptor != null) {
+                out = new ParcelFileDescriptor.AutoCloseOutputStream(descriptor);
+            }
+            else {
+                String name = data.getString(KEY_EXPORT_FILE);
+                if (name == null) {
+                    throw new IOException("No export output given");
+                }
+                File directory = new File(getFilesDir(), EXPORT_DIRECTORY);
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create " + directory);
+                }
+                // Only the name is used, the file always ends up in the exports directory.
+                File file = new File(directory, new File(name).getName());
+                FileOutputStream stream = new FileOutputStream(file, offset > 0);
+                if (offset > 0) {
+                    // Drop rows of a partially written timestamp.
+                    stream.getChannel().truncate(offset);
+                }
+                out = stream;
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Cannot open the export output", e);
+            sendExportReport(replyTo, EXPORT_DONE, HistoryExport.RESULT_FAILED, null, offset);
+            return;
+        }
+        try {
+            mExport = new HistoryExport(mArchive.getDirectory(), data.getString(KEY_EXPORT_DEVICE),
+                    data.getInt(KEY_EXPORT_METRIC, -1),
+                    data.getLong(KEY_EXPORT_FROM, Long.MIN_VALUE), data.getLong(KEY_EXPORT_TO, Long.MAX_VALUE),
+                    data.getLong(KEY_EXPORT_AFTER, HistoryExport.NO_TIMESTAMP),
+                    data.getInt(KEY_EXPORT_FORMAT, HistoryExport.FORMAT_CSV), out,
+                    new HistoryExport.Listener() {
+                        @Override
+                        public void onProgress(HistoryExport export, int permille) {
+                            sendExportReport(replyTo, EXPORT_PROGRESS, permille, export, offset);
+                        }
+
+                        @Override
+                        public void onFinished(HistoryExport export, int result) {
+                            mExport = null;
+                            sendExportReport(replyTo, EXPORT_DONE, result, export, offset);
+                        }
+                    });
+        }
+        catch (IllegalArgumentException e) {
+            Log.e(TAG, e.getMessage());
+            MeasurementArchive.closeQuietly(out);
+            sendExportReport(replyTo, EXPORT_DONE, HistoryExport.RESULT_FAILED, null, offset);
+            return;
+        }
+        new Thread(mExport, "HistoryExport").start();
+    }
+
+    // Sends an export report in the bulk lane.  offset is the size of the output before the export
+    // started.
+    private void sendExportReport(final Messenger replyTo, int what, int arg1, HistoryExport export, long offset) {
+        if (replyTo == null) {
+            return;
+        }
+        Bundle data = new Bundle();
+        data.putLong(KEY_EXPORT_ROWS, export != null ? export.getRows() : 0);
+        data.putLong(KEY_EXPORT_ROWS_PER_SECOND, export != null ? export.getRowsPerSecond() : 0);
+        data.putLong(KEY_EXPORT_LAST_TIMESTAMP, export != null ? export.getCommittedTimestamp() : HistoryExport.NO_TIMESTAMP);
+        data.putLong(KEY_EXPORT_BYTES, offset + (export != null ? export.getCommittedBytes() : 0));
+        final Message message = Message.obtain(null, what, arg1, 0);
+        message.setData(data);
+        boolean queued = mDispatcher.submit(PriorityDispatcher.LANE_BULK, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replyTo.send(message);
+                }
+                catch (RemoteException e) {
+                    // Unable to reach client.
+                    e.printStackTrace();
+                }
+            }
+        });
+        if (!queued && what == EXPORT_DONE) {
+            // The final report must not get lost.
+            try {
+                replyTo.send(message);
+            }
+            catch (RemoteException e) {
+                // Unable to reach client.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Acknowledges committed values to the client.
+    private final MeasurementArchive.CommitListener mCommitListener = new MeasurementArchive.CommitListener() {
+        @Override
+        public void onCommitted(MeasurementArchive archive, int count, long lastTimestamp) {
+            if (mClient == null) {
+                return;
+            }
+            Bundle data = new Bundle();
+            data.putLong(KEY_DURABLE_LAST_TIMESTAMP, lastTimestamp);
+            data.putLong(KEY_DURABLE_SYNCS, archive.getSyncs());
+            data.putLong(KEY_DURABLE_WRITES_PER_SECOND, archive.getWritesPerSecond());
+            data.putLong(KEY_DURABLE_MAX_LOSS_MILLIS, archive.getMaxLossWindowMillis());
+            Message message = Message.obtain(null, DURABLE, count, 0);
+            message.setData(data);
+            sendMessage(message);
+        }
+    };
+
+    private void sendStatistics(Messenger replyTo) {
+        if (replyTo == null) {
+            return;
+        }
+        Message reply = Message.obtain(null, STATISTICS);
+        Bundle data = mStatistics.snapshot();
+        long[] p50 = new long[PriorityDispatcher.LANES];
+        long[] p99 = new long[PriorityDispatcher.LANES];
+        long[] rejected = new long[PriorityDispatcher.LANES];
+        for (int lane = 0; lane < PriorityDispatcher.LANES; lane++) {
+            p50[lane] = mDispatcher.getLatency(lane).getValueAtPercentile(50) / 1000;
+            p99[lane] = mDispatcher.getLatency(lane).getValueAtPercentile(99) / 1000;
+            rejected[lane] = mDispatcher.getRejected(lane);
+        }
+        data.putLongArray(KEY_DISPATCH_P50_MICROS, p50);
+        data.putLongArray(KEY_DISPATCH_P99_MICROS, p99);
+        data.putLongArray(KEY_DISPATCH_REJECTED, rejected);
+        MeasurementBus.Consumer[] consumers = mMeasurementBus.getConsumers();
+        String[] names = new String[consumers.length];
+        long[] lags = new long[consumers.length];
+        long[] maxLags = new long[consumers.length];
+        long[] dropped = new long[consumers.length];
+        long[] consumerP99 = new long[consumers.length];
+        long[] wakeups = new long[consumers.length];
+        for (int i = 0; i < consumers.length; i++) {
+            names[i] = consumers[i].getName();
+            lags[i] = consumers[i].getLag();
+            maxLags[i] = consumers[i].getMaxLag();
+            dropped[i] = consumers[i].getDropped();
+            consumerP99[i] = consumers[i].getLatency().getValueAtPercentile(99) / 1000;
+            wakeups[i] = consumers[i].getWakeups();
+        }
+        data.putStringArray(KEY_CONSUMER_NAMES, names);
+        data.putLongArray(KEY_CONSUMER_LAGS, lags);
+        data.putLongArray(KEY_CONSUMER_MAX_LAGS, maxLags);
+        data.putLongArray(KEY_CONSUMER_DROPPED, dropped);
+        data.putLongArray(KEY_CONSUMER_P99_MICROS, consumerP99);
+        data.putLongArray(KEY_CONSUMER_WAKEUPS, wakeups);
+        reply.setData(data);
+        try {
+            replyTo.send(reply);
+        }
+        catch (RemoteException e) {
+            // Unable to reach client.
+            e.printStackTrace();
+        }
+    }
+
+    // Register health application through the Bluetooth Health API.  Requests made before the
+    // health profile proxy is connected are queued until it is.
     private void registerApp(int dataType) {
-        mBluetoothHealth.registerSinkAppConfiguration(TAG, dataType, mHealthCallback);
+        if (mSnapshot != null) {
+            mSnapshot.putRegistration(dataType, deliveryPolicyOf(dataType));
+        }
+        if (mSinkRegistrations.request(dataType, mBluetoothHealth != null)) {
+            mBluetoothHealth.registerSinkAppConfiguration(TAG, dataType, mHealthCallback);
+        }
+    }
+
+    private synchronized void setDeliveryPolicy(int dataType, int mode, Bundle data) {
+        DeliveryPolicy policy;
+        try {
+            policy = new DeliveryPolicy(dataType, mode,
+                    data.getInt(KEY_DELIVERY_MAX_COUNT, DeliveryPolicy.DEFAULT_MAX_COUNT),
+                    data.getLong(KEY_DELIVERY_MAX_DELAY_MILLIS, DeliveryPolicy.DEFAULT_MAX_DELAY_MILLIS));
+        }
+        catch (IllegalArgumentException e) {
+            Log.w(TAG, e.getMessage() + ", delivering data type " + dataType + " immediately");
+            policy = new DeliveryPolicy(dataType, DeliveryPolicy.IMMEDIATE, 1, 0);
+        }
+        installDeliveryPolicy(policy);
+    }
+
+    private synchronized void installDeliveryPolicy(DeliveryPolicy policy) {
+        DeliveryPolicy[] policies = mDeliveryPolicies;
+        int i = 0;
+        while (i < policies.length && policies[i].dataType != policy.dataType) {
+            i++;
+        }
+        policies = Arrays.copyOf(policies, Math.max(policies.length, i + 1));
+        policies[i] = policy;
+        mDeliveryPolicies = policies;
+    }
+
+    private DeliveryPolicy deliveryPolicyOf(int dataType) {
+        DeliveryPolicy[] policies = mDeliveryPolicies;
+        for (int i = 0; i < policies.length; i++) {
+            if (policies[i].dataType == dataType) {
+                return policies[i];
+            }
+        }
+        return DeliveryPolicy.DEFAULT;
+    }
+
+    // Tells a newly registered client about the sinks that were registered before it bound.
+    private void sendRegistrationStatus() {
+        for (BluetoothHealthAppConfiguration config : mHealthAppConfig) {
+            if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
+                sendMessage(STATUS_BLOOD_PRESSURE_REG, RESULT_OK);
+            }
+            if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
+                sendMessage(STATUS_OXYMETER_REG, RESULT_OK);
+            }
+        }
     }
 
     // Unregister health application through the Bluetooth Health API.
     private void unregisterApp() {
+        mSinkRegistrations.clear();
+        if (mSnapshot != null) {
+            mSnapshot.clearRegistrations();
+        }
+        mConnectionScheduler.clear();
+        if (mBluetoothHealth == null) {
+            return;
+        }
         for (int i = 0; i < mHealthAppConfig.size(); i++) {
             mBluetoothHealth.unregisterAppConfiguration(mHealthAppConfig.get(i));
         }
     }
 
-    /*
-    // Connect channel through the Bluetooth Health API.
-    private void connectChannel() {
-        Log.i(TAG, "connectChannel(), mDevice="+mDevice+", mHealthAppConfig="+mHealthAppConfig);
-        boolean connectChannelToSource = mBluetoothHealth.connectChannelToSource(mDevice, mHealthAppConfig);
-        Log.i(TAG, "connectChannel(), connectChannelToSource="+connectChannelToSource);
+    // Schedules a connection to a device, ahead of devices with a lower priority.
+    private void connectChannel(BluetoothDevice device, int dataType, int priority) {
+        if (dataType == 0) {
+            dataType = dataTypeOf(device);
+        }
+        Log.i(TAG, "connectChannel(), device="+device+", dataType="+dataType+", priority="+priority);
+        if (device == null || dataType == 0) {
+            return;
+        }
+        mConnectionScheduler.add(device, dataType, priority, System.nanoTime());
+        scheduleConnections();
+    }
+
+    // Disconnect channel through the Bluetooth Health API and stop polling the device.
+    private void disconnectChannel(BluetoothDevice device) {
+        if (device == null) {
+            return;
+        }
+        for (ConnectionScheduler.Target target : mConnectionScheduler.remove(device.getAddress())) {
+            int channelId = target.state == ConnectionScheduler.CONNECTED ? target.channelId : -1;
+            BluetoothHealthAppConfiguration config = configOf(target.dataType);
+            Log.i(TAG, "disconnectChannel(), device="+device+", config="+config+", channelId="+channelId);
+            if (channelId != -1 && config != null && mBluetoothHealth != null) {
+                mBluetoothHealth.disconnectChannel(device, config, channelId);
+            }
+        }
+    }
+
+    // Data type a device is polled for according to its Bluetooth device class, or 0.
+    private static int dataTypeOf(BluetoothDevice device) {
+        BluetoothClass bluetoothClass = device == null ? null : device.getBluetoothClass();
+        if (bluetoothClass == null) {
+            return 0;
+        }
+        switch (bluetoothClass.getDeviceClass()) {
+            case BluetoothClass.Device.HEALTH_BLOOD_PRESSURE:
+                return BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE;
+            case BluetoothClass.Device.HEALTH_PULSE_OXIMETER:
+                return BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER;
+            default:
+                return 0;
+        }
     }
 
-    // Disconnect channel through the Bluetooth Health API.
-    private void disconnectChannel() {
-        Log.i(TAG, "disconnectChannel(), mDevice="+mDevice+", mHealthAppConfig="+mHealthAppConfig+", mChannelId="+mChannelId);
-        mBluetoothHealth.disconnectChannel(mDevice, mHealthAppConfig, mChannelId);
+    private BluetoothHealthAppConfiguration configOf(int dataType) {
+        for (BluetoothHealthAppConfiguration config : mHealthAppConfig) {
+            if (config.getDataType() == dataType) {
+                return config;
+            }
+        }
+        return null;
     }
-    */
+
+    // Adds the bonded devices of a newly registered data type to the connection schedule.
+    private void scheduleBondedDevices(int dataType) {
+        Set<BluetoothDevice> bonded = mBluetoothAdapter.getBondedDevices();
+        if (bonded == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (BluetoothDevice device : bonded) {
+            if (dataTypeOf(device) == dataType) {
+                mConnectionScheduler.addIfAbsent(device, dataType, DEFAULT_CONNECT_PRIORITY, now);
+            }
+        }
+        scheduleConnections();
+    }
+
+    // Runs the connection schedule on the main thread as soon as possible.
+    private void scheduleConnections() {
+        mMainHandler.removeCallbacks(mConnectTick);
+        mMainHandler.post(mConnectTick);
+    }
+
+    // Starts the connections that are due, then sleeps until the next one is.
+    private final Runnable mConnectTick = new Runnable() {
+        public void run() {
+            mMainHandler.removeCallbacks(this);
+            BluetoothHealth health = mBluetoothHealth;
+            if (health == null) {
+                // Rescheduled once the sinks are registered again.
+                return;
+            }
+            long now = System.nanoTime();
+            for (ConnectionScheduler.Target target : mConnectionScheduler.nextConnections(now)) {
+                BluetoothHealthAppConfiguration config = configOf(target.dataType);
+                Log.i(TAG, "connectChannelToSource(), " + target);
+                if (config == null || !health.connectChannelToSource(target.device, config)) {
+                    mConnectionScheduler.onConnectFailed(target.device.getAddress(), target.dataType, now);
+                }
+            }
+            long wakeup = mConnectionScheduler.nextWakeup();
+            if (wakeup != Long.MAX_VALUE) {
+                mMainHandler.postDelayed(this, Math.max(0, wakeup - System.nanoTime()) / 1000000L + 1);
+            }
+        }
+    };
 
     // Callbacks to handle connection set up and disconnection clean up.
     private final BluetoothProfile.ServiceListener mBluetoothServiceListener = new BluetoothProfile.ServiceListener() {
@@ -251,131 +962,269 @@ public class BluetoothHDPService extends Service {
                 mBluetoothHealth = (BluetoothHealth) proxy;
                 if (Log.isLoggable(TAG, Log.DEBUG))
                     Log.d(TAG, "onServiceConnected to profile: " + profile);
+                // Registration is asynchronous; issue all queued registrations at once so they
+                // proceed concurrently in the Bluetooth stack.
+                for (int dataType : mSinkRegistrations.onProxyConnected()) {
+                    mBluetoothHealth.registerSinkAppConfiguration(TAG, dataType, mHealthCallback);
+                }
             }
         }
 
         public void onServiceDisconnected(int profile) {
             if (profile == BluetoothProfile.HEALTH) {
                 mBluetoothHealth = null;
+                mHealthAppConfig.clear();
+                mSinkRegistrations.onProxyDisconnected();
             }
         }
     };
 
+    // The callbacks run on binder threads of the Bluetooth stack.  They only capture their
+    // arguments and hand them to the dispatcher thread, so that client notification and session
+    // set up never hold up the Bluetooth stack.
     private final BluetoothHealthCallback mHealthCallback = new BluetoothHealthCallback() {
-        // Callback to handle application registration and unregistration events.  The service
-        // passes the status back to the UI client.
         public void onHealthAppConfigurationStatusChange(BluetoothHealthAppConfiguration config, int status) {
-            if (status == BluetoothHealth.APP_CONFIG_REGISTRATION_FAILURE) {
-                Log.i(TAG, "Health App configuration (" + config + ") has NOT been REGISTERED");
-                if (config != null) {
-                    // TODO: should turn data indicator from any to grey
-                    if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
-                        sendMessage(STATUS_BLOOD_PRESSURE_REG, RESULT_FAIL);
-                    }
-                    if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
-                        sendMessage(STATUS_OXYMETER_REG, RESULT_FAIL);
-                    }
-                }
+            long start = System.nanoTime();
+            mEventDispatcher.post(HealthEvent.appConfigStatus(config, status));
+            mCallbackLatency.record(System.nanoTime() - start);
+        }
+
+        public void onHealthChannelStateChange(BluetoothHealthAppConfiguration config, BluetoothDevice device, int prevState, int newState, ParcelFileDescriptor fd, int channelId) {
+            long start = System.nanoTime();
+            mEventDispatcher.post(HealthEvent.channelState(config, device, prevState, newState, fd, channelId));
+            mCallbackLatency.record(System.nanoTime() - start);
+        }
+    };
+
+    // Thread that processes the events posted by mHealthCallback in order.  The binder threads
+    // enqueue into a lock-free queue and only wake the dispatcher when it is parked.
+    private class HealthEventDispatcher extends Thread {
+        private final ConcurrentLinkedQueue<HealthEvent> mEvents = new ConcurrentLinkedQueue<HealthEvent>();
+        private volatile boolean mParked;
+        private volatile boolean mRunning = true;
+
+        public HealthEventDispatcher() {
+            super("HealthEventDispatcher");
+        }
+
+        void post(HealthEvent event) {
+            mEvents.offer(event);
+            if (mParked) {
+                LockSupport.unpark(this);
             }
-            else if (status == BluetoothHealth.APP_CONFIG_REGISTRATION_SUCCESS) {
-                Log.i(TAG, "Health App configuration ("+config+") has successfully been REGISTERED!");
-                if (config != null) {
-                    // TODO: should turn data indicator from grey to red
-                    if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
-                        sendMessage(STATUS_BLOOD_PRESSURE_REG, RESULT_OK);
-                    }
-                    if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
-                        sendMessage(STATUS_OXYMETER_REG, RESULT_OK);
+        }
+
+        void quit() {
+            mRunning = false;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                HealthEvent event = mEvents.poll();
+                if (event == null) {
+                    mParked = true;
+                    // Re-check after announcing the park, an event may have been posted meanwhile.
+                    if (mEvents.isEmpty() && mRunning) {
+                        LockSupport.park(this);
                     }
+                    mParked = false;
+                    continue;
                 }
-                if (mHealthAppConfig == null) {
-                    mHealthAppConfig = new ArrayList<BluetoothHealthAppConfiguration>();
-                }
-                mHealthAppConfig.add(config);
-            }
-            else if (status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_FAILURE || status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS) {
-                Log.i(TAG, "Health App configuration ("+config+") has successfully been UNREGISTERED!");
-                if (config != null) {
-                    // TODO: should turn data indicator from any to grey
-                    if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
-                        sendMessage(STATUS_BLOOD_PRESSURE_UNREG, status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS ? RESULT_OK : RESULT_FAIL);
+                mDispatchLatency.record(System.nanoTime() - event.postedAt);
+                try {
+                    if (event.type == HealthEvent.APP_CONFIG_STATUS) {
+                        handleAppConfigurationStatusChange(event.config, event.status);
                     }
-                    if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
-                        sendMessage(STATUS_OXYMETER_REG, status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS ? RESULT_OK : RESULT_FAIL);
+                    else if (event.type == HealthEvent.CHANNEL_STATE) {
+                        handleChannelStateChange(event.config, event.device, event.prevState, event.status, event.fd, event.channelId);
                     }
                 }
-                if (mHealthAppConfig != null) {
-                    for (int i = 0; i < mHealthAppConfig.size(); i++) {
-                        if (mHealthAppConfig.get(i).equals(config)) {
-                            mHealthAppConfig.remove(i);
-                        }
-                    }
+                catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to handle health event " + event.type, e);
                 }
             }
         }
+    }
 
-        // Callback to handle channel connection state changes.
-        // Note that the logic of the state machine may need to be modified based on the HDP device.
-        // When the HDP device is connected, the received file descriptor is passed to the
-        // OxymeterReadThread to read the content.
-        public void onHealthChannelStateChange(BluetoothHealthAppConfiguration config, BluetoothDevice device, int prevState, int newState, ParcelFileDescriptor fd, int channelId) {
-            Log.i(TAG, "onHealthChannelStateChange()");
-            Log.i(TAG, String.format("prevState="+prevState+", newState="+newState));
-            if (prevState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED && newState == BluetoothHealth.STATE_CHANNEL_CONNECTING) {
-                Log.i(TAG, "CONNECTING: config="+config+", device="+device);
-            }
-            if ((prevState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED || prevState == BluetoothHealth.STATE_CHANNEL_CONNECTING) && newState == BluetoothHealth.STATE_CHANNEL_CONNECTED) {
-                Log.i(TAG, "CONNECTED: config="+config+", device="+device);
-                for (int i = 0; i < mHealthAppConfig.size(); i++) {
-                    if (config.equals(mHealthAppConfig.get(i))) {
-                        // Log.i(TAG, "channelId="+channelId);
-                        if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
-                            sendMessage(STATUS_BLOOD_PRESSURE_CREATE_CHANNEL, RESULT_OK);
-                            sendMessage(RECEIVED_SYS, -1);
-                            sendMessage(RECEIVED_DIA, -1);
-                            sendMessage(RECEIVED_PUL, -1);
-                            (new BloodPressureReadThread((fd))).start();
-                        }
-                        else if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
-                            sendMessage(STATUS_OXYMETER_CREATE_CHANNEL, RESULT_OK);
-                            sendMessage(RECEIVED_O2, -1);
-                            sendMessage(RECEIVED_HEART_RATE, -1);
-                            (new OxymeterReadThread(fd)).start();
-                        }
-                    }
+    // Handles application registration and unregistration events on the dispatcher thread.  The
+    // service passes the status back to the UI client.
+    private void handleAppConfigurationStatusChange(BluetoothHealthAppConfiguration config, int status) {
+        if (status == BluetoothHealth.APP_CONFIG_REGISTRATION_FAILURE) {
+            Log.i(TAG, "Health App configuration (" + config + ") has NOT been REGISTERED");
+            if (config != null) {
+                mSinkRegistrations.onRegistrationFailed(config.getDataType());
+                // TODO: should turn data indicator from any to grey
+                if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
+                    sendMessage(STATUS_BLOOD_PRESSURE_REG, RESULT_FAIL);
+                }
+                if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
+                    sendMessage(STATUS_OXYMETER_REG, RESULT_FAIL);
                 }
             }
-            else if (prevState == BluetoothHealth.STATE_CHANNEL_CONNECTING && newState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED) {
-                Log.i(TAG, "DISCONNECTING: config="+config+", device="+device);
-                if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
-                    sendMessage(STATUS_BLOOD_PRESSURE_CREATE_CHANNEL, RESULT_FAIL);
+        }
+        else if (status == BluetoothHealth.APP_CONFIG_REGISTRATION_SUCCESS) {
+            Log.i(TAG, "Health App configuration ("+config+") has successfully been REGISTERED!");
+            if (config != null) {
+                mSinkRegistrations.onRegistered(config.getDataType());
+                // TODO: should turn data indicator from grey to red
+                if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
+                    sendMessage(STATUS_BLOOD_PRESSURE_REG, RESULT_OK);
                 }
-                else if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
-                    sendMessage(STATUS_OXYMETER_CREATE_CHANNEL, RESULT_FAIL);
+                if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
+                    sendMessage(STATUS_OXYMETER_REG, RESULT_OK);
                 }
             }
-            else if (newState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED) {
-                Log.i(TAG, "DISCONNECTED: config="+config+", device="+device);
-                if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
-                    sendMessage(STATUS_BLOOD_PRESSURE_DESTROY_CHANNEL, RESULT_OK);
+            mHealthAppConfig.add(config);
+            if (config != null) {
+                scheduleBondedDevices(config.getDataType());
+            }
+        }
+        else if (status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_FAILURE || status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS) {
+            Log.i(TAG, "Health App configuration ("+config+") has successfully been UNREGISTERED!");
+            if (config != null) {
+                // TODO: should turn data indicator from any to grey
+                if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
+                    sendMessage(STATUS_BLOOD_PRESSURE_UNREG, status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS ? RESULT_OK : RESULT_FAIL);
                 }
-                else if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
-                    sendMessage(STATUS_OXYMETER_DESTROY_CHANNEL, RESULT_OK);
+                if (config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
+                    sendMessage(STATUS_OXYMETER_REG, status == BluetoothHealth.APP_CONFIG_UNREGISTRATION_SUCCESS ? RESULT_OK : RESULT_FAIL);
                 }
             }
+            mHealthAppConfig.remove(config);
         }
-    };
+    }
+
+    /**
+     * Starts reading a connected data channel of the given data type.  Package-private so the
+     * latency benchmark can feed the decode path through a local socket instead of Bluetooth.
+     */
+    void startChannel(ParcelFileDescriptor fd, BluetoothDevice device, int dataType, long connectedAt) {
+        if (dataType == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
+            (new BloodPressureReadThread(fd, device, connectedAt)).start();
+        }
+        else if (dataType == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
+            (new OxymeterReadThread(fd, device, connectedAt)).start();
+        }
+    }
+
+    MeasurementBus getMeasurementBus() {
+        return mMeasurementBus;
+    }
+
+    LatencyHistogram getDecodeLatency() {
+        return mDecodeLatency;
+    }
+
+    // Handles channel connection state changes on the dispatcher thread.
+    // Note that the logic of the state machine may need to be modified based on the HDP device.
+    // When the HDP device is connected, the received file descriptor is passed to the
+    // OxymeterReadThread to read the content.
+    private void handleChannelStateChange(BluetoothHealthAppConfiguration config, BluetoothDevice device, int prevState, int newState, ParcelFileDescriptor fd, int channelId) {
+        Log.i(TAG, "onHealthChannelStateChange()");
+        Log.i(TAG, String.format("prevState="+prevState+", newState="+newState));
+        if (prevState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED && newState == BluetoothHealth.STATE_CHANNEL_CONNECTING) {
+            Log.i(TAG, "CONNECTING: config="+config+", device="+device);
+        }
+        if ((prevState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED || prevState == BluetoothHealth.STATE_CHANNEL_CONNECTING) && newState == BluetoothHealth.STATE_CHANNEL_CONNECTED) {
+            Log.i(TAG, "CONNECTED: config="+config+", device="+device);
+            long connectedAt = System.nanoTime();
+            mConnectionScheduler.onConnected(device.getAddress(), config.getDataType(), channelId);
+            scheduleConnections();
+            // A known agent keeps its last values on screen instead of being reset to -1.
+            AgentContext previous = mAgentContexts.findLatest(device.getAddress());
+            for (int i = 0; i < mHealthAppConfig.size(); i++) {
+                if (config.equals(mHealthAppConfig.get(i))) {
+                    // Log.i(TAG, "channelId="+channelId);
+                    if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
+                        sendMessage(STATUS_BLOOD_PRESSURE_CREATE_CHANNEL, RESULT_OK);
+                        sendLastValue(previous, RECEIVED_SYS);
+                        sendLastValue(previous, RECEIVED_DIA);
+                        sendLastValue(previous, RECEIVED_PUL);
+                        startChannel(fd, device, config.getDataType(), connectedAt);
+                    }
+                    else if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
+                        sendMessage(STATUS_OXYMETER_CREATE_CHANNEL, RESULT_OK);
+                        sendLastValue(previous, RECEIVED_O2);
+                        sendLastValue(previous, RECEIVED_HEART_RATE);
+                        startChannel(fd, device, config.getDataType(), connectedAt);
+                    }
+                }
+            }
+        }
+        else if (prevState == BluetoothHealth.STATE_CHANNEL_CONNECTING && newState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED) {
+            Log.i(TAG, "DISCONNECTING: config="+config+", device="+device);
+            mConnectionScheduler.onConnectFailed(device.getAddress(), config.getDataType(), System.nanoTime());
+            scheduleConnections();
+            if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
+                sendMessage(STATUS_BLOOD_PRESSURE_CREATE_CHANNEL, RESULT_FAIL);
+            }
+            else if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
+                sendMessage(STATUS_OXYMETER_CREATE_CHANNEL, RESULT_FAIL);
+            }
+        }
+        else if (newState == BluetoothHealth.STATE_CHANNEL_DISCONNECTED) {
+            Log.i(TAG, "DISCONNECTED: config="+config+", device="+device);
+            mConnectionScheduler.onDisconnected(device.getAddress(), config.getDataType(), System.nanoTime());
+            scheduleConnections();
+            if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) {
+                sendMessage(STATUS_BLOOD_PRESSURE_DESTROY_CHANNEL, RESULT_OK);
+            }
+            else if(config.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
+                sendMessage(STATUS_OXYMETER_DESTROY_CHANNEL, RESULT_OK);
+            }
+        }
+    }
 
     // Sends an update message to registered UI client.
     private void sendMessage(int what, int value) {
         Log.i(TAG, "what="+what+", value="+value);
-        if (mClient == null) {
+        sendMessage(Message.obtain(null, what, value, 0));
+    }
+
+    // Queues a message for the registered UI client in the lane of its kind.  Alarms are sent
+    // right away if their lane is full; other messages are dropped.
+    private void sendMessage(Message message) {
+        int lane = laneOf(message.what);
+        if (!mDispatcher.submit(lane, message)) {
+            if (lane == PriorityDispatcher.LANE_ALARM) {
+                deliver(message);
+            }
+            else {
+                Log.w(TAG, "Dispatch lane " + lane + " is full, dropping message " + message.what);
+            }
+        }
+    }
+
+    private static int laneOf(int what) {
+        if (what == ALARM) {
+            return PriorityDispatcher.LANE_ALARM;
+        }
+        if (isReceivedValue(what) || what == BATCH || what == SHARED_RING_DOORBELL) {
+            return PriorityDispatcher.LANE_LIVE;
+        }
+        return PriorityDispatcher.LANE_BULK;
+    }
+
+    // Queues an APDU write ahead of all client traffic.  If the protocol lane is full the write
+    // is done on the calling thread, responses to agents are never dropped.
+    private void write(Runnable task) {
+        if (!mDispatcher.submit(PriorityDispatcher.LANE_PROTOCOL, task)) {
+            task.run();
+        }
+    }
+
+    // Sends a message to the registered UI client, on the dispatcher thread.
+    private void deliver(Message message) {
+        Messenger client = mClient;
+        if (client == null) {
             Log.i(TAG, "No clients registered.");
             return;
         }
 
         try {
-            mClient.send(Message.obtain(null, what, value, 0));
+            client.send(message);
         }
         catch (RemoteException e) {
             // Unable to reach client.
@@ -383,6 +1232,680 @@ public class BluetoothHDPService extends Service {
         }
     }
 
+    // Sends the value retained for a known agent.  Sends nothing if the agent is not known or has
+    // no value of the metric, so the client keeps what it shows.
+    private void sendLastValue(AgentContext context, int what) {
+        if (context != null && context.getLastValue(what) != AgentContext.NO_VALUE) {
+            sendMessage(what, toClientValue(context.getLastValue(what)));
+        }
+    }
+
+    // Client messages carry values as integers; values that are not a number are sent as -1.
+    private static int toClientValue(float value) {
+        return Float.isNaN(value) ? -1 : Math.round(value);
+    }
+
+    private static boolean isReceivedValue(int what) {
+        return what >= RECEIVED_SYS && what < RECEIVED_SYS + RECEIVED_COUNT;
+    }
+
+    // Forwards measurement bus events to the registered UI client, according to the delivery
+    // policy of each channel's data type.  Runs on its own thread, so a slow client never holds
+    // up the read threads.
+    private class ClientConsumer extends MeasurementBus.Consumer {
+        // Deferred observations per measurement bus producer.
+        private final DeliveryPolicy.Batch[] mBatches = new DeliveryPolicy.Batch[MeasurementBus.MAX_PRODUCERS];
+
+        ClientConsumer() {
+            super("client");
+        }
+
+        @Override
+        protected void onEvent(MeasurementBus.Producer producer, int what, float value, long timestamp) {
+            boolean received = isReceivedValue(what);
+            if (received && (mClientMapsSharedRing || getQuality() == MeasurementBus.QUALITY_ARTIFACT)) {
+                // Delivered through the shared ring, or rejected by the artifact filter.
+                return;
+            }
+            DeliveryPolicy policy = deliveryPolicyOf(producer.getDataType());
+            if (policy.isImmediate()) {
+                sendMessage(what, toClientValue(value));
+                return;
+            }
+            DeliveryPolicy.Batch batch = mBatches[producer.id];
+            if (batch != null && batch.policy != policy) {
+                flush(batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new DeliveryPolicy.Batch(policy);
+                mBatches[producer.id] = batch;
+            }
+            if (received) {
+                batch.add(what, value, timestamp);
+                if (batch.isDue(System.nanoTime())) {
+                    flush(batch);
+                }
+            }
+            else if (what == STATUS_BLOOD_PRESSURE_READ_DATA_DONE || what == STATUS_OXYMETER_READ_DATA_DONE) {
+                // The channel is closed, deliver what is left of it.
+                flush(batch);
+                sendMessage(what, toClientValue(value));
+            }
+            else if (what != STATUS_BLOOD_PRESSURE_READ_DATA && what != STATUS_OXYMETER_READ_DATA) {
+                sendMessage(what, toClientValue(value));
+            }
+        }
+
+        @Override
+        protected void onIdle() {
+            long now = System.nanoTime();
+            for (int i = 0; i < mBatches.length; i++) {
+                if (mBatches[i] != null && mBatches[i].isDue(now)) {
+                    flush(mBatches[i]);
+                }
+            }
+        }
+
+        @Override
+        protected long getIdleDeadline() {
+            long deadline = MeasurementBus.NO_DEADLINE;
+            for (int i = 0; i < mBatches.length; i++) {
+                if (mBatches[i] != null) {
+                    deadline = earlierDeadline(deadline, mBatches[i].getDeadline());
+                }
+            }
+            return deadline;
+        }
+
+        private void flush(DeliveryPolicy.Batch batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (batch.policy.mode == DeliveryPolicy.BATCHED) {
+                long[] timestamps = batch.copyTimestamps();
+                for (int i = 0; i < timestamps.length; i++) {
+                    timestamps[i] = MeasurementArchive.toWallClockMillis(timestamps[i]);
+                }
+                Bundle data = new Bundle();
+                data.putIntArray(KEY_BATCH_WHATS, batch.copyWhat());
+                data.putFloatArray(KEY_BATCH_VALUES, batch.copyValues());
+                data.putLongArray(KEY_BATCH_TIMESTAMPS, timestamps);
+                Message message = Message.obtain(null, BATCH, batch.getCount(), 0);
+                message.setData(data);
+                sendMessage(message);
+            }
+            else {
+                for (int what = RECEIVED_SYS; what < RECEIVED_SYS + RECEIVED_COUNT; what++) {
+                    if (batch.hasChanged(what)) {
+                        sendMessage(what, toClientValue(batch.getLatest(what)));
+                    }
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    // Writes measurement bus events to the shared sample ring and rings the client's doorbell
+    // once per batch, so a burst of samples costs a single binder transaction.
+    // Records of data types with a deferred delivery policy only ring the doorbell once that
+    // policy's count or delay is reached.  The events of all channels are merged in measurement
+    // time order, so the client reads multi-device data in order.
+    private class SharedRingConsumer extends TimeAlignedMerge {
+        private int mImmediate;
+        private int mDeferred;
+        private long mDeferredSince;
+        private int mDeferredMaxCount;
+        private long mDeferredMaxDelayNanos;
+
+        SharedRingConsumer() {
+            super("shared ring", SHARED_RING_REORDER_WINDOW_MILLIS, SHARED_RING_REORDER_CAPACITY);
+        }
+
+        @Override
+        protected void onEvent(MeasurementBus.Producer producer, int what, float value, long timestamp) {
+            if (getQuality() != MeasurementBus.QUALITY_ARTIFACT) {
+                super.onEvent(producer, what, value, timestamp);
+            }
+        }
+
+        @Override
+        protected void onAlignedEvent(MeasurementBus.Producer producer, int what, float value, long timestamp,
+                                      long measuredMillis) {
+            mSharedRing.write(what, producer.id, value, timestamp, measuredMillis);
+            DeliveryPolicy policy = deliveryPolicyOf(producer.getDataType());
+            if (policy.isImmediate()) {
+                mImmediate++;
+            }
+            else if (mDeferred++ == 0) {
+                mDeferredSince = timestamp;
+                mDeferredMaxCount = policy.maxCount;
+                mDeferredMaxDelayNanos = policy.maxDelayNanos;
+            }
+            else {
+                mDeferredMaxCount = Math.min(mDeferredMaxCount, policy.maxCount);
+                mDeferredMaxDelayNanos = Math.min(mDeferredMaxDelayNanos, policy.maxDelayNanos);
+            }
+        }
+
+        @Override
+        protected void onBatchEnd() {
+            super.onBatchEnd();
+            ringIfDue();
+        }
+
+        @Override
+        protected void onIdle() {
+            super.onIdle();
+            ringIfDue();
+        }
+
+        @Override
+        protected long getIdleDeadline() {
+            long deadline = super.getIdleDeadline();
+            if (mDeferred > 0) {
+                deadline = earlierDeadline(deadline, mDeferredSince + mDeferredMaxDelayNanos);
+            }
+            return deadline;
+        }
+
+        private void ringIfDue() {
+            boolean deferredDue = mDeferred > 0 && (mDeferred >= mDeferredMaxCount
+                    || System.nanoTime() - mDeferredSince >= mDeferredMaxDelayNanos);
+            if (mImmediate == 0 && !deferredDue) {
+                return;
+            }
+            int pending = mImmediate + mDeferred;
+            mImmediate = 0;
+            mDeferred = 0;
+            if (mClient != null && mClientMapsSharedRing) {
+                sendMessage(Message.obtain(null, SHARED_RING_DOORBELL, pending, 0));
+            }
+        }
+    }
+
+    // Delivers alarm state changes to the registered UI client at raised thread priority, and
+    // measures the time from APDU arrival to delivery.  Nothing is logged per alarm unless debug
+    // logging is enabled; an exceeded budget is logged at most every 10 seconds.
+    private class AlarmConsumer extends MeasurementBus.Consumer {
+        private final LatencyHistogram mAlarmLatency = new LatencyHistogram("alarm");
+        private long mLastBudgetWarning = System.nanoTime() - ALARM_BUDGET_WARNING_INTERVAL_NANOS;
+
+        AlarmConsumer() {
+            super("alarm");
+        }
+
+        @Override
+        protected void onStart() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        }
+
+        @Override
+        protected void onEvent(MeasurementBus.Producer producer, int what, float condition, long timestamp) {
+            mLastValues.putAlarm(producer.getAddress(), what, (int) condition, timestamp);
+            if (mClient != null) {
+                sendMessage(Message.obtain(null, ALARM, what, (int) condition));
+            }
+            long now = System.nanoTime();
+            long latency = now - timestamp;
+            mAlarmLatency.record(latency);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Alarm " + condition + " for " + what + " of " + producer.getAddress() + " after " + latency / 1000 + "us");
+            }
+            if (latency > ALARM_LATENCY_BUDGET_NANOS && now - mLastBudgetWarning >= ALARM_BUDGET_WARNING_INTERVAL_NANOS
+                    && mAlarmLatency.getValueAtPercentile(99) > ALARM_LATENCY_BUDGET_NANOS) {
+                mLastBudgetWarning = now;
+                Log.w(TAG, "Alarm latency budget exceeded: " + mAlarmLatency);
+            }
+        }
+    }
+
+    // Evaluates the alarm rules for a decoded value, publishes it on the measurement bus and
+    // retains it in the agent's context.  Alarm state changes are published first, on the alarm
+    // bus.  The first value on a connection completes the (re)connect latency measurement.
+    // Artifacts are published with their quality flag only; they neither reach the alarm rules
+    // nor replace the agent's last value.  measuredMillis is the time of measurement on the
+    // manager's wall clock.
+    private void deliverValue(AgentContext context, MeasurementBus.Producer producer, MeasurementBus.Producer alarmProducer,
+                              int what, float value, int quality, long arrival, long measuredMillis) {
+        if (quality != MeasurementBus.QUALITY_ARTIFACT) {
+            int condition = mAlarmEngine.evaluate(producer.id, what, value, arrival);
+            if (condition != AlarmEngine.NO_CHANGE) {
+                alarmProducer.publish(what, condition, arrival);
+            }
+        }
+        mDecodeLatency.record(System.nanoTime() - arrival);
+        producer.publish(what, value, quality, arrival, measuredMillis);
+        if (context == null || quality == MeasurementBus.QUALITY_ARTIFACT) {
+            return;
+        }
+        long latency = context.onValueDelivered(what, value, System.nanoTime());
+        if (mSnapshot != null) {
+            mSnapshot.putValue(context, what, value);
+        }
+        if (latency >= 0) {
+            LatencyHistogram histogram = context.isReconnect() ? mReconnectLatency : mFirstConnectLatency;
+            histogram.record(latency);
+            Log.i(TAG, histogram.toString());
+        }
+    }
+
+    // Looks up the context of the agent that sent the given Association Request (AARQ) and
+    // records the association.
+    // AARQ layout: System-Id length at bytes 34-35, System-Id at 36-43, Dev-Config-Id at 44-45.
+    private AgentContext associate(BluetoothDevice device, byte[] aarq, long connectedAt) {
+        long systemId = 0;
+        for (int i = 36; i < 44; i++) {
+            systemId = (systemId << 8) | (aarq[i] & 0xff);
+        }
+        int devConfigId = (byteToUnsignedInt(aarq[44]) << 8) | byteToUnsignedInt(aarq[45]);
+        AgentContext context = mAgentContexts.obtain(device.getAddress(), systemId);
+        context.onAssociation(devConfigId, connectedAt);
+        if (mSnapshot != null) {
+            mSnapshot.putAgent(context);
+        }
+        Log.i(TAG, "Association from " + AgentContext.key(device.getAddress(), systemId)
+                + ", dev-config-id=" + devConfigId + (context.canSkipMds() ? " (known, skipping GET MDS)" : ""));
+        return context;
+    }
+
+    // Returns true if the APDU is a response to a manager request (PRST with a rors-*, roer or
+    // rorj choice).
+    private static boolean isResponse(byte[] data) {
+        return data[0] == (byte) 0xE7 && (data[8] == (byte) 0x02 || data[8] == (byte) 0x03 || data[8] == (byte) 0x04);
+    }
+
+    /**
+     * Matches a response APDU to the outstanding request of the channel with the same invoke-id.
+     * Returns the InvokeTable kind of the request if it succeeded, InvokeTable.NONE otherwise.
+     */
+    private int handleResponse(byte[] data, InvokeTable invocations, AgentContext context, long arrival) {
+        int invokeId = readUnsignedShort(data, 6);
+        int kind = invocations.complete(invokeId);
+        if (kind == InvokeTable.NONE) {
+            Log.w(TAG, "Response to unknown or expired invoke-id " + invokeId);
+            return InvokeTable.NONE;
+        }
+        if (data[8] != (byte) 0x02) {
+            Log.w(TAG, "Request " + kind + " with invoke-id " + invokeId + " rejected, choice=" + readUnsignedShort(data, 8));
+            return InvokeTable.NONE;
+        }
+        if (kind == InvokeTable.GET_MDS && context != null) {
+            readMdsClock(data, context, MeasurementArchive.toWallClockMillis(arrival));
+            context.onMdsReceived();
+            if (mSnapshot != null) {
+                mSnapshot.putAgent(context);
+            }
+        }
+        return kind;
+    }
+
+    /**
+     * Takes a clock offset sample from the Date-and-Time (Absolute-Time) attribute of a GET MDS
+     * response.  Layout: object handle at bytes 14-15, attribute count at 16-17 and list length at
+     * 18-19, followed by the attribute id, length and value of each attribute.
+     */
+    private static void readMdsClock(byte[] data, AgentContext context, long arrivalMillis) {
+        if (data.length < 20) {
+            return;
+        }
+        int count = readUnsignedShort(data, 16);
+        int position = 20;
+        for (int i = 0; i < count && position + 4 <= data.length; i++) {
+            int id = readUnsignedShort(data, position);
+            int length = readUnsignedShort(data, position + 2);
+            if (id == Nomenclature.codeOf(Nomenclature.MDC_ATTR_TIME_ABS) && length == AbsoluteTime.LENGTH
+                    && position + 4 + length <= data.length) {
+                long agentMillis = AbsoluteTime.decode(data, position + 4);
+                if (agentMillis != AbsoluteTime.INVALID) {
+                    context.onClockSample(agentMillis, arrivalMillis);
+                }
+                return;
+            }
+            position += 4 + length;
+        }
+    }
+
+    /**
+     * Delivers the fixed scan report carried by the response to an MDS-Data-Request in single
+     * response mode, and lets the poller adapt its interval.  Layout: action-type at bytes 14-15,
+     * data-req-result at 22-23, event-type at 24-25, ScanReportInfoFixed from 28.
+     */
+    private void deliverDataResponse(byte[] data, int dataType, AgentContext context, DataPollTask poll,
+                                     MeasurementBus.Producer producer, MeasurementBus.Producer alarmProducer, long arrival) {
+        if (data.length < 36 || data[9] != (byte) 0x07 || poll == null || context == null) {
+            return;
+        }
+        int result = readUnsignedShort(data, 22);
+        if (result != 0) {
+            Log.w(TAG, "Data request failed, data-req-result=" + result);
+            return;
+        }
+        if (readUnsignedShort(data, 24) == Nomenclature.codeOf(Nomenclature.MDC_NOTI_SCAN_REPORT_FIXED)) {
+            deliverFixedScanReport(data, 28, dataType, context, producer, alarmProducer, arrival);
+        }
+        poll.poller.onResponse(context, arrival);
+    }
+
+    /**
+     * Starts polling an agent that announced support for manager-initiated data requests in its
+     * Association Request.  Returns the poll task, or null if the agent does not support them.
+     */
+    private DataPollTask startPolling(ParcelFileDescriptor fd, SessionTimer timer, byte[] aarq) {
+        int mode = DataRequestPoller.modeOf(aarq);
+        if (mode == 0) {
+            return null;
+        }
+        DataPollTask poll = new DataPollTask(fd, timer, new DataRequestPoller(mode,
+                DATA_POLL_MIN_INTERVAL_MILLIS, DATA_POLL_MAX_INTERVAL_MILLIS, DATA_POLL_STABLE_CHANGE, mDataAge));
+        // The first request goes out after the Association Response and GET MDS are written.
+        mMainHandler.postDelayed(poll, DATA_POLL_MIN_INTERVAL_MILLIS);
+        return poll;
+    }
+
+    // Issues the MDS-Data-Requests of one association on the main thread.
+    private class DataPollTask implements Runnable {
+        final DataRequestPoller poller;
+        private final ParcelFileDescriptor mFd;
+        private final SessionTimer mTimer;
+        private volatile boolean mCancelled;
+
+        DataPollTask(ParcelFileDescriptor fd, SessionTimer timer, DataRequestPoller poller) {
+            mFd = fd;
+            mTimer = timer;
+            this.poller = poller;
+        }
+
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            // Skip a round while the previous request is unanswered.
+            if (!mTimer.invocations.isOutstanding(InvokeTable.DATA_REQUEST)) {
+                int invokeId = mTimer.invocations.allocate(InvokeTable.DATA_REQUEST, System.nanoTime() + INVOKE_TIMEOUT_NANOS);
+                if (invokeId >= 0) {
+                    mTimer.awaitResponse();
+                    write(new ApduWriteTask(mFd, poller.request(invokeId), false));
+                }
+            }
+            if (poller.isRepeating()) {
+                mMainHandler.postDelayed(this, poller.getIntervalMillis());
+            }
+        }
+
+        // Stops polling, when the association or the channel ends.
+        void cancel() {
+            mCancelled = true;
+            mMainHandler.removeCallbacks(this);
+            Log.i(TAG, poller.toString());
+        }
+    }
+
+    // Writes an APDU built by the caller, e.g. a data request, and optionally closes the channel
+    // afterwards, which ends its read thread.
+    private class ApduWriteTask implements Runnable {
+        private ParcelFileDescriptor mFd;
+        private byte[] mApdu;
+        private boolean mClose;
+
+        public ApduWriteTask(ParcelFileDescriptor fd, byte[] apdu, boolean close) {
+            mFd = fd;
+            mApdu = apdu;
+            mClose = close;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mApdu != null) {
+                    (new FileOutputStream(mFd.getFileDescriptor())).write(mApdu);
+                    mBytesSent.addAndGet(mApdu.length);
+                }
+            } catch (IOException ioe) {
+                Log.w(TAG, "Cannot write APDU", ioe);
+            }
+            if (mClose) {
+                try {
+                    mFd.close();
+                } catch (IOException e) {
+                    // Do nothing.
+                }
+            }
+        }
+    }
+
+    /**
+     * Protocol timeout of one channel on the shared timing wheel.  A single timer covers the
+     * phase the session is in: waiting for the Association Request (TO_assoc) or for responses to
+     * the manager's requests (TO_get and the confirmed action timeout).  An agent that does not
+     * associate in time is disconnected; one that leaves a request unanswered is aborted and
+     * disconnected, so a hung agent never blocks its read thread forever.  The configuration and
+     * release timeouts do not apply, since the manager always accepts the configuration and never
+     * initiates a release; after a release the channel waits for a new association.
+     */
+    private class SessionTimer extends TimingWheel.Timer {
+        // Phases.
+        private static final int ASSOCIATION = 1;
+        private static final int RESPONSE = 2;
+
+        final InvokeTable invocations = new InvokeTable(MAX_OUTSTANDING_INVOCATIONS);
+        private final ParcelFileDescriptor mFd;
+        private final String mAddress;
+        private final int[] mExpired = new int[MAX_OUTSTANDING_INVOCATIONS];
+        private volatile int mPhase;
+
+        SessionTimer(ParcelFileDescriptor fd, String address) {
+            mFd = fd;
+            mAddress = address;
+        }
+
+        // Waits for an Association Request, on a new channel or after a release.
+        void awaitAssociation() {
+            invocations.clear();
+            mPhase = ASSOCIATION;
+            mTimeouts.schedule(this, ASSOCIATION_TIMEOUT_MILLIS);
+        }
+
+        void onAssociated() {
+            invocations.clear();
+            mPhase = RESPONSE;
+            mTimeouts.cancel(this);
+        }
+
+        // Called after a request has been added to the invoke table.
+        void awaitResponse() {
+            mPhase = RESPONSE;
+            if (!mTimeouts.isScheduled(this)) {
+                mTimeouts.schedule(this, INVOKE_TIMEOUT_MILLIS);
+            }
+        }
+
+        // Called after a response completed a request.
+        void onResponse() {
+            if (invocations.size() == 0) {
+                mTimeouts.cancel(this);
+            }
+        }
+
+        void cancel() {
+            mTimeouts.cancel(this);
+        }
+
+        @Override
+        protected void onExpired() {
+            if (mPhase == ASSOCIATION) {
+                Log.w(TAG, mAddress + " did not associate within " + ASSOCIATION_TIMEOUT_MILLIS + " ms, disconnecting");
+                write(new ApduWriteTask(mFd, null, true));
+                return;
+            }
+            long now = System.nanoTime();
+            int count = invocations.expire(now, mExpired);
+            if (count == 0) {
+                // The request this timeout was set for has been answered; wait for the next one.
+                long deadline = invocations.nextDeadline();
+                if (deadline != Long.MAX_VALUE) {
+                    mTimeouts.schedule(this, Math.max(0, deadline - now) / 1000000L);
+                }
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                Log.w(TAG, "Request with invoke-id " + mExpired[i] + " to " + mAddress + " timed out, aborting");
+            }
+            byte[] abort = new byte[] { (byte) 0xE6, (byte) 0x00,
+                    (byte) 0x00, (byte) 0x02,
+                    (byte) 0x00, (byte) ABORT_RESPONSE_TIMEOUT };
+            write(new ApduWriteTask(mFd, abort, true));
+        }
+    }
+
+    // Returns true if the APDU is an event report (PRST, roiv-cmip-event-report or its confirmed
+    // variant) carrying a fixed scan report, i.e. event type MDC_NOTI_SCAN_REPORT_FIXED.
+    private static boolean isFixedScanReport(byte[] data) {
+        return data.length > 29 && data[0] == (byte) 0xE7 && data[8] == (byte) 0x01
+                && readUnsignedShort(data, 18) == Nomenclature.codeOf(Nomenclature.MDC_NOTI_SCAN_REPORT_FIXED);
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return (byteToUnsignedInt(data[offset]) << 8) | byteToUnsignedInt(data[offset + 1]);
+    }
+
+    // Dev-Configuration-Id of the standard configuration of a data type, used when an agent
+    // reports handles of an extended configuration that is not in the nomenclature table.
+    private static int standardConfigOf(int dataType) {
+        return dataType == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE ? 700 : 400;
+    }
+
+    // Returns the RECEIVED_* code a metric is delivered with, or -1 if it is not delivered.
+    private static int receivedCodeOf(int metric) {
+        switch (metric) {
+            case Nomenclature.MDC_PRESS_BLD_NONINV_SYS:
+                return RECEIVED_SYS;
+            case Nomenclature.MDC_PRESS_BLD_NONINV_DIA:
+                return RECEIVED_DIA;
+            case Nomenclature.MDC_PULS_RATE_NON_INV:
+                return RECEIVED_PUL;
+            case Nomenclature.MDC_PULS_OXIM_SAT_O2:
+                return RECEIVED_O2;
+            case Nomenclature.MDC_PULS_OXIM_PULS_RATE:
+                return RECEIVED_HEART_RATE;
+            default:
+                return -1;
+        }
+    }
+
+    // Decodes the observations of a fixed scan report and delivers them.  Object handles are
+    // resolved to metrics through the nomenclature table, using the agent's Dev-Configuration-Id.
+    // Layout: observation count at bytes 26-27, observations from byte 30, each being a handle,
+    // a length and the observed value attributes of that handle.
+    private void deliverFixedScanReport(byte[] data, int dataType, AgentContext context, MeasurementBus.Producer producer,
+                                        MeasurementBus.Producer alarmProducer, long arrival) {
+        // The ScanReportInfoFixed of an event report starts at byte 22.
+        deliverFixedScanReport(data, 22, dataType, context, producer, alarmProducer, arrival);
+    }
+
+    // Delivers a ScanReportInfoFixed at the given offset: data-req-id, scan-report-no, then the
+    // observation count and length followed by the observations.
+    private void deliverFixedScanReport(byte[] data, int offset, int dataType, AgentContext context,
+                                        MeasurementBus.Producer producer, MeasurementBus.Producer alarmProducer, long arrival) {
+        if (offset + 8 > data.length) {
+            return;
+        }
+        int devConfigId = context != null ? context.getDevConfigId() : AgentContext.NO_CONFIG;
+        long arrivalMillis = MeasurementArchive.toWallClockMillis(arrival);
+        int count = readUnsignedShort(data, offset + 4);
+        int position = offset + 8;
+        for (int i = 0; i < count && position + 4 <= data.length; i++) {
+            int handle = readUnsignedShort(data, position);
+            int length = readUnsignedShort(data, position + 2);
+            int value = position + 4;
+            int end = Math.min(value + length, data.length);
+            int index = Nomenclature.handleIndexOf(devConfigId, handle);
+            if (index == Nomenclature.NOT_FOUND) {
+                index = Nomenclature.handleIndexOf(standardConfigOf(dataType), handle);
+            }
+            if (index != Nomenclature.NOT_FOUND) {
+                if (Nomenclature.handleValueType(index) == Nomenclature.MDC_ATTR_NU_CMPD_VAL_OBS_BASIC) {
+                    // Compound: count and length, followed by one SFLOAT per component.
+                    int reported = value + 4 <= end ? readUnsignedShort(data, value) : 0;
+                    int components = Math.min(reported, Nomenclature.componentCount(index));
+                    if (value + 4 + components * 2 > end) {
+                        Log.w(TAG, "Truncated observation of handle " + handle);
+                    }
+                    else {
+                        float[] values = mComponentValues[producer.id];
+                        MderFloat.decodeSFloats(data, value + 4, components, values, 0);
+                        long measured = Nomenclature.handleHasTime(index)
+                                ? measuredMillis(data, value + 4 + reported * 2, end, context, arrivalMillis) : arrivalMillis;
+                        for (int c = 0; c < components; c++) {
+                            deliverObservation(Nomenclature.component(index, c), values[c],
+                                    context, producer, alarmProducer, arrival, measured);
+                        }
+                    }
+                }
+                else if (Nomenclature.handleValueType(index) == Nomenclature.MDC_ATTR_NU_VAL_OBS_BASIC) {
+                    if (value + 2 > end) {
+                        Log.w(TAG, "Truncated observation of handle " + handle);
+                    }
+                    else {
+                        long measured = Nomenclature.handleHasTime(index)
+                                ? measuredMillis(data, value + 2, end, context, arrivalMillis) : arrivalMillis;
+                        deliverObservation(Nomenclature.handleMetric(index), MderFloat.decodeSFloat(data, value),
+                                context, producer, alarmProducer, arrival, measured);
+                    }
+                }
+            }
+            else {
+                Log.i(TAG, "Unknown handle " + handle + " for dev-config-id " + devConfigId);
+            }
+            position = value + length;
+        }
+    }
+
+    /**
+     * Returns the time an observation was measured on the manager's wall clock, from the
+     * Absolute-Time-Stamp at the given position, or its arrival time if the agent's clock is not
+     * known.  Each time stamp also is a clock offset sample of the agent.
+     */
+    private long measuredMillis(byte[] data, int position, int end, AgentContext context, long arrivalMillis) {
+        if (context == null || position + AbsoluteTime.LENGTH > end) {
+            return arrivalMillis;
+        }
+        long agentMillis = AbsoluteTime.decode(data, position);
+        if (agentMillis == AbsoluteTime.INVALID) {
+            return arrivalMillis;
+        }
+        if (context.onClockSample(agentMillis, arrivalMillis) && mSnapshot != null) {
+            mSnapshot.putAgent(context);
+        }
+        return context.toManagerMillis(agentMillis);
+    }
+
+    // Delivers the decoded observed value of a metric.  Oximeter values pass the artifact filter
+    // first.  The standard configurations report no Measurement-Status, so the filter only sees
+    // the status implied by the SFLOAT special values.
+    private void deliverObservation(int metric, float value, AgentContext context, MeasurementBus.Producer producer,
+                                    MeasurementBus.Producer alarmProducer, long arrival, long measuredMillis) {
+        int what = receivedCodeOf(metric);
+        if (what < 0) {
+            return;
+        }
+        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, Nomenclature.labelOf(metric) + " is " + value);
+        }
+        int quality = MeasurementBus.QUALITY_GOOD;
+        if (producer.getDataType() == BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) {
+            int status = Float.isNaN(value) ? OximetryFilter.MSMT_NOT_AVAILABLE : 0;
+            quality = mOximetryFilter.filter(producer.id, what, value, status, arrival);
+        }
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            // NaN or NRes: the agent has no valid value for this metric.  +/-INFINITY only says
+            // the value is out of the agent's range, which clients, alarms, statistics and the
+            // archive cannot use either.
+            return;
+        }
+        deliverValue(context, producer, alarmProducer, what, value, quality, arrival, measuredMillis);
+    }
+
     public String byte2hex(byte[] b)
     {
         // String Buffer can be used instead
@@ -416,102 +1939,107 @@ public class BluetoothHDPService extends Service {
     // a health manager which implements the IEEE 11073-xxxxx specifications.
     private class BloodPressureReadThread extends Thread {
         private ParcelFileDescriptor mFd;
-
-        public BloodPressureReadThread(ParcelFileDescriptor fd) {
+        private BluetoothDevice mDevice;
+        private long mConnectedAt;
+        // Context of the associated agent, set once the Association Request has been received.
+        private AgentContext mContext;
+        // This channel's producers on the measurement and alarm buses.
+        private MeasurementBus.Producer mProducer;
+        private MeasurementBus.Producer mAlarmProducer;
+        // Outstanding requests of this association.
+        private SessionTimer mTimer;
+        // Scheduled data requests, if the agent supports them.
+        private DataPollTask mPoll;
+
+        public BloodPressureReadThread(ParcelFileDescriptor fd, BluetoothDevice device, long connectedAt) {
             super();
             mFd = fd;
+            mDevice = device;
+            mConnectedAt = connectedAt;
         }
 
         @Override
         public void run() {
+            mProducer = mMeasurementBus.openProducer(mDevice.getAddress(), BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE);
+            mAlarmProducer = mProducer != null
+                    ? mAlarmBus.openProducer(mDevice.getAddress(), BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE) : null;
+            if (mAlarmProducer == null) {
+                // More channels than producer slots; refuse this one rather than fail the service.
+                Log.e(TAG, "No producer slot left, closing the channel of " + mDevice.getAddress());
+                if (mProducer != null) {
+                    mProducer.close();
+                }
+                MeasurementArchive.closeQuietly(mFd);
+                return;
+            }
+            mAlarmEngine.reset(mProducer.id);
+            mTimer = new SessionTimer(mFd, mDevice.getAddress());
+            mTimer.awaitAssociation();
             FileInputStream fis = new FileInputStream(mFd.getFileDescriptor());
             byte data[] = new byte[300];
             try {
-                while(fis.read(data) > -1) {
+                int length;
+                while((length = fis.read(data)) > -1) {
+                    long arrival = System.nanoTime();
+                    mBytesReceived.addAndGet(length);
                     // At this point, the application can pass the raw data to a parser that
                     // has implemented the IEEE 11073-xxxxx specifications.  Instead, this sample
                     // simply indicates that some data has been received.
-                    Log.i(TAG, "data="+byte2hex(data));
+                    if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "data=" + byte2hex(data));
+                    }
                     if (data[0] != (byte) 0x00) {
                         if(data[0] == (byte) 0xE2) {
                             Log.i(TAG, "E2");
-                            //data_AR
-                            bloodPressureCommunicationState = ASSOCIATION_RESPONSE;
-                            (new BloodPressureWriteThread(mFd)).start();
-                            try {
-                                sleep(100);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
+                            mContext = associate(mDevice, data, mConnectedAt);
+                            mTimer.onAssociated();
+                            if (mContext.canSkipMds()) {
+                                //data_AR
+                                write(new BloodPressureWriteTask(mFd, 0, ASSOCIATION_RESPONSE));
+                            }
+                            else {
+                                //data_AR pipelined with get_MDS (i.e. get Medical Device System)
+                                int invokeId = mTimer.invocations.allocate(InvokeTable.GET_MDS, arrival + INVOKE_TIMEOUT_NANOS);
+                                mTimer.awaitResponse();
+                                write(new BloodPressureWriteTask(mFd, invokeId, ASSOCIATION_RESPONSE, GET_MDS));
                             }
-                            //get_MDS (i.e. get Medical Device System)
-                            bloodPressureCommunicationState = GET_MDS;
-                            (new BloodPressureWriteThread(mFd)).start();
+                            if (mPoll != null) {
+                                mPoll.cancel();
+                            }
+                            mPoll = startPolling(mFd, mTimer, data);
                         }
                         else if (data[0] == (byte)0xE7){
                             Log.i(TAG, "E7");
 
                             //work for legacy device...
-                            if (data[18] == (byte) 0x0d && data[19] == (byte) 0x1d)  // fixed report, cf. p. 40 (chapter E.5.1) of ISO/IEEE 11073-10407:2010(E) (http://ieeexplore.ieee.org/stamp/stamp.jsp?tp=&arnumber=5682320):
+                            if (isFixedScanReport(data))  // fixed report, cf. p. 40 (chapter E.5.1) of ISO/IEEE 11073-10407:2010(E) (http://ieeexplore.ieee.org/stamp/stamp.jsp?tp=&arnumber=5682320):
                             {
-                                bloodPressureCommunicationState = DATA_RECEIVED_RESPONSE;
-                                //set invoke id so get correct response
-                                invoke = new byte[] { data[6], data[7]};
+                                //echo the invoke id so the agent gets the correct response
+                                int invokeId = readUnsignedShort(data, 6);
                                 //write back response
-                                (new BloodPressureWriteThread(mFd)).start();
+                                write(new BloodPressureWriteTask(mFd, invokeId, DATA_RECEIVED_RESPONSE));
                                 //parse data!!
-                                int length = data[21];
-                                Log.i(TAG, "length is " + length);
-                                // check data-req-id
-                                int report_no = data[22+3];
-                                int number_of_data_packets = data[22+5];
-                                Log.i(TAG, "number_of_data_packets="+number_of_data_packets+", hex was:"+String.format("%02X ", data[22+5]));
-                                // packet_start starts from handle 0 byte
-                                int packet_start = 30;
-                                final int SYS_DIA_MAP_DATA = 1;
-                                final int PULSE_DATA = 2;
-                                final int ERROR_CODE_DATA = 3;
-                                for (int i = 0; i < number_of_data_packets; i++)
-                                {
-                                    int obj_handle = data[packet_start+1];
-                                    Log.i(TAG, "obj_handle="+obj_handle+" hex was:"+String.format("%02X ", obj_handle));
-                                    switch (obj_handle)
-                                    {
-                                        case SYS_DIA_MAP_DATA:
-                                            int sys = byteToUnsignedInt(data[packet_start+9]);
-                                            int dia = byteToUnsignedInt(data[packet_start+11]);
-                                            int map = byteToUnsignedInt(data[packet_start+13]);
-                                            //create team string... 9+13~9+20
-                                            Log.i(TAG, "1 sys is "+ sys + ", hex was:"+String.format("%02X ", data[packet_start+9]));
-                                            sendMessage(RECEIVED_SYS, sys);
-                                            Log.i(TAG, "2 dia is "+ dia + ", hex was:"+String.format("%02X ", data[packet_start+11]));
-                                            sendMessage(RECEIVED_DIA, dia);
-                                            Log.i(TAG, "3 map is "+ map + ", hex was:"+String.format("%02X ", data[packet_start+13]));
-                                            //test
-                                            // sendMessage(RECEIVED_MAP, map);
-                                            break;
-                                        case PULSE_DATA:
-                                            //parse
-                                            int pulse = byteToUnsignedInt(data[packet_start+5]);
-                                            Log.i(TAG, "4 pulse is " + pulse + ", hex was:"+String.format("%02X ", data[packet_start+5]));
-                                            sendMessage(RECEIVED_PUL, pulse);
-                                            break;
-                                        case ERROR_CODE_DATA:
-                                            //need more signal
-                                            break;
-                                    }
-                                    packet_start += 4 + data[packet_start+3];	//4 = ignore beginning four bytes
-                                    Log.i(TAG, "increment=" + (4 + data[packet_start+3])+", hex was:"+String.format("%02X ", data[packet_start+3]));
-                                }
+                                deliverFixedScanReport(data, BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE,
+                                        mContext, mProducer, mAlarmProducer, arrival);
                             }
-                            else
+                            else if (isResponse(data))
                             {
-                                bloodPressureCommunicationState = GET_MDS;
+                                int kind = handleResponse(data, mTimer.invocations, mContext, arrival);
+                                mTimer.onResponse();
+                                if (kind == InvokeTable.DATA_REQUEST) {
+                                    deliverDataResponse(data, BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_BLOOD_PRESSURE,
+                                            mContext, mPoll, mProducer, mAlarmProducer, arrival);
+                                }
                             }
                         }
                         else if (data[0] == (byte) 0xE4)
                         {
-                            bloodPressureCommunicationState = ASSOCIATION_RELEASE_RESPONSE;
-                            (new BloodPressureWriteThread(mFd)).start();
+                            if (mPoll != null) {
+                                mPoll.cancel();
+                                mPoll = null;
+                            }
+                            mTimer.awaitAssociation();
+                            write(new BloodPressureWriteTask(mFd, 0, ASSOCIATION_RELEASE_RESPONSE));
 //	                		sendMessage();
                         }
                         //zero out the data
@@ -519,11 +2047,15 @@ public class BluetoothHDPService extends Service {
                             data[i] = (byte) 0x00;
                         }
                     }
-                    sendMessage(STATUS_BLOOD_PRESSURE_READ_DATA, 0);
+                    mProducer.publish(STATUS_BLOOD_PRESSURE_READ_DATA, 0, arrival);
                 }
             }
             catch(IOException ioe) {
 
+            }
+            catch (RuntimeException e) {
+                // A malformed APDU ends this channel only.
+                Log.e(TAG, "Cannot handle APDU of " + mDevice.getAddress() + ", closing the channel", e);
             }
             if (mFd != null) {
                 try {
@@ -532,17 +2064,29 @@ public class BluetoothHDPService extends Service {
                     // Do nothing.
                 }
             }
-            sendMessage(STATUS_BLOOD_PRESSURE_READ_DATA_DONE, 0);
+            if (mPoll != null) {
+                mPoll.cancel();
+            }
+            mTimer.cancel();
+            mProducer.publish(STATUS_BLOOD_PRESSURE_READ_DATA_DONE, 0, System.nanoTime());
+            mProducer.close();
+            mAlarmProducer.close();
         }
     }
 
 
-    private class BloodPressureWriteThread extends Thread {
+    private class BloodPressureWriteTask implements Runnable {
         private ParcelFileDescriptor mFd;
+        // Invoke-id of the GET MDS request, or of the event report a Data Received Response
+        // confirms.
+        private int mInvokeId;
+        // APDUs to send, in order.
+        private int[] mApdus;
 
-        public BloodPressureWriteThread(ParcelFileDescriptor fd) {
-            super();
+        public BloodPressureWriteTask(ParcelFileDescriptor fd, int invokeId, int... apdus) {
             mFd = fd;
+            mInvokeId = invokeId;
+            mApdus = apdus;
         }
 
         @Override
@@ -578,7 +2122,7 @@ public class BluetoothHDPService extends Service {
             final byte get_MDS[] = new byte[] { 	    (byte) 0xE7, (byte) 0x00,
                     (byte) 0x00, (byte) 0x0E,
                     (byte) 0x00, (byte) 0x0C,
-                    (byte) 0x00, (byte) 0x24,
+                    (byte) (mInvokeId >> 8), (byte) mInvokeId,
                     (byte) 0x01, (byte) 0x03,
                     (byte) 0x00, (byte) 0x06,
                     (byte) 0x00, (byte) 0x00,
@@ -592,7 +2136,7 @@ public class BluetoothHDPService extends Service {
             final byte DRR[] = new byte[] { 		    (byte) 0xE7, (byte) 0x00,
                     (byte) 0x00, (byte) 0x12,
                     (byte) 0x00, (byte) 0x10,
-                    (byte) invoke[0], (byte) invoke[1],
+                    (byte) (mInvokeId >> 8), (byte) mInvokeId,
                     (byte) 0x02, (byte) 0x01,
                     (byte) 0x00, (byte) 0x0A,
                     (byte) 0x00, (byte) 0x00,
@@ -609,26 +2153,32 @@ public class BluetoothHDPService extends Service {
                     (byte) 0x00, (byte) 0x00 };
 
             try {
-                Log.i(TAG, String.valueOf(bloodPressureCommunicationState));
-                if (bloodPressureCommunicationState == ASSOCIATION_RESPONSE)
-                {
-                    fos.write(AR);
-                    Log.i(TAG, "Blood Pressure Association Responsed!");
-                }
-                else if (bloodPressureCommunicationState == GET_MDS)
-                {
-                    fos.write(get_MDS);
-                    Log.i(TAG, "Blood Pressure Get MDS object attributes!");
-                }
-                else if (bloodPressureCommunicationState == DATA_RECEIVED_RESPONSE)
-                {
-                    fos.write(DRR);
-                    Log.i(TAG, "Blood Pressure Data Responsed!");
-                }
-                else if (bloodPressureCommunicationState == ASSOCIATION_RELEASE_RESPONSE)
-                {
-                    fos.write(ARR);
-                    Log.i(TAG, "Blood Pressure Association Released!");
+                for (int apdu : mApdus) {
+                    Log.i(TAG, String.valueOf(apdu));
+                    if (apdu == ASSOCIATION_RESPONSE)
+                    {
+                        fos.write(AR);
+                        mBytesSent.addAndGet(AR.length);
+                        Log.i(TAG, "Blood Pressure Association Responsed!");
+                    }
+                    else if (apdu == GET_MDS)
+                    {
+                        fos.write(get_MDS);
+                        mBytesSent.addAndGet(get_MDS.length);
+                        Log.i(TAG, "Blood Pressure Get MDS object attributes!");
+                    }
+                    else if (apdu == DATA_RECEIVED_RESPONSE)
+                    {
+                        fos.write(DRR);
+                        mBytesSent.addAndGet(DRR.length);
+                        Log.i(TAG, "Blood Pressure Data Responsed!");
+                    }
+                    else if (apdu == ASSOCIATION_RELEASE_RESPONSE)
+                    {
+                        fos.write(ARR);
+                        mBytesSent.addAndGet(ARR.length);
+                        Log.i(TAG, "Blood Pressure Association Released!");
+                    }
                 }
             } catch(IOException ioe) {}
         }
@@ -639,18 +2189,50 @@ public class BluetoothHDPService extends Service {
     // a health manager which implements the IEEE 11073-xxxxx specifications.
     private class OxymeterReadThread extends Thread {
         private ParcelFileDescriptor mFd;
-
-        public OxymeterReadThread(ParcelFileDescriptor fd) {
+        private BluetoothDevice mDevice;
+        private long mConnectedAt;
+        // Context of the associated agent, set once the Association Request has been received.
+        private AgentContext mContext;
+        // This channel's producers on the measurement and alarm buses.
+        private MeasurementBus.Producer mProducer;
+        private MeasurementBus.Producer mAlarmProducer;
+        // Outstanding requests of this association.
+        private SessionTimer mTimer;
+        // Scheduled data requests, if the agent supports them.
+        private DataPollTask mPoll;
+
+        public OxymeterReadThread(ParcelFileDescriptor fd, BluetoothDevice device, long connectedAt) {
             super();
             mFd = fd;
+            mDevice = device;
+            mConnectedAt = connectedAt;
         }
 
         @Override
         public void run() {
+            mProducer = mMeasurementBus.openProducer(mDevice.getAddress(), BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER);
+            mAlarmProducer = mProducer != null
+                    ? mAlarmBus.openProducer(mDevice.getAddress(), BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER) : null;
+            if (mAlarmProducer == null) {
+                // More channels than producer slots; refuse this one rather than fail the service.
+                Log.e(TAG, "No producer slot left, closing the channel of " + mDevice.getAddress());
+                if (mProducer != null) {
+                    mProducer.close();
+                }
+                MeasurementArchive.closeQuietly(mFd);
+                return;
+            }
+            mAlarmEngine.reset(mProducer.id);
+            mOximetryFilter.reset(mProducer.id);
+            mTimer = new SessionTimer(mFd, mDevice.getAddress());
+            mTimer.awaitAssociation();
             FileInputStream fis = new FileInputStream(mFd.getFileDescriptor());
             byte data[] = new byte[116];
             try {
-                while (fis.read(data) > -1) {
+                int length;
+                while ((length = fis.read(data)) > -1) {
+                    long arrival = System.nanoTime();
+                    mBytesReceived.addAndGet(length);
                     // At this point, the application can pass the raw data to a parser that
                     // has implemented the IEEE 11073-xxxxx specifications.  Instead, this sample
                     // simply indicates that some data has been received.
@@ -659,45 +2241,55 @@ public class BluetoothHDPService extends Service {
 
                         if (data[0] == (byte) 0xE2) {
                             //Log.i(TAG, "E2 - Association Request");
-                            oxymeterCommunicationState = ASSOCIATION_RESPONSE;
-
-                            (new OxymeterWriteThread(mFd)).start();
-                            try {
-                                sleep(100);
+                            mContext = associate(mDevice, data, mConnectedAt);
+                            mTimer.onAssociated();
+                            if (mContext.canSkipMds()) {
+                                write(new OxymeterWriteTask(mFd, 0, ASSOCIATION_RESPONSE));
                             }
-                            catch (InterruptedException e) {
-                                e.printStackTrace();
+                            else {
+                                // Pipeline GET MDS behind the Association Response.
+                                int invokeId = mTimer.invocations.allocate(InvokeTable.GET_MDS, arrival + INVOKE_TIMEOUT_NANOS);
+                                mTimer.awaitResponse();
+                                write(new OxymeterWriteTask(mFd, invokeId, ASSOCIATION_RESPONSE, GET_MDS));
                             }
-                            oxymeterCommunicationState = GET_MDS;
-                            (new OxymeterWriteThread(mFd)).start();
+                            if (mPoll != null) {
+                                mPoll.cancel();
+                            }
+                            mPoll = startPolling(mFd, mTimer, data);
                         }
                         else if (data[0] == (byte) 0xE7) {
                             Log.i(TAG, "E7 - Data Given");
 
-                            if (data[3] != (byte) 0xda) {
-
-                                invoke[0] = data[6];
-                                invoke[1] = data[7];
+                            // Responses to our requests are not confirmed.
+                            if (isResponse(data)) {
+                                int kind = handleResponse(data, mTimer.invocations, mContext, arrival);
+                                mTimer.onResponse();
+                                if (kind == InvokeTable.DATA_REQUEST) {
+                                    deliverDataResponse(data, BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER,
+                                            mContext, mPoll, mProducer, mAlarmProducer, arrival);
+                                }
+                            }
+                            else if (data[3] != (byte) 0xda) {
 
-                                if (data[3] == (byte) 0x36) {
-                                    int oxygen = byteToUnsignedInt(data[35]);
-                                    int heartRate = byteToUnsignedInt(data[49]);
+                                int invokeId = readUnsignedShort(data, 6);
 
-                                    Log.i("oxygen", "" + oxygen);
-                                    Log.i("heartRate", "" + heartRate);
-                                    sendMessage(RECEIVED_O2, oxygen);
-                                    sendMessage(RECEIVED_HEART_RATE, heartRate);
+                                if (isFixedScanReport(data)) {
+                                    deliverFixedScanReport(data, BluetoothHDPActivity.HEALTH_PROFILE_DATA_TYPE_OXYMETER,
+                                            mContext, mProducer, mAlarmProducer, arrival);
                                 }
 
-                                oxymeterCommunicationState = DATA_RECEIVED_RESPONSE;
-                                //set invoke id so get correct response
-                                (new OxymeterWriteThread(mFd)).start();
+                                //echo the invoke id so the agent gets the correct response
+                                write(new OxymeterWriteTask(mFd, invokeId, DATA_RECEIVED_RESPONSE));
                             }
                             //parse data!!
                         }
                         else if (data[0] == (byte) 0xE4) {
-                            oxymeterCommunicationState = ASSOCIATION_RELEASE_RESPONSE;
-                            (new OxymeterWriteThread(mFd)).start();
+                            if (mPoll != null) {
+                                mPoll.cancel();
+                                mPoll = null;
+                            }
+                            mTimer.awaitAssociation();
+                            write(new OxymeterWriteTask(mFd, 0, ASSOCIATION_RELEASE_RESPONSE));
                             //sendMessage();
 
                         }
@@ -705,11 +2297,15 @@ public class BluetoothHDPService extends Service {
                         //zero out the data
                         Arrays.fill(data, (byte) 0x00);
                     }
-                    sendMessage(STATUS_OXYMETER_READ_DATA, 0);
+                    mProducer.publish(STATUS_OXYMETER_READ_DATA, 0, arrival);
                 }
             } catch (IOException ioe) {
                 /* Do nothing. */
             }
+            catch (RuntimeException e) {
+                // A malformed APDU ends this channel only.
+                Log.e(TAG, "Cannot handle APDU of " + mDevice.getAddress() + ", closing the channel", e);
+            }
             if (mFd != null) {
                 try {
                     mFd.close();
@@ -718,16 +2314,28 @@ public class BluetoothHDPService extends Service {
                     /* Do nothing. */
                 }
             }
-            sendMessage(STATUS_OXYMETER_READ_DATA_DONE, 0);
+            if (mPoll != null) {
+                mPoll.cancel();
+            }
+            mTimer.cancel();
+            mProducer.publish(STATUS_OXYMETER_READ_DATA_DONE, 0, System.nanoTime());
+            mProducer.close();
+            mAlarmProducer.close();
         }
     }
 
-    private class OxymeterWriteThread extends Thread {
+    private class OxymeterWriteTask implements Runnable {
         private ParcelFileDescriptor mFd;
+        // Invoke-id of the GET MDS request, or of the event report a Data Received Response
+        // confirms.
+        private int mInvokeId;
+        // APDUs to send, in order.
+        private int[] mApdus;
 
-        public OxymeterWriteThread(ParcelFileDescriptor fd) {
-            super();
+        public OxymeterWriteTask(ParcelFileDescriptor fd, int invokeId, int... apdus) {
             mFd = fd;
+            mInvokeId = invokeId;
+            mApdus = apdus;
         }
 
         public byte[] getBluetoothMacAddress() {
@@ -789,7 +2397,7 @@ public class BluetoothHDPService extends Service {
                     (byte) 0xE7, (byte) 0x00,
                     (byte) 0x00, (byte) 0x0E,
                     (byte) 0x00, (byte) 0x0C,
-                    (byte) 0x12, (byte) 0x34,
+                    (byte) (mInvokeId >> 8), (byte) mInvokeId,
                     (byte) 0x01, (byte) 0x03,
                     (byte) 0x00, (byte) 0x06,
                     (byte) 0x00, (byte) 0x00,
@@ -805,7 +2413,7 @@ public class BluetoothHDPService extends Service {
                     (byte) 0xE7, (byte) 0x00,
                     (byte) 0x00, (byte) 0x12,
                     (byte) 0x00, (byte) 0x10,
-                    (byte) invoke[0], (byte) invoke[1],
+                    (byte) (mInvokeId >> 8), (byte) mInvokeId,
                     (byte) 0x02, (byte) 0x01,
                     (byte) 0x00, (byte) 0x0A,
                     (byte) 0x00, (byte) 0x00,
@@ -826,21 +2434,27 @@ public class BluetoothHDPService extends Service {
             };
 
             try {
-                if (oxymeterCommunicationState == ASSOCIATION_RESPONSE) {
-                    fos.write(AR);
-                    Log.i(TAG, "Oxymeter Association Responsed!");
-                }
-                else if (oxymeterCommunicationState == GET_MDS) {
-                    fos.write(get_MDS);
-                    Log.i(TAG, "Oxymeter Get MDS object attributes!");
-                }
-                else if (oxymeterCommunicationState == DATA_RECEIVED_RESPONSE) {
-                    fos.write(DRR);
-                    Log.i(TAG, "Oxymeter Data Responsed!");
-                }
-                else if (oxymeterCommunicationState == ASSOCIATION_RELEASE_RESPONSE) {
-                    fos.write(ARR);
-                    Log.i(TAG, "Oxymeter Data Released!");
+                for (int apdu : mApdus) {
+                    if (apdu == ASSOCIATION_RESPONSE) {
+                        fos.write(AR);
+                        mBytesSent.addAndGet(AR.length);
+                        Log.i(TAG, "Oxymeter Association Responsed!");
+                    }
+                    else if (apdu == GET_MDS) {
+                        fos.write(get_MDS);
+                        mBytesSent.addAndGet(get_MDS.length);
+                        Log.i(TAG, "Oxymeter Get MDS object attributes!");
+                    }
+                    else if (apdu == DATA_RECEIVED_RESPONSE) {
+                        fos.write(DRR);
+                        mBytesSent.addAndGet(DRR.length);
+                        Log.i(TAG, "Oxymeter Data Responsed!");
+                    }
+                    else if (apdu == ASSOCIATION_RELEASE_RESPONSE) {
+                        fos.write(ARR);
+                        mBytesSent.addAndGet(ARR.length);
+                        Log.i(TAG, "Oxymeter Data Released!");
+                    }
                 }
 
                 fos.close();
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schedules manager-initiated channel connections to bonded source devices.
+ *
+ * Every target is a device and the data type it is connected for.  {@link #nextConnections}
+ * hands out the targets that are due, highest priority first and, within a priority, the one
+ * attempted longest ago first, so equal devices are polled round-robin.  At most
+ * maxConcurrentConnects connections are set up at a time, since paging devices concurrently
+ * only slows all of them down.  A failed attempt is retried with exponential backoff; after a
+ * session ends the device is polled again once the poll interval has passed.
+ *
+ * All methods are called on the main thread or the health event dispatcher thread.
+ */
+class ConnectionScheduler {
+    private static final String TAG = "ConnectionScheduler";
+
+    // Target states.
+    static final int IDLE = 0;
+    static final int CONNECTING = 1;
+    static final int CONNECTED = 2;
+
+    // A connection attempt the stack never reports back on is considered failed after this time.
+    private static final long CONNECT_TIMEOUT_NANOS = 30000000000L;
+
+    static final class Target {
+        final BluetoothDevice device;
+        final int dataType;
+        int priority;
+        int state = IDLE;
+        int channelId;
+        // Consecutive failed attempts, and all attempts so far.
+        int failures;
+        long attempts;
+        long lastAttemptAt;
+        long nextAttemptAt;
+
+        Target(BluetoothDevice device, int dataType, int priority) {
+            this.device = device;
+            this.dataType = dataType;
+            this.priority = priority;
+        }
+
+        @Override
+        public String toString() {
+            return device.getAddress() + "/" + dataType + " (priority " + priority + ", attempts " + attempts
+                    + ", failures " + failures + ")";
+        }
+    }
+
+    private final int mMaxConcurrentConnects;
+    private final long mPollIntervalNanos;
+    private final long mMinBackoffNanos;
+    private final long mMaxBackoffNanos;
+    private final List<Target> mTargets = new ArrayList<Target>();
+
+    ConnectionScheduler(int maxConcurrentConnects, long pollIntervalMillis, long minBackoffMillis, long maxBackoffMillis) {
+        mMaxConcurrentConnects = maxConcurrentConnects;
+        mPollIntervalNanos = pollIntervalMillis * 1000000L;
+        mMinBackoffNanos = minBackoffMillis * 1000000L;
+        mMaxBackoffNanos = maxBackoffMillis * 1000000L;
+    }
+
+    /**
+     * Adds a target, or changes the priority of an existing one and makes it due now.  Returns
+     * the target.
+     */
+    synchronized Target add(BluetoothDevice device, int dataType, int priority, long now) {
+        Target target = find(device.getAddress(), dataType);
+        if (target == null) {
+            target = new Target(device, dataType, priority);
+            mTargets.add(target);
+        }
+        target.priority = priority;
+        if (target.state == IDLE) {
+            target.nextAttemptAt = now;
+        }
+        return target;
+    }
+
+    // Adds a target unless it is already scheduled; keeps the state of known targets.
+    synchronized void addIfAbsent(BluetoothDevice device, int dataType, int priority, long now) {
+        if (find(device.getAddress(), dataType) == null) {
+            add(device, dataType, priority, now);
+        }
+    }
+
+    // Removes all targets of a device.  Returns the removed targets, e.g. to disconnect them.
+    synchronized List<Target> remove(String address) {
+        List<Target> removed = new ArrayList<Target>();
+        for (int i = mTargets.size() - 1; i >= 0; i--) {
+            if (mTargets.get(i).device.getAddress().equals(address)) {
+                removed.add(mTargets.remove(i));
+            }
+        }
+        return removed;
+    }
+
+    synchronized void clear() {
+        mTargets.clear();
+    }
+
+    /**
+     * Returns the targets to connect now, and marks them as connecting.  The caller must report
+     * the outcome of every attempt through onConnected or onConnectFailed.
+     */
+    synchronized List<Target> nextConnections(long now) {
+        int connecting = 0;
+        for (Target target : mTargets) {
+            if (target.state == CONNECTING && now - target.lastAttemptAt >= CONNECT_TIMEOUT_NANOS) {
+                Log.w(TAG, "Connection attempt timed out: " + target);
+                fail(target, now);
+            }
+            if (target.state == CONNECTING) {
+                connecting++;
+            }
+        }
+        List<Target> next = new ArrayList<Target>();
+        while (connecting + next.size() < mMaxConcurrentConnects) {
+            Target best = null;
+            for (Target target : mTargets) {
+                if (target.state != IDLE || now - target.nextAttemptAt < 0 || next.contains(target)) {
+                    continue;
+                }
+                if (best == null || target.priority > best.priority
+                        || (target.priority == best.priority && target.lastAttemptAt - best.lastAttemptAt < 0)) {
+                    best = target;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            next.add(best);
+        }
+        for (Target target : next) {
+            target.state = CONNECTING;
+            target.attempts++;
+            target.lastAttemptAt = now;
+        }
+        return next;
+    }
+
+    /**
+     * Returns the System.nanoTime() at which nextConnections should be called again, or
+     * Long.MAX_VALUE if nothing is scheduled.
+     */
+    synchronized long nextWakeup() {
+        long wakeup = Long.MAX_VALUE;
+        for (Target target : mTargets) {
+            long at;
+            if (target.state == IDLE) {
+                at = target.nextAttemptAt;
+            }
+            else if (target.state == CONNECTING) {
+                at = target.lastAttemptAt + CONNECT_TIMEOUT_NANOS;
+            }
+            else {
+                continue;
+            }
+            if (wakeup == Long.MAX_VALUE || at - wakeup < 0) {
+                wakeup = at;
+            }
+        }
+        return wakeup;
+    }
+
+    // A channel of the device connected, whether we or the agent initiated it.
+    synchronized void onConnected(String address, int dataType, int channelId) {
+        Target target = find(address, dataType);
+        if (target != null) {
+            target.state = CONNECTED;
+            target.channelId = channelId;
+            target.failures = 0;
+        }
+    }
+
+    synchronized void onConnectFailed(String address, int dataType, long now) {
+        Target target = find(address, dataType);
+        if (target != null && target.state == CONNECTING) {
+            fail(target, now);
+        }
+    }
+
+    // The channel of the device closed; poll it again after the poll interval.
+    synchronized void onDisconnected(String address, int dataType, long now) {
+        Target target = find(address, dataType);
+        if (target != null && target.state == CONNECTED) {
+            target.state = IDLE;
+            target.nextAttemptAt = now + mPollIntervalNanos;
+        }
+    }
+
+    // Returns the channel id of a connected target, or -1.
+    synchronized int channelIdOf(String address, int dataType) {
+        Target target = find(address, dataType);
+        return target != null && target.state == CONNECTED ? target.channelId : -1;
+    }
+
+    private void fail(Target target, long now) {
+        target.state = IDLE;
+        target.failures++;
+        long backoff = mMinBackoffNanos << Math.min(target.failures - 1, 30);
+        if (backoff <= 0 || backoff > mMaxBackoffNanos) {
+            backoff = mMaxBackoffNanos;
+        }
+        target.nextAttemptAt = now + backoff;
+        Log.i(TAG, "Connection to " + target + " failed, retrying in " + backoff / 1000000L + " ms");
+    }
+
+    private Target find(String address, int dataType) {
+        for (Target target : mTargets) {
+            if (target.dataType == dataType && target.device.getAddress().equals(address)) {
+                return target;
+            }
+        }
+        return null;
+    }
+}
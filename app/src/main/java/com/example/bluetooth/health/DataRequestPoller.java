@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * Manager-initiated measurement data transmission of one association (IEEE 11073-20601 MDS-Data-
+ * Request action).
+ *
+ * The request mode is chosen from the data-req-mode-capab the agent announces in its Association
+ * Request, preferring single response, which is polled with an adaptive interval: the interval
+ * doubles up to the maximum while the values of successive responses stay within stableChange
+ * of each other, and drops back to the minimum as soon as one of them changes.  In time-period
+ * mode the agent reports for a fixed period per request, which is repeated with the same
+ * interval; in no-time-limit mode a single request starts reporting until the association ends.
+ *
+ * Requests are built on the main thread and responses handled on the channel's read thread.
+ */
+class DataRequestPoller {
+    // data-req-mode bits, also used in data-req-mode-capab.
+    static final int MODE_START = 0x8000;
+    static final int MODE_SCOPE_ALL = 0x0800;
+    static final int MODE_SINGLE_RESPONSE = 0x0080;
+    static final int MODE_TIME_PERIOD = 0x0040;
+    static final int MODE_TIME_NO_LIMIT = 0x0020;
+
+    // Action type MDC_ACT_DATA_REQUEST.
+    private static final int ACTION_DATA_REQUEST = 0x0C1B;
+    // Reporting period requested in time-period mode, in milliseconds.
+    private static final long TIME_PERIOD_MILLIS = 10000;
+    // Length of the request APDU.
+    static final int REQUEST_LENGTH = 34;
+
+    private final int mMode;
+    private final long mMinIntervalMillis;
+    private final long mMaxIntervalMillis;
+    private final float mStableChange;
+    private final LatencyHistogram mDataAge;
+    private long mIntervalMillis;
+    private int mDataRequestId;
+    // Values of the last response, indexed by RECEIVED_* code starting at RECEIVED_SYS.
+    private final float[] mLastValues = new float[BluetoothHDPService.RECEIVED_COUNT];
+    private long mLastResponseAt;
+    private long mRequestCount;
+    private long mResponseCount;
+
+    /**
+     * stableChange is the relative change up to which a value counts as unchanged.  The time
+     * between fresh values is recorded in dataAge.
+     */
+    DataRequestPoller(int mode, long minIntervalMillis, long maxIntervalMillis, float stableChange, LatencyHistogram dataAge) {
+        mMode = mode;
+        mMinIntervalMillis = minIntervalMillis;
+        mMaxIntervalMillis = maxIntervalMillis;
+        mStableChange = stableChange;
+        mDataAge = dataAge;
+        mIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Returns the request mode to use with an agent, or 0 if it does not support manager-
+     * initiated data requests.  AARQ layout: data-req-mode-flags at bytes 46-47,
+     * data-req-init-manager-count at 49.
+     */
+    static int modeOf(byte[] aarq) {
+        if (aarq.length < 50 || aarq[49] == 0) {
+            return 0;
+        }
+        int flags = ((aarq[46] & 0xff) << 8) | (aarq[47] & 0xff);
+        if ((flags & MODE_SINGLE_RESPONSE) != 0) {
+            return MODE_SINGLE_RESPONSE;
+        }
+        if ((flags & MODE_TIME_PERIOD) != 0) {
+            return MODE_TIME_PERIOD;
+        }
+        if ((flags & MODE_TIME_NO_LIMIT) != 0) {
+            return MODE_TIME_NO_LIMIT;
+        }
+        return 0;
+    }
+
+    int getMode() {
+        return mMode;
+    }
+
+    // Whether requests are repeated, false for no-time-limit mode.
+    boolean isRepeating() {
+        return mMode != MODE_TIME_NO_LIMIT;
+    }
+
+    synchronized long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    /**
+     * Builds the MDS-Data-Request of the next poll, a PRST with roiv-cmip-confirmed-action on the
+     * MDS object (handle 0) for all objects of the agent.
+     */
+    synchronized byte[] request(int invokeId) {
+        mRequestCount++;
+        mDataRequestId = (mDataRequestId + 1) & 0xffff;
+        int mode = MODE_START | MODE_SCOPE_ALL | mMode;
+        // RelativeTime counts in units of 1/8 ms.
+        long time = mMode == MODE_TIME_PERIOD ? TIME_PERIOD_MILLIS * 8 : 0;
+        byte[] apdu = new byte[REQUEST_LENGTH];
+        int i = 0;
+        i = putShort(apdu, i, 0xE700);
+        i = putShort(apdu, i, REQUEST_LENGTH - 4);
+        i = putShort(apdu, i, REQUEST_LENGTH - 6);
+        i = putShort(apdu, i, invokeId);
+        // roiv-cmip-confirmed-action, length of the ActionArgumentSimple
+        i = putShort(apdu, i, 0x0107);
+        i = putShort(apdu, i, REQUEST_LENGTH - 12);
+        i = putShort(apdu, i, 0);
+        i = putShort(apdu, i, ACTION_DATA_REQUEST);
+        i = putShort(apdu, i, REQUEST_LENGTH - 18);
+        // DataRequest: id, mode, time, person-id, class and an empty handle list.
+        i = putShort(apdu, i, mDataRequestId);
+        i = putShort(apdu, i, mode);
+        i = putShort(apdu, i, (int) (time >>> 16));
+        i = putShort(apdu, i, (int) time);
+        i = putShort(apdu, i, 0);
+        i = putShort(apdu, i, 0);
+        i = putShort(apdu, i, 0);
+        putShort(apdu, i, 0);
+        return apdu;
+    }
+
+    /**
+     * Called on the read thread once the values of a data response have been delivered to the
+     * agent context.  Adapts the poll interval to how much they changed.
+     */
+    synchronized void onResponse(AgentContext context, long now) {
+        mResponseCount++;
+        boolean changed = false;
+        for (int i = 0; i < mLastValues.length; i++) {
+            float value = context.getLastValue(BluetoothHDPService.RECEIVED_SYS + i);
+            float last = mLastValues[i];
+            if (value != last && Math.abs(value - last) > Math.abs(last) * mStableChange) {
+                changed = true;
+            }
+            mLastValues[i] = value;
+        }
+        if (mLastResponseAt != 0) {
+            mDataAge.record(now - mLastResponseAt);
+        }
+        mLastResponseAt = now;
+        mIntervalMillis = changed ? mMinIntervalMillis : Math.min(mIntervalMillis * 2, mMaxIntervalMillis);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "data requests: mode=0x" + Integer.toHexString(mMode) + ", requests=" + mRequestCount
+                + ", responses=" + mResponseCount + ", interval=" + mIntervalMillis + " ms";
+    }
+
+    private static int putShort(byte[] apdu, int i, int value) {
+        apdu[i] = (byte) (value >> 8);
+        apdu[i + 1] = (byte) value;
+        return i + 2;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.Arrays;
+
+/**
+ * How decoded values of one health data type are delivered to the client, chosen by the client
+ * when it registers the data type.
+ *
+ * IMMEDIATE sends every observation and every per-APDU status as it is decoded.  BATCHED
+ * collects observations and sends them in one message once maxCount have been collected or the
+ * oldest is maxDelay old.  LATEST_ONLY sends, at the same points, only the latest value of each
+ * metric that changed.  Both deferred modes drop the per-APDU READ_DATA status.
+ */
+final class DeliveryPolicy {
+    static final int IMMEDIATE = 0;
+    static final int BATCHED = 1;
+    static final int LATEST_ONLY = 2;
+
+    static final int DEFAULT_MAX_COUNT = 64;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 60000;
+
+    static final DeliveryPolicy DEFAULT = new DeliveryPolicy(0, IMMEDIATE, 1, 0);
+
+    final int dataType;
+    final int mode;
+    final int maxCount;
+    final long maxDelayNanos;
+
+    DeliveryPolicy(int dataType, int mode, int maxCount, long maxDelayMillis) {
+        if (mode != IMMEDIATE && mode != BATCHED && mode != LATEST_ONLY) {
+            throw new IllegalArgumentException("Unknown delivery mode " + mode);
+        }
+        this.dataType = dataType;
+        this.mode = mode;
+        this.maxCount = Math.max(maxCount, 1);
+        this.maxDelayNanos = maxDelayMillis * 1000000L;
+    }
+
+    boolean isImmediate() {
+        return mode == IMMEDIATE;
+    }
+
+    /**
+     * Observations held back for one channel under a deferred policy.  Used by a single consumer
+     * thread.
+     */
+    static final class Batch {
+        final DeliveryPolicy policy;
+        private final int[] mWhat;
+        private final float[] mValue;
+        private final long[] mTimestamp;
+        private int mCount;
+        private long mOldest;
+        // LATEST_ONLY: latest value per metric and whether it changed since the last flush.
+        private final float[] mLatest = new float[BluetoothHDPService.RECEIVED_COUNT];
+        private final boolean[] mChanged = new boolean[BluetoothHDPService.RECEIVED_COUNT];
+
+        Batch(DeliveryPolicy policy) {
+            this.policy = policy;
+            int capacity = policy.mode == BATCHED ? policy.maxCount : 0;
+            mWhat = new int[capacity];
+            mValue = new float[capacity];
+            mTimestamp = new long[capacity];
+        }
+
+        // Adds an observation; timestamp is its System.nanoTime() arrival.
+        void add(int what, float value, long timestamp) {
+            if (mCount == 0) {
+                mOldest = timestamp;
+            }
+            if (policy.mode == BATCHED) {
+                mWhat[mCount] = what;
+                mValue[mCount] = value;
+                mTimestamp[mCount] = timestamp;
+            }
+            else {
+                mLatest[what - BluetoothHDPService.RECEIVED_SYS] = value;
+                mChanged[what - BluetoothHDPService.RECEIVED_SYS] = true;
+            }
+            mCount++;
+        }
+
+        boolean isEmpty() {
+            return mCount == 0;
+        }
+
+        boolean isDue(long nowNanos) {
+            return mCount >= policy.maxCount || (mCount > 0 && nowNanos - mOldest >= policy.maxDelayNanos);
+        }
+
+        // System.nanoTime() at which the batch becomes due by age, or MeasurementBus.NO_DEADLINE
+        // if it is empty.
+        long getDeadline() {
+            return mCount > 0 ? mOldest + policy.maxDelayNanos : MeasurementBus.NO_DEADLINE;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        // BATCHED: the collected observations.
+        int[] copyWhat() {
+            return Arrays.copyOf(mWhat, mCount);
+        }
+
+        float[] copyValues() {
+            return Arrays.copyOf(mValue, mCount);
+        }
+
+        long[] copyTimestamps() {
+            return Arrays.copyOf(mTimestamp, mCount);
+        }
+
+        // LATEST_ONLY: whether the metric with the given RECEIVED_* code changed, and its value.
+        boolean hasChanged(int what) {
+            return mChanged[what - BluetoothHDPService.RECEIVED_SYS];
+        }
+
+        float getLatest(int what) {
+            return mLatest[what - BluetoothHDPService.RECEIVED_SYS];
+        }
+
+        void clear() {
+            mCount = 0;
+            Arrays.fill(mChanged, false);
+        }
+    }
+}
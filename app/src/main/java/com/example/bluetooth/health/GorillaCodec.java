@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.Arrays;
+
+/**
+ * Compressed block encoding of a single time series, after Pelkonen et al., "Gorilla: A Fast,
+ * Scalable, In-Memory Time Series Database" (VLDB 2015).
+ *
+ * Timestamps are milliseconds, stored as delta-of-delta in variable-width buckets; a regular
+ * sample rate costs one bit per sample.  Values are floats, stored as the XOR with the previous
+ * value; an unchanged value costs one bit, a small change only its meaningful bits.  Values
+ * round-trip bit for bit, NaN payloads included.  Every block records its first and last
+ * timestamp and its minimum and maximum value, so readers can skip blocks without decoding them.
+ */
+final class GorillaCodec {
+    private GorillaCodec() {
+    }
+
+    /**
+     * Streaming encoder of one block.  Appends until {@link #isFull}, then the block is taken
+     * with {@link #toByteArray} and the encoder reset for the next one.
+     */
+    static final class Encoder {
+        private final int mMaxBytes;
+        private byte[] mBuffer = new byte[64];
+        // Number of bits written.
+        private long mBits;
+
+        private int mCount;
+        private long mFirstTimestamp;
+        private long mLastTimestamp;
+        private long mLastDelta;
+        private int mLastValueBits;
+        private int mLeadingZeros = Integer.MAX_VALUE;
+        private int mTrailingZeros;
+        private float mMin;
+        private float mMax;
+
+        // maxBytes is the payload size from which the block counts as full.
+        Encoder(int maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        void append(long timestamp, float value) {
+            int valueBits = Float.floatToRawIntBits(value);
+            if (mCount == 0) {
+                mFirstTimestamp = timestamp;
+                mMin = value;
+                mMax = value;
+                writeBits(timestamp, 64);
+                writeBits(valueBits, 32);
+            }
+            else {
+                long delta = timestamp - mLastTimestamp;
+                writeDeltaOfDelta(delta - mLastDelta);
+                mLastDelta = delta;
+                writeValue(valueBits);
+                mMin = Math.min(mMin, value);
+                mMax = Math.max(mMax, value);
+            }
+            mLastTimestamp = timestamp;
+            mLastValueBits = valueBits;
+            mCount++;
+        }
+
+        private void writeDeltaOfDelta(long dod) {
+            if (dod == 0) {
+                writeBits(0, 1);
+            }
+            else if (dod >= -63 && dod <= 64) {
+                writeBits(0x2, 2);
+                writeBits(dod, 7);
+            }
+            else if (dod >= -255 && dod <= 256) {
+                writeBits(0x6, 3);
+                writeBits(dod, 9);
+            }
+            else if (dod >= -2047 && dod <= 2048) {
+                writeBits(0xE, 4);
+                writeBits(dod, 12);
+            }
+            else {
+                writeBits(0xF, 4);
+                writeBits(dod, 64);
+            }
+        }
+
+        private void writeValue(int valueBits) {
+            int xor = valueBits ^ mLastValueBits;
+            if (xor == 0) {
+                writeBits(0, 1);
+                return;
+            }
+            int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (leading >= mLeadingZeros && trailing >= mTrailingZeros) {
+                // The meaningful bits fit the previous window.
+                writeBits(0x2, 2);
+                writeBits(xor >>> mTrailingZeros, 32 - mLeadingZeros - mTrailingZeros);
+            }
+            else {
+                int length = 32 - leading - trailing;
+                writeBits(0x3, 2);
+                writeBits(leading, 5);
+                writeBits(length - 1, 5);
+                writeBits(xor >>> trailing, length);
+                mLeadingZeros = leading;
+                mTrailingZeros = trailing;
+            }
+        }
+
+        // Writes the low count bits of value, most significant first.
+        private void writeBits(long value, int count) {
+            int needed = (int) ((mBits + count + 7) >>> 3);
+            if (needed > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(needed, mBuffer.length * 2));
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    mBuffer[(int) (mBits >>> 3)] |= 0x80 >>> (mBits & 7);
+                }
+                mBits++;
+            }
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        long getFirstTimestamp() {
+            return mFirstTimestamp;
+        }
+
+        long getLastTimestamp() {
+            return mLastTimestamp;
+        }
+
+        float getMin() {
+            return mMin;
+        }
+
+        float getMax() {
+            return mMax;
+        }
+
+        int getByteCount() {
+            return (int) ((mBits + 7) >>> 3);
+        }
+
+        boolean isFull() {
+            return getByteCount() >= mMaxBytes;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, getByteCount());
+        }
+
+        void reset() {
+            Arrays.fill(mBuffer, 0, getByteCount(), (byte) 0);
+            mBits = 0;
+            mCount = 0;
+            mLastDelta = 0;
+            mLeadingZeros = Integer.MAX_VALUE;
+            mTrailingZeros = 0;
+        }
+    }
+
+    /**
+     * Streaming decoder of one block payload.  Call {@link #next} until it returns false, reading
+     * each sample with {@link #getTimestamp} and {@link #getValue}.
+     */
+    static final class Decoder {
+        private final byte[] mData;
+        private final int mCount;
+        private long mBit;
+        private int mDecoded;
+
+        private long mTimestamp;
+        private long mDelta;
+        private int mValueBits;
+        private int mLeadingZeros;
+        private int mTrailingZeros;
+
+        // count is the number of samples in the block, as recorded in its header.
+        Decoder(byte[] data, int count) {
+            mData = data;
+            mCount = count;
+        }
+
+        boolean next() {
+            if (mDecoded == mCount) {
+                return false;
+            }
+            if (mDecoded == 0) {
+                mTimestamp = readBits(64);
+                mValueBits = (int) readBits(32);
+            }
+            else {
+                mDelta += readDeltaOfDelta();
+                mTimestamp += mDelta;
+                readValue();
+            }
+            mDecoded++;
+            return true;
+        }
+
+        long getTimestamp() {
+            return mTimestamp;
+        }
+
+        float getValue() {
+            return Float.intBitsToFloat(mValueBits);
+        }
+
+        private long readDeltaOfDelta() {
+            if (readBits(1) == 0) {
+                return 0;
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(7), 7);
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(9), 9);
+            }
+            if (readBits(1) == 0) {
+                return signExtend(readBits(12), 12);
+            }
+            return readBits(64);
+        }
+
+        private void readValue() {
+            if (readBits(1) == 0) {
+                return;
+            }
+            if (readBits(1) != 0) {
+                mLeadingZeros = (int) readBits(5);
+                mTrailingZeros = 32 - mLeadingZeros - ((int) readBits(5) + 1);
+            }
+            int length = 32 - mLeadingZeros - mTrailingZeros;
+            mValueBits ^= (int) readBits(length) << mTrailingZeros;
+        }
+
+        private long readBits(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | ((mData[(int) (mBit >>> 3)] >>> (7 - (mBit & 7))) & 1);
+                mBit++;
+            }
+            return value;
+        }
+
+        // The 7, 9 and 12 bit buckets are biased towards positive values: -63..64 etc.
+        private static long signExtend(long value, int bits) {
+            long half = 1L << (bits - 1);
+            return value > half ? value - (1L << bits) : value;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHealthAppConfiguration;
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Immutable snapshot of a {@link android.bluetooth.BluetoothHealthCallback} invocation.  The
+ * callbacks run on binder threads and only capture their arguments into an event; all
+ * processing happens later on the service's dispatcher thread.
+ */
+final class HealthEvent {
+    // onHealthAppConfigurationStatusChange()
+    static final int APP_CONFIG_STATUS = 1;
+    // onHealthChannelStateChange()
+    static final int CHANNEL_STATE = 2;
+
+    final int type;
+    final BluetoothHealthAppConfiguration config;
+    final BluetoothDevice device;
+    // Registration status for APP_CONFIG_STATUS events, new channel state otherwise.
+    final int status;
+    final int prevState;
+    final ParcelFileDescriptor fd;
+    final int channelId;
+    // System.nanoTime() at which the callback was invoked.
+    final long postedAt;
+
+    private HealthEvent(int type, BluetoothHealthAppConfiguration config, BluetoothDevice device,
+                        int status, int prevState, ParcelFileDescriptor fd, int channelId) {
+        this.type = type;
+        this.config = config;
+        this.device = device;
+        this.status = status;
+        this.prevState = prevState;
+        this.fd = fd;
+        this.channelId = channelId;
+        this.postedAt = System.nanoTime();
+    }
+
+    static HealthEvent appConfigStatus(BluetoothHealthAppConfiguration config, int status) {
+        return new HealthEvent(APP_CONFIG_STATUS, config, null, status, 0, null, 0);
+    }
+
+    static HealthEvent channelState(BluetoothHealthAppConfiguration config, BluetoothDevice device,
+                                    int prevState, int newState, ParcelFileDescriptor fd, int channelId) {
+        return new HealthEvent(CHANNEL_STATE, config, device, newState, prevState, fd, channelId);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Export job that streams the measurement history stored by {@link MeasurementArchive} to an
+ * output stream, as CSV or as newline-delimited JSON with one object per row.  Rows have the
+ * {@link MeasurementHistory#COLUMNS} and are ordered by timestamp.
+ *
+ * The series files are merged block by block as in {@link MeasurementHistoryProvider}, and rows
+ * are encoded straight into one reusable byte buffer, so memory stays constant however long the
+ * exported range is.  The buffer is only written out between rows of different timestamps
+ * whenever possible, so the output ends on a complete timestamp.  That timestamp and the number of
+ * bytes written up to it are the resume point: a cancelled or failed export is continued by a
+ * new job for the rows after it, appending to the output truncated to that many bytes.
+ *
+ * Run the job on its own thread; {@link #cancel} may be called from any thread.
+ */
+class HistoryExport implements Runnable {
+    private static final String TAG = "HistoryExport";
+
+    static final int FORMAT_CSV = 0;
+    static final int FORMAT_NDJSON = 1;
+
+    // Results passed to Listener.onFinished.
+    static final int RESULT_DONE = 0;
+    static final int RESULT_CANCELLED = 1;
+    static final int RESULT_FAILED = 2;
+
+    // Timestamp of an export that has not written any row yet.
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Upper bound of the encoded size of a row.
+    private static final int MAX_ROW_BYTES = 160;
+    // Rows between checks of the progress interval.
+    private static final int PROGRESS_ROWS = 1024;
+    private static final long PROGRESS_INTERVAL_NANOS = 500000000L;
+    // Values are written with up to three decimals.
+    private static final int VALUE_SCALE = 1000;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Receives the progress of an export, on the export thread.
+     */
+    interface Listener {
+        // permille is the share of the time range exported so far.
+        void onProgress(HistoryExport export, int permille);
+
+        void onFinished(HistoryExport export, int result);
+    }
+
+    private final File mDirectory;
+    private final String mDevice;
+    private final int mMetric;
+    private final long mFrom;
+    private final long mTo;
+    private final int mFormat;
+    private final boolean mResumed;
+    private final OutputStream mOut;
+    private final Listener mListener;
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mLength;
+    private final byte[] mDigits = new byte[20];
+
+    private volatile long mStart;
+    private volatile boolean mCancelled;
+    private volatile long mRows;
+    private volatile long mCommittedTimestamp = NO_TIMESTAMP;
+    private volatile long mCommittedBytes;
+    private long mWrittenBytes;
+
+    /**
+     * Exports the rows of a device and metric (null and -1 export all) in the inclusive time
+     * range.  To resume an export, pass the last committed timestamp as after, or NO_TIMESTAMP
+     * for a new export, and the output positioned after the last committed byte.  The output is
+     * closed when the job finishes.
+     */
+    HistoryExport(File directory, String device, int metric, long from, long to, long after, int format,
+                  OutputStream out, Listener listener) {
+        if (format != FORMAT_CSV && format != FORMAT_NDJSON) {
+            throw new IllegalArgumentException("Unknown export format " + format);
+        }
+        mDirectory = directory;
+        mDevice = device;
+        mMetric = metric;
+        mResumed = after != NO_TIMESTAMP;
+        mFrom = mResumed ? Math.max(from, after + 1) : from;
+        mTo = to;
+        mFormat = format;
+        mOut = out;
+        mListener = listener;
+        mCommittedTimestamp = after;
+    }
+
+    void cancel() {
+        mCancelled = true;
+    }
+
+    long getRows() {
+        return mRows;
+    }
+
+    long getRowsPerSecond() {
+        long elapsed = System.nanoTime() - mStart;
+        return mStart != 0 && elapsed > 0 ? mRows * 1000000000L / elapsed : 0;
+    }
+
+    // Timestamp of the last row of the complete timestamps written so far, or NO_TIMESTAMP.
+    long getCommittedTimestamp() {
+        return mCommittedTimestamp;
+    }
+
+    // Bytes written by this job up to the committed timestamp.
+    long getCommittedBytes() {
+        return mCommittedBytes;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        mStart = start;
+        List<MeasurementHistoryProvider.Series> series =
+                MeasurementHistoryProvider.openSeries(mDirectory, mDevice, mMetric, mFrom, mTo);
+        int result = RESULT_DONE;
+        try {
+            // ASCII forms of the device addresses, encoded once per series.
+            byte[][] addresses = new byte[series.size()][];
+            long first = Long.MAX_VALUE;
+            for (int i = 0; i < addresses.length; i++) {
+                addresses[i] = series.get(i).getAddress().getBytes(ASCII);
+                if (series.get(i).hasSample()) {
+                    first = Math.min(first, series.get(i).getTimestamp());
+                }
+            }
+            long last = mTo != Long.MAX_VALUE ? mTo : System.currentTimeMillis();
+            if (mFormat == FORMAT_CSV && !mResumed) {
+                appendHeader();
+            }
+            long lastTimestamp = NO_TIMESTAMP;
+            long nextProgress = start + PROGRESS_INTERVAL_NANOS;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < series.size(); i++) {
+                    MeasurementHistoryProvider.Series s = series.get(i);
+                    if (s.hasSample() && (next < 0 || s.getTimestamp() < series.get(next).getTimestamp())) {
+                        next = i;
+                    }
+                }
+                long timestamp = next < 0 ? NO_TIMESTAMP : series.get(next).getTimestamp();
+                if (timestamp != lastTimestamp && lastTimestamp != NO_TIMESTAMP) {
+                    // All rows of lastTimestamp are in the buffer.
+                    if (next < 0 || mCancelled || mLength > BUFFER_SIZE - MAX_ROW_BYTES) {
+                        flush();
+                        mCommittedTimestamp = lastTimestamp;
+                        mCommittedBytes = mWrittenBytes;
+                    }
+                    if (mCancelled) {
+                        result = RESULT_CANCELLED;
+                        break;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                if (mLength > BUFFER_SIZE - MAX_ROW_BYTES) {
+                    // More rows of one timestamp than fit the buffer.
+                    flush();
+                }
+                MeasurementHistoryProvider.Series s = series.get(next);
+                appendRow(addresses[next], s.getMetric(), timestamp, s.getValue());
+                lastTimestamp = timestamp;
+                s.advance();
+                if (++mRows % PROGRESS_ROWS == 0 && System.nanoTime() >= nextProgress) {
+                    reportProgress(first, last);
+                    nextProgress = System.nanoTime() + PROGRESS_INTERVAL_NANOS;
+                }
+            }
+            if (mLength > 0) {
+                // The CSV header of an export without rows.
+                flush();
+                mCommittedBytes = mWrittenBytes;
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Export failed after " + mRows + " rows", e);
+            result = RESULT_FAILED;
+        }
+        finally {
+            for (MeasurementHistoryProvider.Series s : series) {
+                s.close();
+            }
+            MeasurementArchive.closeQuietly(mOut);
+        }
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, mRows + " rows, " + mCommittedBytes + " bytes in " + elapsed / 1000000L + " ms ("
+                + getRowsPerSecond() + " rows/s), result " + result);
+        if (mListener != null) {
+            mListener.onFinished(this, result);
+        }
+    }
+
+    private void reportProgress(long first, long last) {
+        if (mListener == null) {
+            return;
+        }
+        long timestamp = mCommittedTimestamp;
+        int permille = 0;
+        if (timestamp != NO_TIMESTAMP && last > first) {
+            permille = (int) Math.max(0, Math.min(1000, (timestamp - first) * 1000 / (last - first)));
+        }
+        mListener.onProgress(this, permille);
+    }
+
+    private void flush() throws IOException {
+        mOut.write(mBuffer, 0, mLength);
+        mWrittenBytes += mLength;
+        mLength = 0;
+    }
+
+    private void appendHeader() {
+        for (int i = 0; i < MeasurementHistory.COLUMNS.length; i++) {
+            if (i > 0) {
+                append((byte) ',');
+            }
+            append(MeasurementHistory.COLUMNS[i]);
+        }
+        append((byte) '\n');
+    }
+
+    // Encodes a row into the buffer, which has room for at least MAX_ROW_BYTES.
+    private void appendRow(byte[] address, int metric, long timestamp, float value) {
+        if (mFormat == FORMAT_CSV) {
+            append(address);
+            append((byte) ',');
+            appendLong(metric);
+            append((byte) ',');
+            appendLong(timestamp);
+            append((byte) ',');
+            appendValue(value);
+        }
+        else {
+            append("{\"");
+            append(MeasurementHistory.DEVICE);
+            append("\":\"");
+            append(address);
+            append("\",\"");
+            append(MeasurementHistory.METRIC);
+            append("\":");
+            appendLong(metric);
+            append(",\"");
+            append(MeasurementHistory.TIMESTAMP);
+            append("\":");
+            appendLong(timestamp);
+            append(",\"");
+            append(MeasurementHistory.VALUE);
+            append("\":");
+            appendValue(value);
+            append((byte) '}');
+        }
+        append((byte) '\n');
+    }
+
+    private void append(byte b) {
+        mBuffer[mLength++] = b;
+    }
+
+    private void append(byte[] bytes) {
+        System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+        mLength += bytes.length;
+    }
+
+    // Appends an ASCII constant without encoding it to a byte array first.
+    private void append(String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            mBuffer[mLength++] = (byte) ascii.charAt(i);
+        }
+    }
+
+    private void appendLong(long value) {
+        if (value < 0) {
+            append((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                append("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        int count = 0;
+        do {
+            mDigits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (count > 0) {
+            mBuffer[mLength++] = mDigits[--count];
+        }
+    }
+
+    // Appends a value with up to three decimals and no trailing zeros.  JSON has no NaN, so
+    // non-finite values, which the archive never stores, are written as null.
+    private void appendValue(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            append("null");
+            return;
+        }
+        long scaled = Math.round((double) value * VALUE_SCALE);
+        if (scaled < 0) {
+            append((byte) '-');
+            scaled = -scaled;
+        }
+        appendLong(scaled / VALUE_SCALE);
+        int fraction = (int) (scaled % VALUE_SCALE);
+        if (fraction == 0) {
+            return;
+        }
+        append((byte) '.');
+        for (int divisor = VALUE_SCALE / 10; fraction != 0; divisor /= 10) {
+            append((byte) ('0' + fraction / divisor));
+            fraction %= divisor;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.util.Arrays;
+
+/**
+ * Outstanding manager-originated invocations of one association, keyed by invoke-id.
+ *
+ * The manager allocates a fresh invoke-id for every confirmed request it sends, so several
+ * requests (e.g. GET of the MDS attributes and a data request) can be in flight at the same time
+ * and every response is matched to its request.  Entries that are not answered before their
+ * deadline are removed by {@link #expire} when the session's timeout fires.
+ *
+ * The table is an open-addressing hash map over primitive arrays with linear probing; invoke-ids
+ * are 16 bit, so the key itself is a good enough hash.  Used by the channel's read thread and
+ * by the main thread, which issues scheduled data requests.
+ */
+class InvokeTable {
+    // Request kinds.
+    static final int NONE = 0;
+    static final int GET_MDS = 1;
+    static final int DATA_REQUEST = 2;
+
+    private static final int EMPTY = -1;
+
+    private final int[] mKeys;
+    private final int[] mKinds;
+    private final long[] mDeadlines;
+    private final int mMask;
+    private int mSize;
+    private int mNextInvokeId;
+
+    // capacity is the maximum number of outstanding invocations and must be a power of two.
+    InvokeTable(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        // Keep the load factor at or below one half.
+        mKeys = new int[capacity * 2];
+        mKinds = new int[capacity * 2];
+        mDeadlines = new long[capacity * 2];
+        mMask = capacity * 2 - 1;
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    /**
+     * Allocates an invoke-id for a request of the given kind, answered before the deadline (a
+     * System.nanoTime() value).  Returns the invoke-id, or -1 if the table is full.
+     */
+    synchronized int allocate(int kind, long deadline) {
+        if (mSize * 2 >= mKeys.length) {
+            return -1;
+        }
+        int invokeId;
+        do {
+            invokeId = mNextInvokeId;
+            mNextInvokeId = (mNextInvokeId + 1) & 0xFFFF;
+        } while (indexOf(invokeId) >= 0);
+        int i = invokeId & mMask;
+        while (mKeys[i] != EMPTY) {
+            i = (i + 1) & mMask;
+        }
+        mKeys[i] = invokeId;
+        mKinds[i] = kind;
+        mDeadlines[i] = deadline;
+        mSize++;
+        return invokeId;
+    }
+
+    /**
+     * Removes the invocation a response refers to.  Returns its kind, or NONE if the invoke-id is
+     * not outstanding, e.g. because it already expired.
+     */
+    synchronized int complete(int invokeId) {
+        int i = indexOf(invokeId);
+        if (i < 0) {
+            return NONE;
+        }
+        int kind = mKinds[i];
+        remove(i);
+        return kind;
+    }
+
+    synchronized boolean isOutstanding(int kind) {
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != EMPTY && mKinds[i] == kind) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    // Returns the earliest deadline of the outstanding invocations, or Long.MAX_VALUE.
+    synchronized long nextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mKeys[i] != EMPTY && (deadline == Long.MAX_VALUE || mDeadlines[i] - deadline < 0)) {
+                deadline = mDeadlines[i];
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * Removes all invocations whose deadline has passed and stores their invoke-ids in expired.
+     * Returns the number of expired invocations, at most expired.length.
+     */
+    synchronized int expire(long now, int[] expired) {
+        int count = 0;
+        int i = 0;
+        while (i < mKeys.length && count < expired.length) {
+            if (mKeys[i] != EMPTY && now - mDeadlines[i] >= 0) {
+                expired[count++] = mKeys[i];
+                // Removal may shift a later entry into slot i, so look at it again.
+                remove(i);
+            }
+            else {
+                i++;
+            }
+        }
+        return count;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+    }
+
+    private int indexOf(int invokeId) {
+        int i = invokeId & mMask;
+        while (mKeys[i] != EMPTY) {
+            if (mKeys[i] == invokeId) {
+                return i;
+            }
+            i = (i + 1) & mMask;
+        }
+        return -1;
+    }
+
+    // Removes slot i and shifts back the following entries of its probe sequence, so lookups
+    // never need tombstones.
+    private void remove(int i) {
+        mKeys[i] = EMPTY;
+        mSize--;
+        int j = (i + 1) & mMask;
+        while (mKeys[j] != EMPTY) {
+            int home = mKeys[j] & mMask;
+            // Move the entry at j into the hole at i unless its home lies cyclically in (i, j].
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                mKeys[i] = mKeys[j];
+                mKinds[i] = mKinds[j];
+                mDeadlines[i] = mDeadlines[j];
+                mKeys[j] = EMPTY;
+                i = j;
+            }
+            j = (j + 1) & mMask;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+/**
+ * Measurement bus consumer that keeps the latest value of every metric, the latest channel
+ * status and the alarm condition of every metric for each device, so a client that (re)binds is
+ * sent the complete picture in a single message instead of waiting for device traffic.
+ *
+ * Devices are keyed by their 48 bit Bluetooth address in a primitive array, and all state lives
+ * in preallocated primitive arrays indexed by device slot and RECEIVED_* code.  With a handful of
+ * devices a linear scan of the keys is the fastest lookup; once all slots are taken the device
+ * updated longest ago is replaced.
+ */
+class LastValueCache extends MeasurementBus.Consumer {
+    // Keys of the snapshot bundle.  Devices and values are parallel arrays; KEY_VALUE_DEVICES
+    // holds the device index of each value.
+    static final String KEY_ADDRESSES = "addresses";
+    static final String KEY_DATA_TYPES = "dataTypes";
+    static final String KEY_STATUSES = "statuses";
+    static final String KEY_VALUE_DEVICES = "valueDevices";
+    static final String KEY_WHATS = "whats";
+    static final String KEY_VALUES = "values";
+    static final String KEY_TIMESTAMPS = "timestamps";
+    static final String KEY_ALARMS = "alarms";
+
+    private static final int METRICS = BluetoothHDPService.RECEIVED_COUNT;
+
+    private final long[] mAddresses;
+    private final int[] mDataTypes;
+    private final int[] mStatuses;
+    private final long[] mUpdated;
+    private final float[] mValues;
+    // Wall clock time of each value in milliseconds, 0 if the metric has no value yet.
+    private final long[] mTimestamps;
+    private final int[] mAlarms;
+
+    LastValueCache(int maxDevices) {
+        super("last values");
+        mAddresses = new long[maxDevices];
+        mDataTypes = new int[maxDevices];
+        mStatuses = new int[maxDevices];
+        mUpdated = new long[maxDevices];
+        mValues = new float[maxDevices * METRICS];
+        mTimestamps = new long[maxDevices * METRICS];
+        mAlarms = new int[maxDevices * METRICS];
+        Arrays.fill(mAddresses, -1);
+    }
+
+    @Override
+    protected void onEvent(MeasurementBus.Producer producer, int what, float value, long timestamp) {
+        int metric = what - BluetoothHDPService.RECEIVED_SYS;
+        if (getQuality() == MeasurementBus.QUALITY_ARTIFACT) {
+            return;
+        }
+        synchronized (this) {
+            int slot = slotOf(producer.getAddress(), timestamp);
+            mDataTypes[slot] = producer.getDataType();
+            if (metric >= 0 && metric < METRICS) {
+                mValues[slot * METRICS + metric] = value;
+                mTimestamps[slot * METRICS + metric] = getMeasuredMillis(timestamp);
+            }
+            else {
+                mStatuses[slot] = what;
+            }
+        }
+    }
+
+    // Records an alarm state change, see AlarmEngine.
+    synchronized void putAlarm(String address, int what, int condition, long timestamp) {
+        int metric = what - BluetoothHDPService.RECEIVED_SYS;
+        if (metric >= 0 && metric < METRICS) {
+            mAlarms[slotOf(address, timestamp) * METRICS + metric] = condition;
+        }
+    }
+
+    /**
+     * Returns the cached state of all devices.  Values are ordered by timestamp, so a client that
+     * shows one value per metric can apply them in order.
+     */
+    synchronized Bundle snapshot() {
+        int devices = 0;
+        int values = 0;
+        for (int slot = 0; slot < mAddresses.length; slot++) {
+            if (mAddresses[slot] != -1) {
+                devices++;
+                for (int m = 0; m < METRICS; m++) {
+                    if (mTimestamps[slot * METRICS + m] != 0) {
+                        values++;
+                    }
+                }
+            }
+        }
+        String[] addresses = new String[devices];
+        int[] dataTypes = new int[devices];
+        int[] statuses = new int[devices];
+        int[] valueDevices = new int[values];
+        int[] whats = new int[values];
+        float[] lastValues = new float[values];
+        long[] timestamps = new long[values];
+        int[] alarms = new int[values];
+        int device = 0;
+        int value = 0;
+        for (int slot = 0; slot < mAddresses.length; slot++) {
+            if (mAddresses[slot] == -1) {
+                continue;
+            }
+            addresses[device] = ServiceSnapshot.addressOf(mAddresses[slot]);
+            dataTypes[device] = mDataTypes[slot];
+            statuses[device] = mStatuses[slot];
+            for (int m = 0; m < METRICS; m++) {
+                int i = slot * METRICS + m;
+                if (mTimestamps[i] == 0) {
+                    continue;
+                }
+                // Insertion sort by timestamp; there are at most a few dozen values.
+                int j = value++;
+                while (j > 0 && timestamps[j - 1] > mTimestamps[i]) {
+                    valueDevices[j] = valueDevices[j - 1];
+                    whats[j] = whats[j - 1];
+                    lastValues[j] = lastValues[j - 1];
+                    timestamps[j] = timestamps[j - 1];
+                    alarms[j] = alarms[j - 1];
+                    j--;
+                }
+                valueDevices[j] = device;
+                whats[j] = BluetoothHDPService.RECEIVED_SYS + m;
+                lastValues[j] = mValues[i];
+                timestamps[j] = mTimestamps[i];
+                alarms[j] = mAlarms[i];
+            }
+            device++;
+        }
+        Bundle bundle = new Bundle();
+        bundle.putStringArray(KEY_ADDRESSES, addresses);
+        bundle.putIntArray(KEY_DATA_TYPES, dataTypes);
+        bundle.putIntArray(KEY_STATUSES, statuses);
+        bundle.putIntArray(KEY_VALUE_DEVICES, valueDevices);
+        bundle.putIntArray(KEY_WHATS, whats);
+        bundle.putFloatArray(KEY_VALUES, lastValues);
+        bundle.putLongArray(KEY_TIMESTAMPS, timestamps);
+        bundle.putIntArray(KEY_ALARMS, alarms);
+        return bundle;
+    }
+
+    // Returns the slot of a device, taking over the least recently updated slot for a new one.
+    private int slotOf(String address, long timestamp) {
+        long key = ServiceSnapshot.addressToLong(address);
+        int oldest = 0;
+        for (int slot = 0; slot < mAddresses.length; slot++) {
+            if (mAddresses[slot] == key) {
+                mUpdated[slot] = timestamp;
+                return slot;
+            }
+            if (mAddresses[slot] == -1 || (mAddresses[oldest] != -1 && mUpdated[slot] - mUpdated[oldest] < 0)) {
+                oldest = slot;
+            }
+        }
+        mAddresses[oldest] = key;
+        mUpdated[oldest] = timestamp;
+        mDataTypes[oldest] = 0;
+        mStatuses[oldest] = 0;
+        Arrays.fill(mTimestamps, oldest * METRICS, (oldest + 1) * METRICS, 0);
+        Arrays.fill(mAlarms, oldest * METRICS, (oldest + 1) * METRICS, AlarmEngine.CONDITION_NONE);
+        return oldest;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * Decoder of the IEEE 11073-20601 (MDER) numeric types.
+ *
+ * SFLOAT-Type is 16 bits: a 4-bit signed exponent followed by a 12-bit signed mantissa.
+ * FLOAT-Type is 32 bits: an 8-bit signed exponent followed by a 24-bit signed mantissa.  The
+ * value is mantissa * 10^exponent.  Mantissas reserved for special values (NaN, NRes, +INF,
+ * -INF) are only special with a zero exponent; NaN, NRes and the reserved value decode to
+ * Float.NaN.
+ *
+ * Scaling uses a precomputed table of exact powers of ten.  Negative exponents divide by the
+ * power instead of multiplying by its inexact reciprocal, so e.g. 365e-1 decodes to exactly 36.5.
+ */
+final class MderFloat {
+    private static final int SFLOAT_NAN = 0x07FF;
+    private static final int SFLOAT_NRES = 0x0800;
+    private static final int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+    private static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    private static final int SFLOAT_RESERVED = 0x0801;
+
+    private static final int FLOAT_NAN = 0x007FFFFF;
+    private static final int FLOAT_NRES = 0x00800000;
+    private static final int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+    private static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+    private static final int FLOAT_RESERVED = 0x00800001;
+
+    // 10^0 .. 10^128 as doubles, covering both exponent ranges; exact up to 10^22, correctly
+    // rounded beyond.
+    private static final double[] POWERS_OF_TEN = new double[129];
+
+    static {
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = Double.parseDouble("1e" + i);
+        }
+    }
+
+    private MderFloat() {
+    }
+
+    /**
+     * Decodes an SFLOAT given as the 16-bit big-endian word of the APDU.
+     */
+    static float decodeSFloat(int raw) {
+        raw &= 0xFFFF;
+        int exponent = (short) raw >> 12;
+        int mantissa = raw & 0x0FFF;
+        if (exponent == 0 && mantissa >= SFLOAT_POSITIVE_INFINITY && mantissa <= SFLOAT_NEGATIVE_INFINITY) {
+            return sFloatSpecial(mantissa);
+        }
+        // Sign-extend the 12-bit mantissa.
+        mantissa = (mantissa << 20) >> 20;
+        return (float) scale(mantissa, exponent);
+    }
+
+    static float decodeSFloat(byte[] data, int offset) {
+        return decodeSFloat(((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+    }
+
+    /**
+     * Decodes a FLOAT given as the 32-bit big-endian word of the APDU.  The result is a double,
+     * a 24-bit mantissa does not always fit a float exactly.
+     */
+    static double decodeFloat(int raw) {
+        int exponent = raw >> 24;
+        int mantissa = raw & 0x00FFFFFF;
+        if (exponent == 0 && mantissa >= FLOAT_POSITIVE_INFINITY && mantissa <= FLOAT_NEGATIVE_INFINITY) {
+            return floatSpecial(mantissa);
+        }
+        mantissa = (mantissa << 8) >> 8;
+        return scale(mantissa, exponent);
+    }
+
+    static double decodeFloat(byte[] data, int offset) {
+        return decodeFloat(((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF));
+    }
+
+    /**
+     * Decodes count consecutive SFLOATs, e.g. the components of a compound observed value or a
+     * sample array, into out starting at outOffset.
+     */
+    static void decodeSFloats(byte[] data, int offset, int count, float[] out, int outOffset) {
+        for (int i = 0; i < count; i++, offset += 2) {
+            out[outOffset + i] = decodeSFloat(data, offset);
+        }
+    }
+
+    // Decodes count consecutive FLOATs into out starting at outOffset.
+    static void decodeFloats(byte[] data, int offset, int count, double[] out, int outOffset) {
+        for (int i = 0; i < count; i++, offset += 4) {
+            out[outOffset + i] = decodeFloat(data, offset);
+        }
+    }
+
+    private static double scale(int mantissa, int exponent) {
+        return exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+    }
+
+    private static float sFloatSpecial(int mantissa) {
+        switch (mantissa) {
+            case SFLOAT_POSITIVE_INFINITY:
+                return Float.POSITIVE_INFINITY;
+            case SFLOAT_NEGATIVE_INFINITY:
+                return Float.NEGATIVE_INFINITY;
+            case SFLOAT_NAN:
+            case SFLOAT_NRES:
+            case SFLOAT_RESERVED:
+            default:
+                return Float.NaN;
+        }
+    }
+
+    private static double floatSpecial(int mantissa) {
+        switch (mantissa) {
+            case FLOAT_POSITIVE_INFINITY:
+                return Double.POSITIVE_INFINITY;
+            case FLOAT_NEGATIVE_INFINITY:
+                return Double.NEGATIVE_INFINITY;
+            case FLOAT_NAN:
+            case FLOAT_NRES:
+            case FLOAT_RESERVED:
+            default:
+                return Double.NaN;
+        }
+    }
+}
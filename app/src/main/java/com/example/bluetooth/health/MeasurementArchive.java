@@ -0,0 +1,578 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measurement bus consumer that stores decoded values in compressed time series files, one file
+ * per device and metric.
+ *
+ * Each file is a sequence of {@link GorillaCodec} blocks, every block preceded by a header with
+ * its sample count, time range, value range and payload length.  Blocks are appended and synced
+ * when they are full and when the consumer stops.  Samples are stored with their measurement
+ * time; a value measured before the last one of its open block, e.g. from a stored-data upload
+ * after live values, starts a new block, so blocks are sorted but a file is only sorted per run
+ * of blocks, see {@link MeasurementHistoryProvider#openSeries}.
+ *
+ * Values in open blocks are made durable through a {@link ReadingJournal} with group commits, so
+ * a crash loses at most one commit window.  Once the journal grows beyond
+ * JOURNAL_CHECKPOINT_BYTES, all open blocks are written, the journal is emptied and the lengths
+ * of the series files are recorded in CHECKPOINT_FILE.  Every series receives its journal
+ * readings in journal order, so the blocks written past the recorded length of a file hold
+ * exactly the first journal readings of that series; on start the remaining ones are replayed
+ * into the open blocks.
+ */
+class MeasurementArchive extends MeasurementBus.Consumer {
+    private static final String TAG = "MeasurementArchive";
+
+    // Directory of the series files, below the app's files directory.
+    static final String DIRECTORY = "archive";
+    static final String FILE_SUFFIX = ".gts";
+
+    // Size of the header preceding each block: count, first and last timestamp, min, max and
+    // payload length.
+    static final int BLOCK_HEADER_SIZE = 4 + 8 + 8 + 4 + 4 + 4;
+
+    static final String JOURNAL_FILE = "journal.log";
+    // Series file names and lengths at the last journal truncation.
+    static final String CHECKPOINT_FILE = "checkpoint";
+    private static final long JOURNAL_CHECKPOINT_BYTES = 256 * 1024;
+
+    /**
+     * Acknowledges the readings of a commit, on the archive thread.
+     */
+    interface CommitListener {
+        // lastTimestamp is the wall clock timestamp of the last reading of the commit.
+        void onCommitted(MeasurementArchive archive, int count, long lastTimestamp);
+    }
+
+    private final File mDirectory;
+    private final int mBlockBytes;
+    // Open encoders per device address and RECEIVED_* code.
+    private final Map<String, GorillaCodec.Encoder[]> mEncoders = new HashMap<String, GorillaCodec.Encoder[]>();
+    private final int mCommitCount;
+    private final long mCommitDelayMillis;
+    // Null if the journal cannot be opened; values then are only durable once in a block.
+    private volatile ReadingJournal mJournal;
+    private volatile CommitListener mCommitListener;
+
+    /**
+     * blockBytes is the payload size after which a block is written.  Readings are committed to
+     * the journal in groups of up to commitCount, at most commitDelayMillis after the first.
+     */
+    MeasurementArchive(File directory, int blockBytes, int commitCount, long commitDelayMillis) {
+        super("archive");
+        mDirectory = directory;
+        mBlockBytes = blockBytes;
+        mCommitCount = commitCount;
+        mCommitDelayMillis = commitDelayMillis;
+    }
+
+    void setCommitListener(CommitListener listener) {
+        mCommitListener = listener;
+    }
+
+    // Number of journal syncs, 0 without a journal.
+    long getSyncs() {
+        ReadingJournal journal = mJournal;
+        return journal != null ? journal.getSyncs() : 0;
+    }
+
+    long getWritesPerSecond() {
+        ReadingJournal journal = mJournal;
+        return journal != null ? journal.getWritesPerSecond() : 0;
+    }
+
+    // Longest time a decoded value may be lost in a crash once the archive received it.  The
+    // archive thread wakes up when the commit window expires, see getIdleDeadline().
+    long getMaxLossWindowMillis() {
+        return mCommitDelayMillis;
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    static File directoryOf(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    // Returns the file holding the series of a device and metric.
+    File fileOf(String address, int what) {
+        return new File(mDirectory, address.replace(':', '_') + "-" + what + FILE_SUFFIX);
+    }
+
+    // Device address of a series file, or null if the file is not a series file.
+    static String addressOf(File file) {
+        String name = file.getName();
+        int dash = name.lastIndexOf('-');
+        if (dash <= 0 || !name.endsWith(FILE_SUFFIX)) {
+            return null;
+        }
+        return name.substring(0, dash).replace('_', ':');
+    }
+
+    // RECEIVED_* code of a series file, or -1 if the file is not a series file.
+    static int metricOf(File file) {
+        String name = file.getName();
+        int dash = name.lastIndexOf('-');
+        if (dash <= 0 || !name.endsWith(FILE_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(dash + 1, name.length() - FILE_SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Cannot create " + mDirectory);
+            return;
+        }
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        try {
+            long start = System.nanoTime();
+            int replayed = recover(journal);
+            mJournal = new ReadingJournal(journal, mCommitCount, mCommitDelayMillis);
+            Log.i(TAG, "Replayed " + replayed + " journal records in " + (System.nanoTime() - start) / 1000000L + " ms");
+            // Store the replayed readings and start from an empty journal, so the checkpoint
+            // matches the journal again even if the last checkpoint was interrupted.
+            checkpoint();
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Cannot open the journal, values are stored on block boundaries only", e);
+        }
+    }
+
+    @Override
+    protected void onEvent(MeasurementBus.Producer producer, int what, float value, long timestamp) {
+        int metric = what - BluetoothHDPService.RECEIVED_SYS;
+        if (metric < 0 || metric >= BluetoothHDPService.RECEIVED_COUNT || value < 0
+                || getQuality() == MeasurementBus.QUALITY_ARTIFACT) {
+            return;
+        }
+        long wallClock = getMeasuredMillis(timestamp);
+        if (mJournal != null) {
+            try {
+                onCommitted(mJournal.append(ServiceSnapshot.addressToLong(producer.getAddress()), what, wallClock, value));
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Cannot commit to the journal", e);
+            }
+        }
+        append(producer.getAddress(), what, wallClock, value);
+    }
+
+    @Override
+    protected void onBatchEnd() {
+        commitIfDue();
+    }
+
+    @Override
+    protected void onIdle() {
+        commitIfDue();
+    }
+
+    @Override
+    protected long getIdleDeadline() {
+        ReadingJournal journal = mJournal;
+        return journal != null ? journal.getCommitDeadline() : MeasurementBus.NO_DEADLINE;
+    }
+
+    @Override
+    protected void onStop() {
+        if (mJournal != null) {
+            try {
+                onCommitted(mJournal.commit());
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Cannot commit to the journal", e);
+            }
+        }
+        // All readings are in blocks now, the journal is no longer needed.
+        checkpoint();
+        closeQuietly(mJournal);
+        mJournal = null;
+    }
+
+    private void commitIfDue() {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            onCommitted(mJournal.commitIfDue(System.nanoTime()));
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Cannot commit to the journal", e);
+        }
+    }
+
+    // Acknowledges a commit and checkpoints a journal that grew too large.
+    private void onCommitted(int count) {
+        if (count == 0) {
+            return;
+        }
+        CommitListener listener = mCommitListener;
+        if (listener != null) {
+            listener.onCommitted(this, count, mJournal.getCommittedTimestamp());
+        }
+        if (mJournal.size() >= JOURNAL_CHECKPOINT_BYTES) {
+            checkpoint();
+        }
+    }
+
+    // Writes all open blocks, after which the committed journal records are redundant.
+    private void checkpoint() {
+        boolean written = true;
+        for (Map.Entry<String, GorillaCodec.Encoder[]> device : mEncoders.entrySet()) {
+            GorillaCodec.Encoder[] encoders = device.getValue();
+            for (int i = 0; i < encoders.length; i++) {
+                if (encoders[i] != null && encoders[i].getCount() > 0) {
+                    written &= writeBlock(device.getKey(), BluetoothHDPService.RECEIVED_SYS + i, encoders[i]);
+                }
+            }
+        }
+        if (mJournal != null && written) {
+            try {
+                mJournal.truncate();
+                writeCheckpoint();
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Cannot truncate the journal", e);
+            }
+        }
+    }
+
+    // Records the current length of every series file, after the journal was emptied.  A crash
+    // before the checkpoint file is replaced leaves the previous one with an empty journal; that
+    // is harmless for the replay, and onStart() checkpoints again before journaling new readings.
+    private void writeCheckpoint() throws IOException {
+        File temporary = new File(mDirectory, CHECKPOINT_FILE + ".tmp");
+        FileOutputStream file = new FileOutputStream(temporary);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+        try {
+            File[] files = mDirectory.listFiles();
+            int count = 0;
+            for (int i = 0; files != null && i < files.length; i++) {
+                if (metricOf(files[i]) >= 0) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (int i = 0; files != null && i < files.length; i++) {
+                if (metricOf(files[i]) >= 0) {
+                    out.writeUTF(files[i].getName());
+                    out.writeLong(files[i].length());
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        finally {
+            closeQuietly(out);
+        }
+        if (!temporary.renameTo(new File(mDirectory, CHECKPOINT_FILE))) {
+            throw new IOException("Cannot replace " + CHECKPOINT_FILE);
+        }
+    }
+
+    // Reads the series file lengths of the last checkpoint, or returns null if there is none.
+    private Map<String, Long> readCheckpoint() {
+        File file = new File(mDirectory, CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        Map<String, Long> lengths = new HashMap<String, Long>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            for (int count = in.readInt(); count > 0; count--) {
+                String name = in.readUTF();
+                lengths.put(name, in.readLong());
+            }
+            return lengths;
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Cannot read " + file, e);
+            return null;
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+    // Adds a value to the open block of its series, writing the block once it is full.  A value
+    // measured before the last one of the open block writes that block first, so blocks stay
+    // sorted.
+    private void append(String address, int what, long timestamp, float value) {
+        GorillaCodec.Encoder[] encoders = mEncoders.get(address);
+        if (encoders == null) {
+            encoders = new GorillaCodec.Encoder[BluetoothHDPService.RECEIVED_COUNT];
+            mEncoders.put(address, encoders);
+        }
+        int metric = what - BluetoothHDPService.RECEIVED_SYS;
+        GorillaCodec.Encoder encoder = encoders[metric];
+        if (encoder == null) {
+            encoder = new GorillaCodec.Encoder(mBlockBytes);
+            encoders[metric] = encoder;
+        }
+        if (encoder.getCount() > 0 && timestamp < encoder.getLastTimestamp()) {
+            writeBlock(address, what, encoder);
+        }
+        encoder.append(timestamp, value);
+        if (encoder.isFull()) {
+            writeBlock(address, what, encoder);
+        }
+    }
+
+    /**
+     * Restores the open blocks from the journal after a restart.  Series files are cut back to
+     * their last complete block first; the samples in blocks written since the last checkpoint
+     * are the first journal readings of their series and are skipped.  Without a checkpoint all
+     * readings are replayed.  Returns the number of readings replayed.
+     */
+    private int recover(File journal) throws IOException {
+        Map<String, Long> checkpoint = readCheckpoint();
+        final Map<String, Integer> stored = new HashMap<String, Integer>();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                int metric = metricOf(file) - BluetoothHDPService.RECEIVED_SYS;
+                if (metric >= 0 && metric < BluetoothHDPService.RECEIVED_COUNT) {
+                    Long since = checkpoint != null ? checkpoint.get(file.getName()) : Long.valueOf(file.length());
+                    stored.put(file.getName(), truncateIncompleteBlock(file, since != null ? since : 0));
+                }
+            }
+        }
+        final int[] replayed = new int[1];
+        ReadingJournal.replay(journal, new ReadingJournal.Visitor() {
+            @Override
+            public void onRecord(long address, int what, long timestamp, float value) {
+                int metric = what - BluetoothHDPService.RECEIVED_SYS;
+                if (metric < 0 || metric >= BluetoothHDPService.RECEIVED_COUNT) {
+                    return;
+                }
+                String device = ServiceSnapshot.addressOf(address);
+                String name = fileOf(device, what).getName();
+                Integer skip = stored.get(name);
+                if (skip != null && skip > 0) {
+                    stored.put(name, skip - 1);
+                    return;
+                }
+                append(device, what, timestamp, value);
+                replayed[0]++;
+            }
+        });
+        if (checkpoint == null) {
+            writeCheckpoint();
+        }
+        return replayed[0];
+    }
+
+    // Cuts a series file back to its last complete block.  Returns the number of samples in the
+    // complete blocks starting at or after the offset since.
+    private static int truncateIncompleteBlock(File file, long since) throws IOException {
+        long length = file.length();
+        long valid = 0;
+        int count = 0;
+        BlockReader reader = new BlockReader(file);
+        try {
+            while (reader.nextBlock() && valid + BLOCK_HEADER_SIZE + reader.getLength() <= length) {
+                if (valid >= since) {
+                    count += reader.getCount();
+                }
+                valid += BLOCK_HEADER_SIZE + reader.getLength();
+            }
+        }
+        catch (EOFException e) {
+            // A block header cut short.
+        }
+        finally {
+            closeQuietly(reader);
+        }
+        if (valid < length) {
+            Log.w(TAG, "Dropping " + (length - valid) + " bytes of an incomplete block of " + file);
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.setLength(valid);
+            }
+            finally {
+                closeQuietly(out);
+            }
+        }
+        return count;
+    }
+
+    // Bus timestamps are System.nanoTime() values; the archive stores wall clock milliseconds.
+    static long toWallClockMillis(long nanoTime) {
+        return System.currentTimeMillis() - (System.nanoTime() - nanoTime) / 1000000L;
+    }
+
+    // Appends a block and syncs it.  Returns false if the block could not be written.
+    private boolean writeBlock(String address, int what, GorillaCodec.Encoder encoder) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Cannot create " + mDirectory);
+            return false;
+        }
+        byte[] payload = encoder.toByteArray();
+        DataOutputStream out = null;
+        try {
+            FileOutputStream file = new FileOutputStream(fileOf(address, what), true);
+            out = new DataOutputStream(new BufferedOutputStream(file, BLOCK_HEADER_SIZE + payload.length));
+            out.writeInt(encoder.getCount());
+            out.writeLong(encoder.getFirstTimestamp());
+            out.writeLong(encoder.getLastTimestamp());
+            out.writeFloat(encoder.getMin());
+            out.writeFloat(encoder.getMax());
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+            file.getFD().sync();
+            Log.i(TAG, address + "/" + what + ": " + encoder.getCount() + " samples in " + payload.length + " bytes");
+            return true;
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Cannot write block of " + address + "/" + what, e);
+            return false;
+        }
+        finally {
+            closeQuietly(out);
+            encoder.reset();
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * Sequential reader of the blocks of a series file.  {@link #nextBlock} reads a header, after
+     * which the block is either decoded with {@link #decode} or skipped with the next call to
+     * nextBlock.  Not thread safe.
+     */
+    static final class BlockReader implements Closeable {
+        private final DataInputStream mIn;
+        private int mCount;
+        private long mFirstTimestamp;
+        private long mLastTimestamp;
+        private float mMin;
+        private float mMax;
+        private int mLength;
+        private boolean mPayloadPending;
+
+        BlockReader(File file) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+
+        // Reads the next block header.  Returns false at the end of the file.
+        boolean nextBlock() throws IOException {
+            if (mPayloadPending) {
+                skipFully(mLength);
+            }
+            try {
+                mCount = mIn.readInt();
+            }
+            catch (EOFException e) {
+                return false;
+            }
+            mFirstTimestamp = mIn.readLong();
+            mLastTimestamp = mIn.readLong();
+            mMin = mIn.readFloat();
+            mMax = mIn.readFloat();
+            mLength = mIn.readInt();
+            mPayloadPending = true;
+            return true;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        long getFirstTimestamp() {
+            return mFirstTimestamp;
+        }
+
+        long getLastTimestamp() {
+            return mLastTimestamp;
+        }
+
+        float getMin() {
+            return mMin;
+        }
+
+        float getMax() {
+            return mMax;
+        }
+
+        // Payload length of the current block.
+        int getLength() {
+            return mLength;
+        }
+
+        // Reads the payload of the current block and returns a decoder of its samples.
+        GorillaCodec.Decoder decode() throws IOException {
+            byte[] payload = new byte[mLength];
+            mIn.readFully(payload);
+            mPayloadPending = false;
+            return new GorillaCodec.Decoder(payload, mCount);
+        }
+
+        private void skipFully(int length) throws IOException {
+            while (length > 0) {
+                int skipped = mIn.skipBytes(length);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                length -= skipped;
+            }
+            mPayloadPending = false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fan-out bus between the channel read threads and the consumers of decoded measurements.
+ *
+ * Every read thread owns a {@link Producer} with a preallocated ring of primitive slots.  A
+ * producer publishes an event by filling the next slot and advancing its sequence; it never
+ * waits for consumers.  Every {@link Consumer} runs on its own thread and keeps an independent
+ * cursor per producer, so a slow consumer (e.g. a blocked client) only falls behind itself.  A
+ * consumer that falls a ring's capacity behind skips the overwritten events and counts them as
+ * dropped; the slot being written is never read, so at most capacity - 1 events are buffered.
+ */
+class MeasurementBus {
+    private static final String TAG = "MeasurementBus";
+
+    // Maximum number of concurrently open producers, i.e. channels.
+    static final int MAX_PRODUCERS = 16;
+    // Consumer.getIdleDeadline() result of a consumer with no time-bounded work pending.
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    // Quality of a published value, see OximetryFilter.  Consumers read it with
+    // Consumer.getQuality() while handling the event.
+    static final int QUALITY_GOOD = 0;
+    static final int QUALITY_QUESTIONABLE = 1;
+    static final int QUALITY_ARTIFACT = 2;
+
+    private final int mCapacity;
+    private final int mMask;
+    private final Producer[] mProducers = new Producer[MAX_PRODUCERS];
+    private volatile Consumer[] mConsumers = new Consumer[0];
+
+    // capacity must be a power of two.
+    MeasurementBus(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        mCapacity = capacity;
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Opens a producer for a channel.  Slots of closed producers are reused together with their
+     * rings, and their sequence continues, so consumer cursors stay valid.  A closed slot is only
+     * reused once every consumer has handled all of its events, so no event of the previous
+     * channel is attributed to the new one.  Returns null if all MAX_PRODUCERS slots are in use.
+     */
+    synchronized Producer openProducer(String address, int dataType) {
+        for (int i = 0; i < MAX_PRODUCERS; i++) {
+            if (mProducers[i] == null) {
+                mProducers[i] = new Producer(i);
+            }
+            if (!mProducers[i].mOpen && isDrained(i)) {
+                mProducers[i].open(address, dataType);
+                return mProducers[i];
+            }
+        }
+        return null;
+    }
+
+    // Whether no consumer has unhandled or held back events of a producer slot.
+    private boolean isDrained(int producer) {
+        long published = mProducers[producer].mPublished.get();
+        for (Consumer consumer : mConsumers) {
+            if (consumer.mCursors.get(producer) != published || consumer.isHolding(producer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Registers a consumer and starts its thread.  The consumer only sees events published from
+    // now on.
+    synchronized void addConsumer(Consumer consumer) {
+        for (int i = 0; i < MAX_PRODUCERS; i++) {
+            if (mProducers[i] != null) {
+                consumer.mCursors.set(i, mProducers[i].mPublished.get());
+            }
+        }
+        Consumer[] consumers = new Consumer[mConsumers.length + 1];
+        System.arraycopy(mConsumers, 0, consumers, 0, mConsumers.length);
+        consumers[mConsumers.length] = consumer;
+        mConsumers = consumers;
+        consumer.mBus = this;
+        consumer.mThread = new Thread(consumer, consumer.getName());
+        consumer.mThread.start();
+    }
+
+    synchronized void shutdown() {
+        for (Consumer consumer : mConsumers) {
+            consumer.quit();
+        }
+        mConsumers = new Consumer[0];
+    }
+
+    Consumer[] getConsumers() {
+        return mConsumers;
+    }
+
+    // Wakes parked consumers after a publish.  Reads the consumer array once and allocates nothing.
+    private void signalConsumers() {
+        Consumer[] consumers = mConsumers;
+        for (int i = 0; i < consumers.length; i++) {
+            if (consumers[i].mParked) {
+                LockSupport.unpark(consumers[i].mThread);
+            }
+        }
+    }
+
+    /**
+     * Single-threaded publisher of one channel.  Only the owning read thread may call
+     * {@link #publish}.
+     */
+    final class Producer {
+        final int id;
+        private final int[] mWhat = new int[mCapacity];
+        private final float[] mValue = new float[mCapacity];
+        private final long[] mTimestamp = new long[mCapacity];
+        private final byte[] mQuality = new byte[mCapacity];
+        private final long[] mMeasured = new long[mCapacity];
+        // Number of events published into this slot so far.
+        private final AtomicLong mPublished = new AtomicLong();
+        private volatile boolean mOpen;
+        private volatile String mAddress;
+        private volatile int mDataType;
+
+        private Producer(int id) {
+            this.id = id;
+        }
+
+        private void open(String address, int dataType) {
+            mAddress = address;
+            mDataType = dataType;
+            mOpen = true;
+        }
+
+        String getAddress() {
+            return mAddress;
+        }
+
+        int getDataType() {
+            return mDataType;
+        }
+
+        /**
+         * Publishes an event.  what is one of the BluetoothHDPService client message codes,
+         * timestamp is the System.nanoTime() at which the underlying APDU arrived.
+         */
+        void publish(int what, float value, long timestamp) {
+            publish(what, value, QUALITY_GOOD, timestamp);
+        }
+
+        // Publishes an event with one of the QUALITY_* flags.
+        void publish(int what, float value, int quality, long timestamp) {
+            publish(what, value, quality, timestamp, 0);
+        }
+
+        /**
+         * Publishes an observation with the time it was measured, on the manager's wall clock in
+         * milliseconds, or 0 if unknown.
+         */
+        void publish(int what, float value, int quality, long timestamp, long measuredMillis) {
+            long sequence = mPublished.get();
+            int index = (int) (sequence & mMask);
+            mWhat[index] = what;
+            mValue[index] = value;
+            mTimestamp[index] = timestamp;
+            mQuality[index] = (byte) quality;
+            mMeasured[index] = measuredMillis;
+            // A full fence between publishing and reading the consumers' parked flags, which
+            // they set before re-checking their lag; otherwise the wakeup may be lost.
+            mPublished.set(sequence + 1);
+            signalConsumers();
+        }
+
+        void close() {
+            synchronized (MeasurementBus.this) {
+                mOpen = false;
+            }
+        }
+    }
+
+    /**
+     * Consumer of bus events, running on its own thread.  Implementations receive every event
+     * through {@link #onEvent} and may flush work in {@link #onBatchEnd}, which is called
+     * whenever the consumer has caught up with all producers.
+     */
+    abstract static class Consumer implements Runnable {
+        private final String mName;
+        // Written by the consumer thread only, read by openProducer() and getLag().
+        private final AtomicLongArray mCursors = new AtomicLongArray(MAX_PRODUCERS);
+        private final AtomicLong mDropped = new AtomicLong();
+        // Time from APDU arrival until the event was handed to this consumer.
+        private final LatencyHistogram mLatency;
+        private volatile long mMaxLag;
+        // Written by the consumer thread only.
+        private volatile long mWakeups;
+        private volatile boolean mParked;
+        private volatile boolean mRunning = true;
+        private MeasurementBus mBus;
+        private Thread mThread;
+        // Quality and measurement time of the event being handled.
+        private int mQuality;
+        private long mMeasured;
+
+        Consumer(String name) {
+            mName = name;
+            mLatency = new LatencyHistogram(name + " lag");
+        }
+
+        String getName() {
+            return mName;
+        }
+
+        // Returns the QUALITY_* flag of the event passed to onEvent; only valid during onEvent.
+        protected final int getQuality() {
+            return mQuality;
+        }
+
+        /**
+         * Returns the time the event passed to onEvent was measured, on the manager's wall clock in
+         * milliseconds.  Falls back to its arrival time if the agent did not report it.
+         */
+        protected final long getMeasuredMillis(long timestamp) {
+            return mMeasured != 0 ? mMeasured : MeasurementArchive.toWallClockMillis(timestamp);
+        }
+
+        protected abstract void onEvent(Producer producer, int what, float value, long timestamp);
+
+        // Called on the consumer thread before the first event, e.g. to set the thread priority.
+        protected void onStart() {
+        }
+
+        protected void onBatchEnd() {
+        }
+
+        // Called on the consumer thread whenever it wakes up from waiting for events, and once the
+        // deadline returned by getIdleDeadline() has passed, e.g. to flush time-bounded batches.
+        protected void onIdle() {
+        }
+
+        /**
+         * Returns the System.nanoTime() by which onIdle must run even if no event arrives, or
+         * NO_DEADLINE.  Called on the consumer thread before it waits for events; without a
+         * deadline the thread sleeps until the next publish.
+         */
+        protected long getIdleDeadline() {
+            return NO_DEADLINE;
+        }
+
+        // Returns the earlier of two System.nanoTime() deadlines, either of which may be
+        // NO_DEADLINE.
+        protected static long earlierDeadline(long a, long b) {
+            if (a == NO_DEADLINE) {
+                return b;
+            }
+            if (b == NO_DEADLINE) {
+                return a;
+            }
+            return a - b < 0 ? a : b;
+        }
+
+        // Called on the consumer thread after it has been asked to quit, e.g. to flush state.
+        protected void onStop() {
+        }
+
+        /**
+         * Whether the consumer still holds back handled events of a producer slot.  Called from
+         * other threads; the slot is not reused for another channel while this returns true.
+         */
+        protected boolean isHolding(int producer) {
+            return false;
+        }
+
+        // Number of published events this consumer has not processed yet.
+        long getLag() {
+            long lag = 0;
+            for (int i = 0; i < MAX_PRODUCERS; i++) {
+                Producer producer = mBus.mProducers[i];
+                if (producer != null) {
+                    lag += producer.mPublished.get() - mCursors.get(i);
+                }
+            }
+            return lag;
+        }
+
+        long getMaxLag() {
+            return mMaxLag;
+        }
+
+        long getDropped() {
+            return mDropped.get();
+        }
+
+        LatencyHistogram getLatency() {
+            return mLatency;
+        }
+
+        // Number of times the consumer thread ran out of events and waited, i.e. its wakeups.
+        long getWakeups() {
+            return mWakeups;
+        }
+
+        void quit() {
+            mRunning = false;
+            LockSupport.unpark(mThread);
+        }
+
+        @Override
+        public void run() {
+            onStart();
+            while (mRunning) {
+                if (drain()) {
+                    onBatchEnd();
+                    continue;
+                }
+                mParked = true;
+                // Re-check after announcing the park, a producer may have published meanwhile.
+                if (getLag() == 0 && mRunning) {
+                    long deadline = getIdleDeadline();
+                    if (deadline == NO_DEADLINE) {
+                        LockSupport.park(this);
+                    }
+                    else if (deadline - System.nanoTime() > 0) {
+                        LockSupport.parkNanos(this, deadline - System.nanoTime());
+                    }
+                }
+                mParked = false;
+                mWakeups++;
+                onIdle();
+            }
+            onStop();
+            Log.i(TAG, mLatency + ", dropped=" + mDropped.get() + ", max lag=" + mMaxLag);
+        }
+
+        // Processes all events published so far.  Returns false if there was nothing to do.
+        private boolean drain() {
+            boolean consumed = false;
+            int capacity = mBus.mCapacity;
+            int mask = mBus.mMask;
+            for (int i = 0; i < MAX_PRODUCERS; i++) {
+                Producer producer = mBus.mProducers[i];
+                if (producer == null) {
+                    continue;
+                }
+                long cursor = mCursors.get(i);
+                long published = producer.mPublished.get();
+                long lag = published - cursor;
+                if (lag > mMaxLag) {
+                    mMaxLag = lag;
+                }
+                // The producer writes slot published & mask before publishing it, so the oldest
+                // readable event is published - capacity + 1.
+                if (lag >= capacity) {
+                    mDropped.addAndGet(lag - capacity + 1);
+                    cursor = published - capacity + 1;
+                }
+                while (cursor < published) {
+                    int index = (int) (cursor & mask);
+                    int what = producer.mWhat[index];
+                    float value = producer.mValue[index];
+                    long timestamp = producer.mTimestamp[index];
+                    int quality = producer.mQuality[index];
+                    long measured = producer.mMeasured[index];
+                    // The producer does not wait for consumers; discard the slot if it has been
+                    // overwritten while it was read.
+                    if (producer.mPublished.get() - cursor >= capacity) {
+                        mDropped.incrementAndGet();
+                        cursor++;
+                        continue;
+                    }
+                    mLatency.record(System.nanoTime() - timestamp);
+                    mQuality = quality;
+                    mMeasured = measured;
+                    onEvent(producer, what, value, timestamp);
+                    cursor++;
+                    consumed = true;
+                }
+                mCursors.lazySet(i, cursor);
+            }
+            return consumed;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+/**
+ * Contract of {@link MeasurementHistoryProvider}.
+ *
+ * Rows are decoded values, ordered by timestamp.  Queries are parameterized with URI query
+ * parameters instead of SQL selections: device address, metric, time range and page size.
+ * Results are paged by key: a page ends on a timestamp boundary, and the next page is requested
+ * with {@link #nextPage}, passing the timestamp of the last row.  A page therefore may exceed the
+ * requested limit by rows sharing the timestamp of its last row.
+ */
+final class MeasurementHistory {
+    static final String AUTHORITY = "com.example.bluetooth.health.history";
+    static final Uri CONTENT_URI = Uri.parse(ContentResolver.SCHEME_CONTENT + "://" + AUTHORITY + "/measurements");
+    static final String CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.com.example.bluetooth.health.measurement";
+
+    // Columns.
+    static final String DEVICE = "device";
+    // BluetoothHDPService.RECEIVED_* code.
+    static final String METRIC = "metric";
+    // Wall clock time in milliseconds.
+    static final String TIMESTAMP = "timestamp";
+    static final String VALUE = "value";
+    static final String[] COLUMNS = {DEVICE, METRIC, TIMESTAMP, VALUE};
+
+    // Query parameters.  All are optional.
+    static final String PARAM_DEVICE = "device";
+    static final String PARAM_METRIC = "metric";
+    // Inclusive time range in milliseconds.
+    static final String PARAM_FROM = "from";
+    static final String PARAM_TO = "to";
+    // Only rows strictly after this timestamp: the key of the previous page.
+    static final String PARAM_AFTER = "after";
+    static final String PARAM_LIMIT = "limit";
+
+    static final int DEFAULT_LIMIT = 1000;
+    // Largest page.  A row takes well under 128 bytes in a cursor window, so a page stays far
+    // below the binder transaction limit and fits one window.
+    static final int MAX_LIMIT = 4096;
+
+    private MeasurementHistory() {
+    }
+
+    // Returns the URI of the page following the one whose last row had the given timestamp.
+    static Uri nextPage(Uri query, long lastTimestamp) {
+        Uri.Builder builder = CONTENT_URI.buildUpon();
+        String[] keep = {PARAM_DEVICE, PARAM_METRIC, PARAM_FROM, PARAM_TO, PARAM_LIMIT};
+        for (String param : keep) {
+            String value = query.getQueryParameter(param);
+            if (value != null) {
+                builder.appendQueryParameter(param, value);
+            }
+        }
+        return builder.appendQueryParameter(PARAM_AFTER, Long.toString(lastTimestamp)).build();
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read-only provider of the measurement history stored by {@link MeasurementArchive}.  See
+ * {@link MeasurementHistory} for the query interface.
+ *
+ * A query decodes the matching series files block by block and merges them by timestamp, so
+ * memory is bounded by one page plus one block per sorted run of blocks regardless of the
+ * history size.  Blocks outside the time range are skipped on their headers.  Values still held in the
+ * archive's open blocks are not visible until those blocks are written.
+ */
+public class MeasurementHistoryProvider extends ContentProvider {
+    private static final String TAG = "MeasurementHistoryProvider";
+
+    private static final int MEASUREMENTS = 1;
+    private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+    static {
+        sUriMatcher.addURI(MeasurementHistory.AUTHORITY, "measurements", MEASUREMENTS);
+    }
+
+    private File mDirectory;
+
+    @Override
+    public boolean onCreate() {
+        mDirectory = MeasurementArchive.directoryOf(getContext());
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return sUriMatcher.match(uri) == MEASUREMENTS ? MeasurementHistory.CONTENT_TYPE : null;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (sUriMatcher.match(uri) != MEASUREMENTS) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        if (selection != null || sortOrder != null) {
+            throw new IllegalArgumentException("Use query parameters for selection; rows are ordered by timestamp");
+        }
+        String[] columns = projection != null ? projection : MeasurementHistory.COLUMNS;
+        int[] columnIds = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            columnIds[i] = columnIdOf(columns[i]);
+        }
+
+        String device = uri.getQueryParameter(MeasurementHistory.PARAM_DEVICE);
+        int metric = intParameter(uri, MeasurementHistory.PARAM_METRIC, -1);
+        long from = longParameter(uri, MeasurementHistory.PARAM_FROM, Long.MIN_VALUE);
+        long to = longParameter(uri, MeasurementHistory.PARAM_TO, Long.MAX_VALUE);
+        long after = longParameter(uri, MeasurementHistory.PARAM_AFTER, Long.MIN_VALUE);
+        if (after != Long.MIN_VALUE) {
+            from = Math.max(from, after + 1);
+        }
+        int limit = Math.min(intParameter(uri, MeasurementHistory.PARAM_LIMIT, MeasurementHistory.DEFAULT_LIMIT),
+                MeasurementHistory.MAX_LIMIT);
+
+        List<Series> series = openSeries(mDirectory, device, metric, from, to);
+        MatrixCursor cursor = new MatrixCursor(columns, Math.max(limit, 1));
+        try {
+            Object[] row = new Object[columns.length];
+            long lastTimestamp = Long.MIN_VALUE;
+            int rows = 0;
+            while (true) {
+                Series next = null;
+                for (Series s : series) {
+                    if (s.hasSample() && (next == null || s.getTimestamp() < next.getTimestamp())) {
+                        next = s;
+                    }
+                }
+                // Only end a page on a timestamp boundary, so the next page can start after it.
+                if (next == null || (rows >= limit && next.getTimestamp() != lastTimestamp)) {
+                    break;
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    row[i] = next.get(columnIds[i]);
+                }
+                cursor.addRow(row);
+                lastTimestamp = next.getTimestamp();
+                rows++;
+                next.advance();
+            }
+        }
+        finally {
+            for (Series s : series) {
+                s.close();
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Opens the series files of a device and metric (null and -1 match all), each positioned at
+     * its first sample in the time range.  A file whose blocks are not in time order, after
+     * late values were archived, is opened as one Series per sorted run of blocks; merging all
+     * Series by timestamp yields the samples in order.  Also used by HistoryExport.
+     */
+    static List<Series> openSeries(File directory, String device, int metric, long from, long to) {
+        List<Series> series = new ArrayList<Series>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return series;
+        }
+        for (File file : files) {
+            String address = MeasurementArchive.addressOf(file);
+            int what = MeasurementArchive.metricOf(file);
+            if (address == null || what < 0 || (device != null && !device.equals(address))
+                    || (metric >= 0 && metric != what)) {
+                continue;
+            }
+            try {
+                openRuns(file, address, what, from, to, series);
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Cannot read " + file, e);
+            }
+        }
+        return series;
+    }
+
+    // Adds a Series for every sorted run of blocks of a file that overlaps the time range.
+    private static void openRuns(File file, String address, int what, long from, long to, List<Series> series)
+            throws IOException {
+        MeasurementArchive.BlockReader reader = new MeasurementArchive.BlockReader(file);
+        try {
+            int block = 0;
+            int start = 0;
+            long first = Long.MAX_VALUE;
+            long last = Long.MIN_VALUE;
+            while (hasNextBlock(reader)) {
+                if (block > start && reader.getFirstTimestamp() < last) {
+                    openRun(file, address, what, from, to, start, block - start, first, last, series);
+                    start = block;
+                    first = Long.MAX_VALUE;
+                }
+                first = Math.min(first, reader.getFirstTimestamp());
+                last = reader.getLastTimestamp();
+                block++;
+            }
+            openRun(file, address, what, from, to, start, block - start, first, last, series);
+        }
+        finally {
+            MeasurementArchive.closeQuietly(reader);
+        }
+    }
+
+    // Reads the next block header; a header being appended right now counts as the end.
+    private static boolean hasNextBlock(MeasurementArchive.BlockReader reader) throws IOException {
+        try {
+            return reader.nextBlock();
+        }
+        catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static void openRun(File file, String address, int what, long from, long to, int start, int blocks,
+                                long first, long last, List<Series> series) throws IOException {
+        if (blocks == 0 || last < from || first > to) {
+            return;
+        }
+        Series s = new Series(file, address, what, from, to, start, blocks);
+        s.advance();
+        series.add(s);
+    }
+
+    private static final int COLUMN_DEVICE = 0;
+    private static final int COLUMN_METRIC = 1;
+    private static final int COLUMN_TIMESTAMP = 2;
+    private static final int COLUMN_VALUE = 3;
+
+    private static int columnIdOf(String column) {
+        for (int i = 0; i < MeasurementHistory.COLUMNS.length; i++) {
+            if (MeasurementHistory.COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column " + column);
+    }
+
+    private static int intParameter(Uri uri, String name, int defaultValue) {
+        String value = uri.getQueryParameter(name);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static long longParameter(Uri uri, String name, long defaultValue) {
+        String value = uri.getQueryParameter(name);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Measurement history is read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Measurement history is read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Measurement history is read-only");
+    }
+
+    /**
+     * Samples of a sorted run of blocks of a series file within a time range, decoded one block at
+     * a time.
+     */
+    static final class Series {
+        private final MeasurementArchive.BlockReader mReader;
+        private final String mAddress;
+        private final int mMetric;
+        private final long mFrom;
+        private final long mTo;
+        // Blocks of the run not read yet.
+        private int mBlocks;
+        private GorillaCodec.Decoder mDecoder;
+        private boolean mHasSample;
+
+        // Opens the run of blocks blocks starting at block index start.
+        Series(File file, String address, int metric, long from, long to, int start, int blocks) throws IOException {
+            mReader = new MeasurementArchive.BlockReader(file);
+            mAddress = address;
+            mMetric = metric;
+            mFrom = from;
+            mTo = to;
+            mBlocks = blocks;
+            try {
+                for (int i = 0; i < start; i++) {
+                    if (!mReader.nextBlock()) {
+                        throw new EOFException();
+                    }
+                }
+            }
+            catch (IOException e) {
+                MeasurementArchive.closeQuietly(mReader);
+                throw e;
+            }
+        }
+
+        boolean hasSample() {
+            return mHasSample;
+        }
+
+        long getTimestamp() {
+            return mDecoder.getTimestamp();
+        }
+
+        String getAddress() {
+            return mAddress;
+        }
+
+        int getMetric() {
+            return mMetric;
+        }
+
+        float getValue() {
+            return mDecoder.getValue();
+        }
+
+        Object get(int column) {
+            switch (column) {
+                case COLUMN_DEVICE:
+                    return mAddress;
+                case COLUMN_METRIC:
+                    return mMetric;
+                case COLUMN_TIMESTAMP:
+                    return mDecoder.getTimestamp();
+                default:
+                    return mDecoder.getValue();
+            }
+        }
+
+        // Moves to the next sample in the time range.
+        void advance() {
+            mHasSample = false;
+            try {
+                while (true) {
+                    if (mDecoder == null || !mDecoder.next()) {
+                        mDecoder = null;
+                        if (mBlocks == 0 || !mReader.nextBlock() || mReader.getFirstTimestamp() > mTo) {
+                            return;
+                        }
+                        mBlocks--;
+                        if (mReader.getLastTimestamp() >= mFrom) {
+                            mDecoder = mReader.decode();
+                        }
+                        continue;
+                    }
+                    long timestamp = mDecoder.getTimestamp();
+                    if (timestamp > mTo) {
+                        return;
+                    }
+                    if (timestamp >= mFrom) {
+                        mHasSample = true;
+                        return;
+                    }
+                }
+            }
+            catch (IOException e) {
+                // A block being appended right now is incomplete; it is visible to the next query.
+                Log.w(TAG, "Series of " + mAddress + "/" + mMetric + " ends early: " + e);
+            }
+        }
+
+        void close() {
+            MeasurementArchive.closeQuietly(mReader);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * Incremental statistics of a single metric of a single device, in constant memory.
+ *
+ * Rolling mean, minimum and maximum cover the last {@code windowSize} samples; min and max use
+ * monotonic queues so every sample costs amortized O(1).  The exponentially weighted moving
+ * average and the P-square quantile estimates (Jain and Chlamtac, 1985) cover the whole stream.
+ */
+class MetricStatistics {
+    static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final int mWindowSize;
+    private final double mEwmaAlpha;
+
+    // Sliding window of the last samples, indexed by sample number modulo the window size.
+    private final float[] mWindow;
+    private double mWindowSum;
+    private long mCount;
+
+    // Monotonic queues of sample numbers whose values are increasing (min) or decreasing (max).
+    private final long[] mMinQueue;
+    private int mMinHead, mMinSize;
+    private final long[] mMaxQueue;
+    private int mMaxHead, mMaxSize;
+
+    private double mEwma;
+    private final PSquareQuantile[] mQuantiles = new PSquareQuantile[QUANTILES.length];
+
+    MetricStatistics(int windowSize, double ewmaAlpha) {
+        mWindowSize = windowSize;
+        mEwmaAlpha = ewmaAlpha;
+        mWindow = new float[windowSize];
+        mMinQueue = new long[windowSize];
+        mMaxQueue = new long[windowSize];
+        for (int i = 0; i < QUANTILES.length; i++) {
+            mQuantiles[i] = new PSquareQuantile(QUANTILES[i]);
+        }
+    }
+
+    synchronized void add(float value) {
+        long n = mCount++;
+        int slot = (int) (n % mWindowSize);
+        if (n >= mWindowSize) {
+            mWindowSum -= mWindow[slot];
+        }
+        mWindow[slot] = value;
+        mWindowSum += value;
+
+        long oldest = n - mWindowSize;
+        // Min queue: drop expired head, then every tail entry that is not smaller than value.
+        if (mMinSize > 0 && mMinQueue[mMinHead] <= oldest) {
+            mMinHead = (mMinHead + 1) % mWindowSize;
+            mMinSize--;
+        }
+        while (mMinSize > 0 && valueOf(mMinQueue[(mMinHead + mMinSize - 1) % mWindowSize]) >= value) {
+            mMinSize--;
+        }
+        mMinQueue[(mMinHead + mMinSize++) % mWindowSize] = n;
+        // Max queue, symmetrically.
+        if (mMaxSize > 0 && mMaxQueue[mMaxHead] <= oldest) {
+            mMaxHead = (mMaxHead + 1) % mWindowSize;
+            mMaxSize--;
+        }
+        while (mMaxSize > 0 && valueOf(mMaxQueue[(mMaxHead + mMaxSize - 1) % mWindowSize]) <= value) {
+            mMaxSize--;
+        }
+        mMaxQueue[(mMaxHead + mMaxSize++) % mWindowSize] = n;
+
+        mEwma = n == 0 ? value : mEwma + mEwmaAlpha * (value - mEwma);
+        for (int i = 0; i < mQuantiles.length; i++) {
+            mQuantiles[i].add(value);
+        }
+    }
+
+    private float valueOf(long sample) {
+        return mWindow[(int) (sample % mWindowSize)];
+    }
+
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    synchronized double getMean() {
+        long inWindow = Math.min(mCount, mWindowSize);
+        return inWindow == 0 ? Double.NaN : mWindowSum / inWindow;
+    }
+
+    synchronized float getMin() {
+        return mMinSize == 0 ? Float.NaN : valueOf(mMinQueue[mMinHead]);
+    }
+
+    synchronized float getMax() {
+        return mMaxSize == 0 ? Float.NaN : valueOf(mMaxQueue[mMaxHead]);
+    }
+
+    synchronized double getEwma() {
+        return mCount == 0 ? Double.NaN : mEwma;
+    }
+
+    // Returns the estimate of QUANTILES[index].
+    synchronized double getQuantile(int index) {
+        return mQuantiles[index].get();
+    }
+
+    /**
+     * P-square estimator of a single quantile.  Keeps five markers whose heights approximate the
+     * minimum, the p/2, p and (1+p)/2 quantiles and the maximum.
+     */
+    private static final class PSquareQuantile {
+        private final double[] mHeights = new double[5];
+        private final double[] mPositions = new double[5];
+        private final double[] mDesired = new double[5];
+        private final double[] mIncrements = new double[5];
+        private int mCount;
+
+        PSquareQuantile(double p) {
+            mIncrements[0] = 0;
+            mIncrements[1] = p / 2;
+            mIncrements[2] = p;
+            mIncrements[3] = (1 + p) / 2;
+            mIncrements[4] = 1;
+            for (int i = 0; i < 5; i++) {
+                mPositions[i] = i + 1;
+                mDesired[i] = 1 + 4 * mIncrements[i];
+            }
+        }
+
+        void add(double x) {
+            if (mCount < 5) {
+                // Insertion sort of the first five observations.
+                int i = mCount++;
+                while (i > 0 && mHeights[i - 1] > x) {
+                    mHeights[i] = mHeights[i - 1];
+                    i--;
+                }
+                mHeights[i] = x;
+                return;
+            }
+            mCount++;
+            int k;
+            if (x < mHeights[0]) {
+                mHeights[0] = x;
+                k = 0;
+            }
+            else if (x >= mHeights[4]) {
+                mHeights[4] = x;
+                k = 3;
+            }
+            else {
+                k = 0;
+                while (x >= mHeights[k + 1]) {
+                    k++;
+                }
+            }
+            for (int i = k + 1; i < 5; i++) {
+                mPositions[i]++;
+            }
+            for (int i = 0; i < 5; i++) {
+                mDesired[i] += mIncrements[i];
+            }
+            for (int i = 1; i < 4; i++) {
+                double d = mDesired[i] - mPositions[i];
+                if ((d >= 1 && mPositions[i + 1] - mPositions[i] > 1)
+                        || (d <= -1 && mPositions[i - 1] - mPositions[i] < -1)) {
+                    int sign = d > 0 ? 1 : -1;
+                    double height = parabolic(i, sign);
+                    if (mHeights[i - 1] < height && height < mHeights[i + 1]) {
+                        mHeights[i] = height;
+                    }
+                    else {
+                        mHeights[i] += sign * (mHeights[i + sign] - mHeights[i]) / (mPositions[i + sign] - mPositions[i]);
+                    }
+                    mPositions[i] += sign;
+                }
+            }
+        }
+
+        private double parabolic(int i, int d) {
+            double[] q = mHeights;
+            double[] n = mPositions;
+            return q[i] + d / (n[i + 1] - n[i - 1])
+                    * ((n[i] - n[i - 1] + d) * (q[i + 1] - q[i]) / (n[i + 1] - n[i])
+                    + (n[i + 1] - n[i] - d) * (q[i] - q[i - 1]) / (n[i] - n[i - 1]));
+        }
+
+        double get() {
+            if (mCount == 0) {
+                return Double.NaN;
+            }
+            if (mCount < 5) {
+                // Exact quantile of the few sorted observations.
+                int index = (int) Math.round((mCount - 1) * (mIncrements[2]));
+                return mHeights[index];
+            }
+            return mHeights[2];
+        }
+    }
+}
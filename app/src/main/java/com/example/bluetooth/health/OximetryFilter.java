@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * Streaming artifact rejection for pulse oximeter observations, run on the read thread before a
+ * value is evaluated by the {@link AlarmEngine} and published on the measurement bus.
+ *
+ * Each SpO2 and pulse rate stream keeps a short window of recent samples and its running median.
+ * A sample is an artifact if it is out of range, if the agent's Measurement-Status marks it
+ * invalid, or if it both jumps away from the median and changes faster than physiologically
+ * plausible.  Meeting only one of the two gates, or a questionable Measurement-Status, marks it
+ * questionable.  Every sample enters the window, so a genuine step is accepted once it has moved
+ * the median.
+ *
+ * State is kept per measurement bus producer and metric in preallocated primitive arrays, so
+ * {@link #filter} allocates nothing and does constant work per sample.  A producer slot is only
+ * ever filtered by its own read thread.
+ */
+class OximetryFilter {
+    // Measurement-Status bits (IEEE 11073-20601), as carried by MDC_ATTR_MSMT_STAT.
+    static final int MSMT_INVALID = 0x8000;
+    static final int MSMT_QUESTIONABLE = 0x4000;
+    static final int MSMT_NOT_AVAILABLE = 0x2000;
+    static final int MSMT_CALIBRATION_ONGOING = 0x1000;
+    static final int MSMT_EARLY_INDICATION = 0x0040;
+
+    // Number of samples of the running median, and the number needed before gating starts.
+    private static final int WINDOW = 5;
+    private static final int MIN_SAMPLES = 3;
+
+    private static final int METRIC_SPO2 = 0;
+    private static final int METRIC_PULSE = 1;
+    private static final int METRICS = 2;
+
+    // Plausible range, maximum distance from the median and maximum change per second, by metric.
+    private static final float[] MIN_VALUE = {1, 20};
+    private static final float[] MAX_VALUE = {100, 300};
+    private static final float[] MAX_DEVIATION = {4, 25};
+    private static final float[] MAX_RATE_PER_SECOND = {3, 20};
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    // Per producer and metric state, indexed by producer * METRICS + metric.  The windows hold
+    // WINDOW samples per stream, once in arrival order and once sorted.
+    private final float[] mWindow;
+    private final float[] mSorted;
+    private final int[] mCount;
+    private final int[] mNext;
+    private final float[] mLastValue;
+    private final long[] mLastTimestamp;
+
+    OximetryFilter() {
+        int size = MeasurementBus.MAX_PRODUCERS * METRICS;
+        mWindow = new float[size * WINDOW];
+        mSorted = new float[size * WINDOW];
+        mCount = new int[size];
+        mNext = new int[size];
+        mLastValue = new float[size];
+        mLastTimestamp = new long[size];
+    }
+
+    // Clears the state of a producer slot when it is (re)opened for a new channel.
+    void reset(int producer) {
+        for (int metric = 0; metric < METRICS; metric++) {
+            clear(producer * METRICS + metric);
+        }
+    }
+
+    private void clear(int i) {
+        mCount[i] = 0;
+        mNext[i] = 0;
+        mLastTimestamp[i] = 0;
+    }
+
+    /**
+     * Filters an observation.  status holds the agent's Measurement-Status bits, timestamp is the
+     * System.nanoTime() at which the APDU arrived.  Returns one of the MeasurementBus.QUALITY_*
+     * flags; values of other metrics than SpO2 and pulse rate are always good.
+     */
+    int filter(int producer, int what, float value, int status, long timestamp) {
+        int metric;
+        if (what == BluetoothHDPService.RECEIVED_O2) {
+            metric = METRIC_SPO2;
+        }
+        else if (what == BluetoothHDPService.RECEIVED_HEART_RATE) {
+            metric = METRIC_PULSE;
+        }
+        else {
+            return MeasurementBus.QUALITY_GOOD;
+        }
+        int i = producer * METRICS + metric;
+        if ((status & (MSMT_INVALID | MSMT_NOT_AVAILABLE)) != 0 || Float.isNaN(value) || Float.isInfinite(value)) {
+            // No valid signal, e.g. the probe is off; start over once it is back.
+            clear(i);
+            return MeasurementBus.QUALITY_ARTIFACT;
+        }
+        if (value < MIN_VALUE[metric] || value > MAX_VALUE[metric]) {
+            return MeasurementBus.QUALITY_ARTIFACT;
+        }
+
+        boolean deviates = false;
+        boolean tooFast = false;
+        if (mCount[i] >= MIN_SAMPLES) {
+            deviates = Math.abs(value - median(i)) > MAX_DEVIATION[metric];
+            if (timestamp > mLastTimestamp[i]) {
+                double rate = (value - mLastValue[i]) * NANOS_PER_SECOND / (timestamp - mLastTimestamp[i]);
+                tooFast = Math.abs(rate) > MAX_RATE_PER_SECOND[metric];
+            }
+        }
+        add(i, value);
+
+        if (deviates && tooFast) {
+            return MeasurementBus.QUALITY_ARTIFACT;
+        }
+        mLastValue[i] = value;
+        mLastTimestamp[i] = timestamp;
+        if (deviates || tooFast
+                || (status & (MSMT_QUESTIONABLE | MSMT_CALIBRATION_ONGOING | MSMT_EARLY_INDICATION)) != 0) {
+            return MeasurementBus.QUALITY_QUESTIONABLE;
+        }
+        return MeasurementBus.QUALITY_GOOD;
+    }
+
+    // Median of the samples in the window of a stream.
+    private float median(int i) {
+        int base = i * WINDOW;
+        int count = mCount[i];
+        if ((count & 1) == 1) {
+            return mSorted[base + count / 2];
+        }
+        return (mSorted[base + count / 2 - 1] + mSorted[base + count / 2]) / 2;
+    }
+
+    // Adds a sample to the window of a stream, replacing the oldest one once the window is full,
+    // and keeps the sorted copy in order by insertion.
+    private void add(int i, float value) {
+        int base = i * WINDOW;
+        int count = mCount[i];
+        if (count == WINDOW) {
+            // Remove the oldest sample from the sorted copy.
+            float oldest = mWindow[base + mNext[i]];
+            int k = 0;
+            while (mSorted[base + k] != oldest) {
+                k++;
+            }
+            System.arraycopy(mSorted, base + k + 1, mSorted, base + k, WINDOW - k - 1);
+            count--;
+        }
+        else {
+            mCount[i] = count + 1;
+        }
+        int k = count;
+        while (k > 0 && mSorted[base + k - 1] > value) {
+            mSorted[base + k] = mSorted[base + k - 1];
+            k--;
+        }
+        mSorted[base + k] = value;
+        mWindow[base + mNext[i]] = value;
+        mNext[i] = (mNext[i] + 1) % WINDOW;
+    }
+}
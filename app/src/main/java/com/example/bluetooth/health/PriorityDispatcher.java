@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.os.Message;
+import android.util.Log;
+
+/**
+ * Single thread that carries out the service's outbound work in priority classes: protocol
+ * responses to agents first, then alarms, then live values, then bulk history and status
+ * traffic.  Work is either a Runnable, e.g. an APDU write, or a Message for the UI client, which
+ * is handed to the {@link MessageSink}.
+ *
+ * Every lane is a bounded FIFO ring; {@link #submit} fails instead of blocking when a lane is
+ * full, and the caller decides whether to run the work itself or drop it.  The highest non-empty
+ * lane is served first, except that a lane whose oldest item has waited longer than the lane's
+ * maximum wait is served ahead of the lanes above it, so bulk traffic still progresses under a
+ * steady stream of live values.  The queueing latency of each lane is recorded.
+ */
+class PriorityDispatcher extends Thread {
+    private static final String TAG = "PriorityDispatcher";
+
+    static final int LANE_PROTOCOL = 0;
+    static final int LANE_ALARM = 1;
+    static final int LANE_LIVE = 2;
+    static final int LANE_BULK = 3;
+    static final int LANES = 4;
+
+    private static final String[] LANE_NAMES = {"protocol", "alarm", "live", "bulk"};
+
+    /**
+     * Delivers client messages, on the dispatcher thread.
+     */
+    interface MessageSink {
+        void send(Message message);
+    }
+
+    private final MessageSink mSink;
+    // Per lane rings of items and their enqueue times, guarded by this.
+    private final Object[][] mItems = new Object[LANES][];
+    private final long[][] mEnqueued = new long[LANES][];
+    private final int[] mHead = new int[LANES];
+    private final int[] mCount = new int[LANES];
+    private final long[] mMaxWaitNanos = new long[LANES];
+    private final long[] mRejected = new long[LANES];
+    private final LatencyHistogram[] mLatency = new LatencyHistogram[LANES];
+    private int mTotal;
+    private boolean mRunning = true;
+
+    /**
+     * capacities and maxWaitMillis are indexed by lane.  A maximum wait of 0 disables the
+     * starvation protection of a lane.
+     */
+    PriorityDispatcher(String name, int[] capacities, long[] maxWaitMillis, MessageSink sink) {
+        super(name);
+        for (int lane = 0; lane < LANES; lane++) {
+            if (capacities[lane] < 1) {
+                throw new IllegalArgumentException("Invalid capacity of lane " + LANE_NAMES[lane]);
+            }
+            mItems[lane] = new Object[capacities[lane]];
+            mEnqueued[lane] = new long[capacities[lane]];
+            mMaxWaitNanos[lane] = maxWaitMillis[lane] * 1000000L;
+            mLatency[lane] = new LatencyHistogram(LANE_NAMES[lane] + " lane");
+        }
+        mSink = sink;
+    }
+
+    // Queues work.  Returns false if the lane is full or the dispatcher has quit.
+    boolean submit(int lane, Runnable task) {
+        return enqueue(lane, task);
+    }
+
+    // Queues a message for the client.  Returns false if the lane is full or the dispatcher has
+    // quit; the message is then still owned by the caller.
+    boolean submit(int lane, Message message) {
+        return enqueue(lane, message);
+    }
+
+    private synchronized boolean enqueue(int lane, Object item) {
+        Object[] items = mItems[lane];
+        if (!mRunning || mCount[lane] == items.length) {
+            mRejected[lane]++;
+            return false;
+        }
+        int tail = (mHead[lane] + mCount[lane]) % items.length;
+        items[tail] = item;
+        mEnqueued[lane][tail] = System.nanoTime();
+        mCount[lane]++;
+        if (mTotal++ == 0) {
+            notify();
+        }
+        return true;
+    }
+
+    synchronized void quit() {
+        mRunning = false;
+        notify();
+    }
+
+    LatencyHistogram getLatency(int lane) {
+        return mLatency[lane];
+    }
+
+    // Number of items a lane refused because it was full.
+    synchronized long getRejected(int lane) {
+        return mRejected[lane];
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Object item;
+            synchronized (this) {
+                while (mRunning && mTotal == 0) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        // Keep waiting.
+                    }
+                }
+                if (!mRunning) {
+                    break;
+                }
+                item = take(System.nanoTime());
+            }
+            try {
+                if (item instanceof Message) {
+                    mSink.send((Message) item);
+                }
+                else {
+                    ((Runnable) item).run();
+                }
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "Dispatch failed", e);
+            }
+        }
+        for (int lane = 0; lane < LANES; lane++) {
+            Log.i(TAG, mLatency[lane] + ", rejected=" + mRejected[lane]);
+        }
+    }
+
+    // Removes the next item: the oldest item of the first lane that waited too long, otherwise
+    // the oldest item of the highest non-empty lane.
+    private Object take(long now) {
+        int lane = -1;
+        for (int i = 0; i < LANES; i++) {
+            if (mCount[i] > 0) {
+                if (lane < 0) {
+                    lane = i;
+                }
+                if (mMaxWaitNanos[i] > 0 && now - mEnqueued[i][mHead[i]] > mMaxWaitNanos[i]) {
+                    lane = i;
+                    break;
+                }
+            }
+        }
+        int head = mHead[lane];
+        Object item = mItems[lane][head];
+        mItems[lane][head] = null;
+        mLatency[lane].record(now - mEnqueued[lane][head]);
+        mHead[lane] = (head + 1) % mItems[lane].length;
+        mCount[lane]--;
+        mTotal--;
+        return item;
+    }
+}
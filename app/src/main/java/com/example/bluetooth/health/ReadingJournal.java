@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Append-only journal of decoded readings, written with group commits.
+ *
+ * Readings are collected in a preallocated buffer and written and synced to storage together, as
+ * soon as the buffer holds maxCount readings or its oldest reading is maxDelay old.  A reading is
+ * durable once the commit that wrote it returned, so a crash loses at most the readings of one
+ * commit window.  Only {@link #commitIfDue} checks the delay, so the window also includes the
+ * interval at which the owner calls it.
+ *
+ * Records are fixed-size, big-endian: device address as a long, RECEIVED_* code, wall clock
+ * timestamp in milliseconds and value.  Not thread safe.
+ */
+class ReadingJournal implements Closeable {
+    static final int RECORD_BYTES = 8 + 4 + 8 + 4;
+
+    /**
+     * Receives the records of a journal file, see {@link #replay}.
+     */
+    interface Visitor {
+        void onRecord(long address, int what, long timestamp, float value);
+    }
+
+    private final FileOutputStream mOut;
+    private final ByteBuffer mBuffer;
+    private final int mMaxCount;
+    private final long mMaxDelayNanos;
+    private int mCount;
+    // System.nanoTime() of the oldest uncommitted reading.
+    private long mOldest;
+    private long mLastTimestamp;
+    private long mCommittedTimestamp;
+    private long mSize;
+
+    // Statistics since the journal was opened, read by other threads.
+    private final long mOpened = System.nanoTime();
+    private volatile long mDurableRecords;
+    private volatile long mSyncs;
+
+    // Opens a journal for appending.  A record torn by a crash at the end of the file is dropped.
+    ReadingJournal(File file, int maxCount, long maxDelayMillis) throws IOException {
+        if (maxCount < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid commit window " + maxCount + "/" + maxDelayMillis);
+        }
+        mOut = new FileOutputStream(file, true);
+        mSize = mOut.getChannel().size();
+        if (mSize % RECORD_BYTES != 0) {
+            mSize -= mSize % RECORD_BYTES;
+            mOut.getChannel().truncate(mSize);
+        }
+        mBuffer = ByteBuffer.allocate(maxCount * RECORD_BYTES);
+        mMaxCount = maxCount;
+        mMaxDelayNanos = maxDelayMillis * 1000000L;
+    }
+
+    /**
+     * Passes every complete record of a journal file to the visitor, in the order written.
+     * Returns the number of records.
+     */
+    static int replay(File file, Visitor visitor) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        int count = 0;
+        try {
+            while (true) {
+                long address;
+                try {
+                    address = in.readLong();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                int what = in.readInt();
+                long timestamp = in.readLong();
+                float value = in.readFloat();
+                visitor.onRecord(address, what, timestamp, value);
+                count++;
+            }
+        }
+        catch (EOFException e) {
+            // A torn record at the end.
+        }
+        finally {
+            MeasurementArchive.closeQuietly(in);
+        }
+        return count;
+    }
+
+    /**
+     * Adds a reading to the current commit.  Commits first if the commit is full.  Returns the
+     * number of readings committed, 0 if none.
+     */
+    int append(long address, int what, long timestamp, float value) throws IOException {
+        int committed = mCount == mMaxCount ? commit() : 0;
+        if (mCount == 0) {
+            mOldest = System.nanoTime();
+        }
+        mBuffer.putLong(address).putInt(what).putLong(timestamp).putFloat(value);
+        mCount++;
+        mLastTimestamp = timestamp;
+        return committed;
+    }
+
+    // Commits if the commit window is full or has expired.  Returns the number of readings
+    // committed, 0 if none.
+    int commitIfDue(long now) throws IOException {
+        if (mCount > 0 && (mCount == mMaxCount || now - mOldest >= mMaxDelayNanos)) {
+            return commit();
+        }
+        return 0;
+    }
+
+    // System.nanoTime() at which the current commit window expires, or MeasurementBus.NO_DEADLINE
+    // if no reading is buffered.
+    long getCommitDeadline() {
+        return mCount > 0 ? mOldest + mMaxDelayNanos : MeasurementBus.NO_DEADLINE;
+    }
+
+    /**
+     * Writes and syncs the current commit.  Returns the number of readings committed.  On failure
+     * the readings stay buffered for the next attempt.
+     */
+    int commit() throws IOException {
+        int count = mCount;
+        if (count == 0) {
+            return 0;
+        }
+        try {
+            mOut.write(mBuffer.array(), 0, mBuffer.position());
+            mOut.getFD().sync();
+        }
+        catch (IOException e) {
+            // Drop whatever part of the commit made it to the file, so records stay aligned.
+            mOut.getChannel().truncate(mSize);
+            throw e;
+        }
+        mSize += mBuffer.position();
+        mBuffer.clear();
+        mCount = 0;
+        mCommittedTimestamp = mLastTimestamp;
+        mDurableRecords += count;
+        mSyncs++;
+        return count;
+    }
+
+    // Wall clock timestamp of the last committed reading.
+    long getCommittedTimestamp() {
+        return mCommittedTimestamp;
+    }
+
+    // Size of the committed part of the journal in bytes.
+    long size() {
+        return mSize;
+    }
+
+    long getSyncs() {
+        return mSyncs;
+    }
+
+    // Durable readings per second since the journal was opened.
+    long getWritesPerSecond() {
+        long elapsed = System.nanoTime() - mOpened;
+        return elapsed > 0 ? mDurableRecords * 1000000000L / elapsed : 0;
+    }
+
+    // Longest time a reading can stay buffered, given the interval at which commitIfDue is
+    // called.
+    long getMaxLossWindowMillis(long checkIntervalMillis) {
+        return mMaxDelayNanos / 1000000L + checkIntervalMillis;
+    }
+
+    /**
+     * Discards all committed records, once the readings in them are stored elsewhere.  Readings
+     * of the current commit are kept.
+     */
+    void truncate() throws IOException {
+        mOut.getChannel().truncate(0);
+        mOut.getFD().sync();
+        mSize = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary snapshot of the service state that must survive the death of its process: the
+ * registered data types with their delivery policies, and the known agents with their
+ * configuration and latest values.
+ *
+ * The snapshot is a small memory-mapped file with fixed-size records that are updated in place
+ * as the state changes, e.g. a single float per delivered value, so keeping it current costs no
+ * system call.  The mapped pages belong to the kernel and survive a killed process; they are
+ * forced to storage when the service is destroyed.  A record torn by a crash mid-update holds at
+ * worst one stale field.
+ *
+ * Layout, big-endian: magic and version, then MAX_REGISTRATIONS registration records (data
+ * type, delivery mode, max count, max delay in milliseconds), then one agent record per slot
+ * (address, System-Id, Dev-Configuration-Id, flags, clock offset, use sequence, latest values).
+ */
+class ServiceSnapshot {
+    private static final String TAG = "ServiceSnapshot";
+
+    private static final int MAGIC = 0x48445053;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    static final int MAX_REGISTRATIONS = 8;
+    private static final int REGISTRATION_BYTES = 16;
+
+    private static final int AGENT_BYTES = 64;
+    private static final int AGENT_ADDRESS = 0;
+    private static final int AGENT_SYSTEM_ID = 8;
+    private static final int AGENT_DEV_CONFIG_ID = 16;
+    private static final int AGENT_FLAGS = 20;
+    private static final int AGENT_CLOCK_OFFSET = 24;
+    private static final int AGENT_SEQUENCE = 32;
+    private static final int AGENT_VALUES = 40;
+    private static final int FLAG_MDS_KNOWN = 1;
+    private static final int FLAG_CLOCK_KNOWN = 2;
+
+    private final int mAgentSlots;
+    private final int mAgentsOffset;
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    // Slot of each agent in the snapshot, by AgentContext key.
+    private final Map<String, Integer> mSlots = new HashMap<String, Integer>();
+    private long mSequence;
+
+    /**
+     * Opens the snapshot file, creating an empty one if it does not exist or was written by an
+     * incompatible version.  agentSlots should match the size of the agent context cache.
+     */
+    ServiceSnapshot(File file, int agentSlots) throws IOException {
+        mAgentSlots = agentSlots;
+        mAgentsOffset = HEADER_BYTES + MAX_REGISTRATIONS * REGISTRATION_BYTES;
+        int size = mAgentsOffset + agentSlots * AGENT_BYTES;
+        mFile = new RandomAccessFile(file, "rw");
+        boolean compatible = mFile.length() == size;
+        mFile.setLength(size);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (!compatible || mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+            for (int i = 0; i < size; i++) {
+                mBuffer.put(i, (byte) 0);
+            }
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(0, MAGIC);
+        }
+    }
+
+    /**
+     * Returns the delivery policies of the registered data types.
+     */
+    synchronized List<DeliveryPolicy> readRegistrations() {
+        List<DeliveryPolicy> registrations = new ArrayList<DeliveryPolicy>();
+        for (int i = 0; i < MAX_REGISTRATIONS; i++) {
+            int offset = HEADER_BYTES + i * REGISTRATION_BYTES;
+            int dataType = mBuffer.getInt(offset);
+            if (dataType == 0) {
+                continue;
+            }
+            try {
+                registrations.add(new DeliveryPolicy(dataType, mBuffer.getInt(offset + 4),
+                        mBuffer.getInt(offset + 8), mBuffer.getInt(offset + 12)));
+            }
+            catch (IllegalArgumentException e) {
+                Log.w(TAG, "Dropping registration of data type " + dataType + ": " + e.getMessage());
+            }
+        }
+        return registrations;
+    }
+
+    /**
+     * Fills the cache with the known agents, least recently used first.  Returns the number of
+     * agents restored.
+     */
+    synchronized int readAgents(AgentContextCache cache) {
+        Integer[] slots = new Integer[mAgentSlots];
+        int count = 0;
+        for (int slot = 0; slot < mAgentSlots; slot++) {
+            if (mBuffer.getLong(agentOffset(slot) + AGENT_ADDRESS) != 0) {
+                slots[count++] = slot;
+            }
+        }
+        Arrays.sort(slots, 0, count, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long sa = mBuffer.getLong(agentOffset(a) + AGENT_SEQUENCE);
+                long sb = mBuffer.getLong(agentOffset(b) + AGENT_SEQUENCE);
+                return sa < sb ? -1 : (sa == sb ? 0 : 1);
+            }
+        });
+        float[] values = new float[BluetoothHDPService.RECEIVED_COUNT];
+        for (int i = 0; i < count; i++) {
+            int offset = agentOffset(slots[i]);
+            String address = addressOf(mBuffer.getLong(offset + AGENT_ADDRESS));
+            long systemId = mBuffer.getLong(offset + AGENT_SYSTEM_ID);
+            for (int v = 0; v < values.length; v++) {
+                values[v] = mBuffer.getFloat(offset + AGENT_VALUES + v * 4);
+            }
+            AgentContext context = cache.obtain(address, systemId);
+            int flags = mBuffer.getInt(offset + AGENT_FLAGS);
+            context.restore(mBuffer.getInt(offset + AGENT_DEV_CONFIG_ID), (flags & FLAG_MDS_KNOWN) != 0,
+                    (flags & FLAG_CLOCK_KNOWN) != 0, mBuffer.getLong(offset + AGENT_CLOCK_OFFSET), values);
+            mSlots.put(AgentContext.key(address, systemId), slots[i]);
+            mSequence = Math.max(mSequence, mBuffer.getLong(offset + AGENT_SEQUENCE));
+        }
+        return count;
+    }
+
+    // Records a registered data type and its delivery policy.
+    synchronized void putRegistration(int dataType, DeliveryPolicy policy) {
+        int free = -1;
+        for (int i = 0; i < MAX_REGISTRATIONS; i++) {
+            int stored = mBuffer.getInt(HEADER_BYTES + i * REGISTRATION_BYTES);
+            if (stored == dataType) {
+                free = i;
+                break;
+            }
+            if (stored == 0 && free == -1) {
+                free = i;
+            }
+        }
+        if (free == -1) {
+            Log.w(TAG, "No room for the registration of data type " + dataType);
+            return;
+        }
+        int offset = HEADER_BYTES + free * REGISTRATION_BYTES;
+        mBuffer.putInt(offset + 4, policy.mode);
+        mBuffer.putInt(offset + 8, policy.maxCount);
+        mBuffer.putInt(offset + 12, (int) Math.min(Integer.MAX_VALUE, policy.maxDelayNanos / 1000000L));
+        // Written last, so a record is only valid once it is complete.
+        mBuffer.putInt(offset, dataType);
+    }
+
+    synchronized void clearRegistrations() {
+        for (int i = 0; i < MAX_REGISTRATIONS; i++) {
+            mBuffer.putInt(HEADER_BYTES + i * REGISTRATION_BYTES, 0);
+        }
+    }
+
+    // Records an agent's association state and latest values, e.g. after it associated.
+    synchronized void putAgent(AgentContext context) {
+        int offset = agentOffset(slotOf(context));
+        mBuffer.putLong(offset + AGENT_SYSTEM_ID, context.systemId);
+        mBuffer.putInt(offset + AGENT_DEV_CONFIG_ID, context.getDevConfigId());
+        mBuffer.putInt(offset + AGENT_FLAGS, (context.isMdsKnown() ? FLAG_MDS_KNOWN : 0)
+                | (context.isClockKnown() ? FLAG_CLOCK_KNOWN : 0));
+        mBuffer.putLong(offset + AGENT_CLOCK_OFFSET, context.getClockOffsetMillis());
+        mBuffer.putLong(offset + AGENT_SEQUENCE, ++mSequence);
+        for (int v = 0; v < BluetoothHDPService.RECEIVED_COUNT; v++) {
+            mBuffer.putFloat(offset + AGENT_VALUES + v * 4, context.getLastValue(BluetoothHDPService.RECEIVED_SYS + v));
+        }
+        mBuffer.putLong(offset + AGENT_ADDRESS, addressToLong(context.address));
+    }
+
+    // Records a delivered value of an agent.
+    synchronized void putValue(AgentContext context, int what, float value) {
+        Integer slot = mSlots.get(AgentContext.key(context.address, context.systemId));
+        if (slot == null) {
+            putAgent(context);
+            return;
+        }
+        mBuffer.putFloat(agentOffset(slot) + AGENT_VALUES + (what - BluetoothHDPService.RECEIVED_SYS) * 4, value);
+    }
+
+    // Writes the snapshot to storage and closes it.
+    synchronized void close() {
+        mBuffer.force();
+        try {
+            mFile.close();
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Cannot close snapshot", e);
+        }
+    }
+
+    // Returns the slot of an agent, taking a free or the least recently used one for a new agent.
+    private int slotOf(AgentContext context) {
+        String key = AgentContext.key(context.address, context.systemId);
+        Integer slot = mSlots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+        int best = 0;
+        long bestSequence = Long.MAX_VALUE;
+        for (int i = 0; i < mAgentSlots; i++) {
+            int offset = agentOffset(i);
+            long sequence = mBuffer.getLong(offset + AGENT_ADDRESS) == 0 ? -1 : mBuffer.getLong(offset + AGENT_SEQUENCE);
+            if (sequence < bestSequence) {
+                best = i;
+                bestSequence = sequence;
+            }
+        }
+        for (Map.Entry<String, Integer> entry : mSlots.entrySet()) {
+            if (entry.getValue() == best) {
+                mSlots.remove(entry.getKey());
+                break;
+            }
+        }
+        // Invalidate the evicted record before reusing it.
+        mBuffer.putLong(agentOffset(best) + AGENT_ADDRESS, 0);
+        mSlots.put(key, best);
+        return best;
+    }
+
+    private int agentOffset(int slot) {
+        return mAgentsOffset + slot * AGENT_BYTES;
+    }
+
+    // Bluetooth addresses are stored as their 48 bit value.
+    static long addressToLong(String address) {
+        long value = 0;
+        for (String part : address.split(":")) {
+            value = (value << 8) | Integer.parseInt(part, 16);
+        }
+        return value;
+    }
+
+    static String addressOf(long value) {
+        StringBuilder address = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            if (address.length() > 0) {
+                address.append(':');
+            }
+            address.append(String.format("%02X", (value >>> shift) & 0xff));
+        }
+        return address.toString();
+    }
+}
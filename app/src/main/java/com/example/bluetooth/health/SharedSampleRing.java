@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Ring of measurement records in a memory-mapped file that the service shares with its clients.
+ *
+ * The service maps the file once for writing; every client maps it once, read-only, from the
+ * file descriptor it received, and from then on reads samples directly from the shared pages.
+ * Only doorbell messages, telling a client that new records are available, go over the
+ * Messenger.  The binder transaction of the doorbell orders the writes before it, so records
+ * written before a doorbell are visible to a client once it receives that doorbell.
+ *
+ * Layout, big-endian: a header of magic, capacity and the number of records written so far,
+ * followed by capacity records of RECORD_SIZE bytes.  Each record carries its own sequence
+ * number + 1 and a checksum of that number and its payload.  Puts to the mapping are plain
+ * stores that other threads and processes may observe in any order, so a reader only takes a
+ * record whose stamp and checksum both match; anything else is a record not completely visible
+ * yet, or one the writer is overwriting.  The service writes the records of all channels in
+ * measurement time order, see TimeAlignedMerge.
+ */
+final class SharedSampleRing {
+    private static final int MAGIC = 0x48445352;
+    private static final int HEADER_SIZE = 16;
+    private static final int OFFSET_CAPACITY = 4;
+    private static final int OFFSET_SEQUENCE = 8;
+
+    private static final int RECORD_SIZE = 40;
+    private static final int RECORD_STAMP = 0;
+    private static final int RECORD_TIMESTAMP = 8;
+    private static final int RECORD_MEASURED = 16;
+    private static final int RECORD_WHAT = 24;
+    private static final int RECORD_SOURCE = 28;
+    private static final int RECORD_VALUE = 32;
+    private static final int RECORD_CHECKSUM = 36;
+
+    private static final long CHECKSUM_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private SharedSampleRing() {
+    }
+
+    private static int offsetOf(long sequence, int capacity) {
+        return HEADER_SIZE + (int) (sequence % capacity) * RECORD_SIZE;
+    }
+
+    // Checksum of a record with the given stamp, so a stale payload of an earlier lap never
+    // matches a new stamp.
+    static int checksumOf(long stamp, long timestamp, long measuredMillis, int what, int source, int valueBits) {
+        long hash = stamp * CHECKSUM_MULTIPLIER;
+        hash = (hash ^ timestamp) * CHECKSUM_MULTIPLIER;
+        hash = (hash ^ measuredMillis) * CHECKSUM_MULTIPLIER;
+        hash = (hash ^ (((long) what << 32) | (source & 0xFFFFFFFFL))) * CHECKSUM_MULTIPLIER;
+        hash = (hash ^ valueBits) * CHECKSUM_MULTIPLIER;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Single writer of a ring.  Only one thread may write.
+     */
+    static final class Writer {
+        private final File mFile;
+        private final RandomAccessFile mRandomAccessFile;
+        private final MappedByteBuffer mBuffer;
+        private final int mCapacity;
+        private long mSequence;
+
+        Writer(File file, int capacity) throws IOException {
+            mFile = file;
+            mCapacity = capacity;
+            mRandomAccessFile = new RandomAccessFile(file, "rw");
+            int size = HEADER_SIZE + capacity * RECORD_SIZE;
+            mRandomAccessFile.setLength(size);
+            mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mBuffer.putInt(OFFSET_CAPACITY, capacity);
+            mBuffer.putLong(OFFSET_SEQUENCE, 0);
+            mBuffer.putInt(0, MAGIC);
+        }
+
+        int getCapacity() {
+            return mCapacity;
+        }
+
+        /**
+         * Appends a record.  source identifies the channel, what is the client message code,
+         * timestamp the System.nanoTime() at which the APDU arrived and measuredMillis the time
+         * of measurement on the service's wall clock, corrected for the agent's clock offset.
+         */
+        void write(int what, int source, float value, long timestamp, long measuredMillis) {
+            long sequence = mSequence;
+            int offset = offsetOf(sequence, mCapacity);
+            int valueBits = Float.floatToRawIntBits(value);
+            // Invalidate the slot first; the checksum catches a reader that observes the stores
+            // out of order.
+            mBuffer.putLong(offset + RECORD_STAMP, 0);
+            mBuffer.putLong(offset + RECORD_TIMESTAMP, timestamp);
+            mBuffer.putLong(offset + RECORD_MEASURED, measuredMillis);
+            mBuffer.putInt(offset + RECORD_WHAT, what);
+            mBuffer.putInt(offset + RECORD_SOURCE, source);
+            mBuffer.putInt(offset + RECORD_VALUE, valueBits);
+            mBuffer.putInt(offset + RECORD_CHECKSUM,
+                    checksumOf(sequence + 1, timestamp, measuredMillis, what, source, valueBits));
+            mBuffer.putLong(offset + RECORD_STAMP, sequence + 1);
+            mSequence = sequence + 1;
+            mBuffer.putLong(OFFSET_SEQUENCE, mSequence);
+        }
+
+        long getSequence() {
+            return mSequence;
+        }
+
+        // Returns a new read-only descriptor of the ring file, to be sent to a client.
+        ParcelFileDescriptor openReadOnly() throws IOException {
+            return ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+
+        void close() {
+            MeasurementArchive.closeQuietly(mRandomAccessFile);
+            mFile.delete();
+        }
+    }
+
+    /**
+     * Reader of a ring mapped from a descriptor received from the service.  Not thread safe.
+     */
+    static final class Reader {
+        private final MappedByteBuffer mBuffer;
+        private final int mCapacity;
+        private long mCursor;
+        private long mDropped;
+
+        // Maps the ring and starts reading at the records written from now on.
+        Reader(ParcelFileDescriptor descriptor) throws IOException {
+            FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+            try {
+                FileChannel channel = in.getChannel();
+                mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            finally {
+                // The mapping stays valid after its descriptor is closed.
+                MeasurementArchive.closeQuietly(in);
+                MeasurementArchive.closeQuietly(descriptor);
+            }
+            if (mBuffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a sample ring");
+            }
+            mCapacity = mBuffer.getInt(OFFSET_CAPACITY);
+            mCursor = mBuffer.getLong(OFFSET_SEQUENCE);
+        }
+
+        /**
+         * Copies up to what.length records written since the last call into the given arrays,
+         * which must have equal lengths.  Returns the number of records copied.  Records the
+         * writer overwrote before they were read are counted by {@link #getDropped}.  Reading
+         * stops at a record that is not completely visible yet; all records written before the
+         * last doorbell are.
+         */
+        int read(int[] what, int[] source, float[] value, long[] timestamp, long[] measuredMillis) {
+            long written = mBuffer.getLong(OFFSET_SEQUENCE);
+            // The writer may be rewriting the slot of sequence written - capacity already.
+            if (written - mCursor >= mCapacity) {
+                mDropped += written - mCursor - mCapacity + 1;
+                mCursor = written - mCapacity + 1;
+            }
+            int count = 0;
+            while (mCursor < written && count < what.length) {
+                int offset = offsetOf(mCursor, mCapacity);
+                long stamp = mBuffer.getLong(offset + RECORD_STAMP);
+                long recordTimestamp = mBuffer.getLong(offset + RECORD_TIMESTAMP);
+                long recordMeasured = mBuffer.getLong(offset + RECORD_MEASURED);
+                int recordWhat = mBuffer.getInt(offset + RECORD_WHAT);
+                int recordSource = mBuffer.getInt(offset + RECORD_SOURCE);
+                int valueBits = mBuffer.getInt(offset + RECORD_VALUE);
+                int checksum = mBuffer.getInt(offset + RECORD_CHECKSUM);
+                if (stamp == mCursor + 1 && checksum
+                        == checksumOf(stamp, recordTimestamp, recordMeasured, recordWhat, recordSource, valueBits)) {
+                    what[count] = recordWhat;
+                    source[count] = recordSource;
+                    value[count] = Float.intBitsToFloat(valueBits);
+                    timestamp[count] = recordTimestamp;
+                    measuredMillis[count] = recordMeasured;
+                    count++;
+                }
+                else if (mBuffer.getLong(OFFSET_SEQUENCE) - mCursor >= mCapacity) {
+                    // Overwritten, or being overwritten, by a later lap.
+                    mDropped++;
+                }
+                else {
+                    // Not completely visible yet; read it after the next doorbell.
+                    break;
+                }
+                mCursor++;
+            }
+            return count;
+        }
+
+        long getDropped() {
+            return mDropped;
+        }
+    }
+}
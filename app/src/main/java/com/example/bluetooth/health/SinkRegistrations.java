@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Bookkeeping of the sink application registrations of the service.
+ *
+ * Registrations requested before the health profile proxy is connected are kept pending and
+ * issued together once it connects; registrations lost with the proxy become pending again.
+ * Duplicate requests for a data type that is registered or being registered are ignored, so the
+ * service and its client may both request the same data types.  Also measures the time from
+ * service creation until all data types of the cold start set are registered.
+ */
+class SinkRegistrations {
+    private static final String TAG = "SinkRegistrations";
+
+    // Data types waiting for the proxy, being registered, and registered.
+    private final Set<Integer> mPending = new LinkedHashSet<Integer>();
+    private final Set<Integer> mRequested = new LinkedHashSet<Integer>();
+    private final Set<Integer> mRegistered = new LinkedHashSet<Integer>();
+
+    private final int[] mColdStartDataTypes;
+    // SystemClock.elapsedRealtime() at service creation.
+    private final long mStartMillis;
+    private boolean mColdStartDone;
+
+    SinkRegistrations(int[] coldStartDataTypes, long startMillis) {
+        mColdStartDataTypes = coldStartDataTypes;
+        mStartMillis = startMillis;
+    }
+
+    /**
+     * Requests registration of a data type.  Returns true if the caller should register it now,
+     * false if it is already registered or requested, or kept pending until the proxy connects.
+     */
+    synchronized boolean request(int dataType, boolean proxyConnected) {
+        if (mRegistered.contains(dataType) || mRequested.contains(dataType)) {
+            return false;
+        }
+        if (!proxyConnected) {
+            mPending.add(dataType);
+            return false;
+        }
+        mPending.remove(dataType);
+        mRequested.add(dataType);
+        return true;
+    }
+
+    // Called when the proxy connects.  Returns the pending data types, which the caller must now
+    // register.
+    synchronized int[] onProxyConnected() {
+        Log.i(TAG, "Health profile proxy connected " + elapsedMillis() + " ms after service start");
+        int[] dataTypes = new int[mPending.size()];
+        int i = 0;
+        for (Integer dataType : mPending) {
+            dataTypes[i++] = dataType;
+        }
+        mRequested.addAll(mPending);
+        mPending.clear();
+        return dataTypes;
+    }
+
+    // Called when the proxy disconnects; all registrations are requested again on reconnect.
+    synchronized void onProxyDisconnected() {
+        mPending.addAll(mRegistered);
+        mPending.addAll(mRequested);
+        mRegistered.clear();
+        mRequested.clear();
+    }
+
+    synchronized void onRegistered(int dataType) {
+        mRequested.remove(dataType);
+        mRegistered.add(dataType);
+        Log.i(TAG, "Data type " + dataType + " registered " + elapsedMillis() + " ms after service start");
+        if (mColdStartDone) {
+            return;
+        }
+        for (int coldStartDataType : mColdStartDataTypes) {
+            if (!mRegistered.contains(coldStartDataType)) {
+                return;
+            }
+        }
+        mColdStartDone = true;
+        Log.i(TAG, "All sinks registered " + elapsedMillis() + " ms after service start");
+    }
+
+    synchronized void onRegistrationFailed(int dataType) {
+        mRequested.remove(dataType);
+    }
+
+    // Forgets all registrations, when the application is unregistered.
+    synchronized void clear() {
+        mPending.clear();
+        mRequested.clear();
+        mRegistered.clear();
+    }
+
+    private long elapsedMillis() {
+        return SystemClock.elapsedRealtime() - mStartMillis;
+    }
+}
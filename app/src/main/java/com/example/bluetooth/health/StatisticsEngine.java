@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measurement bus consumer that keeps {@link MetricStatistics} per device and metric.  Only
+ * decoded values (the RECEIVED_* codes) are counted; status events and the -1 placeholder are
+ * ignored.  Memory is constant per device and metric.
+ */
+class StatisticsEngine extends MeasurementBus.Consumer {
+    // Bundle keys of the statistics snapshot sent to clients.
+    static final String KEY_ADDRESSES = "addresses";
+    static final String KEY_METRICS = "metrics";
+    static final String KEY_COUNTS = "counts";
+    static final String KEY_MEANS = "means";
+    static final String KEY_MINS = "mins";
+    static final String KEY_MAXS = "maxs";
+    static final String KEY_EWMAS = "ewmas";
+    static final String KEY_P50S = "p50s";
+    static final String KEY_P90S = "p90s";
+    static final String KEY_P99S = "p99s";
+
+    private final int mWindowSize;
+    private final double mEwmaAlpha;
+    // Statistics per device address, indexed by RECEIVED_* code starting at RECEIVED_SYS.
+    private final Map<String, MetricStatistics[]> mDevices = new HashMap<String, MetricStatistics[]>();
+
+    StatisticsEngine(int windowSize, double ewmaAlpha) {
+        super("statistics");
+        mWindowSize = windowSize;
+        mEwmaAlpha = ewmaAlpha;
+    }
+
+    @Override
+    protected void onEvent(MeasurementBus.Producer producer, int what, float value, long timestamp) {
+        int metric = what - BluetoothHDPService.RECEIVED_SYS;
+        if (metric < 0 || metric >= BluetoothHDPService.RECEIVED_COUNT || value < 0
+                || getQuality() == MeasurementBus.QUALITY_ARTIFACT) {
+            return;
+        }
+        MetricStatistics statistics;
+        synchronized (mDevices) {
+            MetricStatistics[] metrics = mDevices.get(producer.getAddress());
+            if (metrics == null) {
+                metrics = new MetricStatistics[BluetoothHDPService.RECEIVED_COUNT];
+                mDevices.put(producer.getAddress(), metrics);
+            }
+            statistics = metrics[metric];
+            if (statistics == null) {
+                statistics = new MetricStatistics(mWindowSize, mEwmaAlpha);
+                metrics[metric] = statistics;
+            }
+        }
+        statistics.add(value);
+    }
+
+    /**
+     * Returns a snapshot of all statistics as parallel arrays, one entry per device and metric.
+     * Metrics are reported by their RECEIVED_* code.
+     */
+    Bundle snapshot() {
+        List<String> addresses = new ArrayList<String>();
+        List<MetricStatistics> statistics = new ArrayList<MetricStatistics>();
+        List<Integer> metrics = new ArrayList<Integer>();
+        synchronized (mDevices) {
+            for (Map.Entry<String, MetricStatistics[]> device : mDevices.entrySet()) {
+                for (int i = 0; i < device.getValue().length; i++) {
+                    if (device.getValue()[i] != null) {
+                        addresses.add(device.getKey());
+                        metrics.add(BluetoothHDPService.RECEIVED_SYS + i);
+                        statistics.add(device.getValue()[i]);
+                    }
+                }
+            }
+        }
+        int n = statistics.size();
+        int[] metricCodes = new int[n];
+        long[] counts = new long[n];
+        double[] means = new double[n];
+        float[] mins = new float[n];
+        float[] maxs = new float[n];
+        double[] ewmas = new double[n];
+        double[] p50s = new double[n];
+        double[] p90s = new double[n];
+        double[] p99s = new double[n];
+        for (int i = 0; i < n; i++) {
+            MetricStatistics s = statistics.get(i);
+            metricCodes[i] = metrics.get(i);
+            counts[i] = s.getCount();
+            means[i] = s.getMean();
+            mins[i] = s.getMin();
+            maxs[i] = s.getMax();
+            ewmas[i] = s.getEwma();
+            p50s[i] = s.getQuantile(0);
+            p90s[i] = s.getQuantile(1);
+            p99s[i] = s.getQuantile(2);
+        }
+        Bundle bundle = new Bundle();
+        bundle.putStringArray(KEY_ADDRESSES, addresses.toArray(new String[n]));
+        bundle.putIntArray(KEY_METRICS, metricCodes);
+        bundle.putLongArray(KEY_COUNTS, counts);
+        bundle.putDoubleArray(KEY_MEANS, means);
+        bundle.putFloatArray(KEY_MINS, mins);
+        bundle.putFloatArray(KEY_MAXS, maxs);
+        bundle.putDoubleArray(KEY_EWMAS, ewmas);
+        bundle.putDoubleArray(KEY_P50S, p50s);
+        bundle.putDoubleArray(KEY_P90S, p90s);
+        bundle.putDoubleArray(KEY_P99S, p99s);
+        return bundle;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+/**
+ * Measurement bus consumer that merges the events of all channels into one stream ordered by
+ * measurement time, see {@link Consumer#getMeasuredMillis}.
+ *
+ * Every producer gets a bounded reorder buffer of primitive slots, kept sorted by measurement
+ * time.  The buffers are k-way merged by their heads and released to {@link #onAlignedEvent} up
+ * to a watermark: the earliest of the latest measurement times of all producers that delivered
+ * an event within the reorder window.  An event is thus only held back while another active
+ * channel may still deliver an earlier one; with a single active channel it is released right
+ * away, and a channel that falls silent holds the others back for at most the window.  A
+ * buffer that fills up releases events early, and an event older than the last released one is
+ * released right away; both are counted as late.  Memory and work per event are bounded by the
+ * buffer capacity.
+ */
+abstract class TimeAlignedMerge extends MeasurementBus.Consumer {
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final long mWindowNanos;
+    private final int mCapacity;
+
+    // Per producer rings of pending events, indexed by producer * mCapacity + slot.
+    private final int[] mWhat;
+    private final float[] mValue;
+    private final long[] mTimestamp;
+    private final long[] mMeasured;
+    private final int[] mHead = new int[MeasurementBus.MAX_PRODUCERS];
+    private final int[] mCount = new int[MeasurementBus.MAX_PRODUCERS];
+    private final MeasurementBus.Producer[] mProducers = new MeasurementBus.Producer[MeasurementBus.MAX_PRODUCERS];
+    // Per producer latest measurement time and arrival time of its latest event.
+    private final long[] mLatest = new long[MeasurementBus.MAX_PRODUCERS];
+    private final long[] mLastArrival = new long[MeasurementBus.MAX_PRODUCERS];
+    private final boolean[] mSeen = new boolean[MeasurementBus.MAX_PRODUCERS];
+    private long mLastReleased = Long.MIN_VALUE;
+    // Bit p is set while producer p has pending events, see isHolding().
+    private volatile int mHolding;
+    private volatile long mLate;
+
+    // windowMillis is the longest time a silent channel holds back the others, capacity the
+    // number of events held back per producer.
+    TimeAlignedMerge(String name, long windowMillis, int capacity) {
+        super(name);
+        mWindowNanos = windowMillis * NANOS_PER_MILLI;
+        mCapacity = capacity;
+        int size = MeasurementBus.MAX_PRODUCERS * capacity;
+        mWhat = new int[size];
+        mValue = new float[size];
+        mTimestamp = new long[size];
+        mMeasured = new long[size];
+    }
+
+    /**
+     * Receives the events in measurement time order.  timestamp is the System.nanoTime() at which
+     * the APDU arrived, measuredMillis the time of measurement on the manager's wall clock.
+     */
+    protected abstract void onAlignedEvent(MeasurementBus.Producer producer, int what, float value, long timestamp,
+                                           long measuredMillis);
+
+    // Number of events released out of order or ahead of the reorder window.
+    long getLate() {
+        return mLate;
+    }
+
+    @Override
+    protected boolean isHolding(int producer) {
+        return (mHolding & (1 << producer)) != 0;
+    }
+
+    @Override
+    protected void onEvent(MeasurementBus.Producer producer, int what, float value, long timestamp) {
+        long measured = getMeasuredMillis(timestamp);
+        int p = producer.id;
+        if (!mSeen[p] || measured > mLatest[p]) {
+            mLatest[p] = measured;
+        }
+        mLastArrival[p] = timestamp;
+        mSeen[p] = true;
+        boolean early = mCount[p] == mCapacity;
+        if (early) {
+            // Make room, in order, by releasing up to the head of the full buffer.
+            release(mMeasured[p * mCapacity + mHead[p]]);
+        }
+        if (early || measured < mLastReleased) {
+            mLate++;
+        }
+        if (measured < mLastReleased) {
+            onAlignedEvent(producer, what, value, timestamp, measured);
+            return;
+        }
+        mProducers[p] = producer;
+        // Insert sorted; events of one agent mostly arrive in order, so this rarely shifts.
+        int base = p * mCapacity;
+        int k = mCount[p];
+        while (k > 0 && mMeasured[base + (mHead[p] + k - 1) % mCapacity] > measured) {
+            int from = base + (mHead[p] + k - 1) % mCapacity;
+            int to = base + (mHead[p] + k) % mCapacity;
+            mWhat[to] = mWhat[from];
+            mValue[to] = mValue[from];
+            mTimestamp[to] = mTimestamp[from];
+            mMeasured[to] = mMeasured[from];
+            k--;
+        }
+        int slot = base + (mHead[p] + k) % mCapacity;
+        mWhat[slot] = what;
+        mValue[slot] = value;
+        mTimestamp[slot] = timestamp;
+        mMeasured[slot] = measured;
+        if (mCount[p]++ == 0) {
+            mHolding |= 1 << p;
+        }
+        release(watermark());
+    }
+
+    @Override
+    protected void onBatchEnd() {
+        release(watermark());
+    }
+
+    @Override
+    protected void onIdle() {
+        release(watermark());
+    }
+
+    // Returns the earliest latest measurement time of the producers active within the window,
+    // or Long.MAX_VALUE if there are none.
+    private long watermark() {
+        long now = System.nanoTime();
+        long watermark = Long.MAX_VALUE;
+        for (int p = 0; p < MeasurementBus.MAX_PRODUCERS; p++) {
+            if (mSeen[p] && now - mLastArrival[p] < mWindowNanos && mLatest[p] < watermark) {
+                watermark = mLatest[p];
+            }
+        }
+        return watermark;
+    }
+
+    // The watermark next rises when an active producer leaves the reorder window.
+    @Override
+    protected long getIdleDeadline() {
+        if (mHolding == 0) {
+            return MeasurementBus.NO_DEADLINE;
+        }
+        long now = System.nanoTime();
+        long deadline = MeasurementBus.NO_DEADLINE;
+        for (int p = 0; p < MeasurementBus.MAX_PRODUCERS; p++) {
+            if (mSeen[p] && now - mLastArrival[p] < mWindowNanos) {
+                deadline = earlierDeadline(deadline, mLastArrival[p] + mWindowNanos);
+            }
+        }
+        return deadline != MeasurementBus.NO_DEADLINE ? deadline : now;
+    }
+
+    @Override
+    protected void onStop() {
+        release(Long.MAX_VALUE);
+    }
+
+    // Releases all events measured at or before the watermark, merging the buffers by their heads.
+    private void release(long watermark) {
+        while (true) {
+            int next = -1;
+            long earliest = Long.MAX_VALUE;
+            for (int p = 0; p < MeasurementBus.MAX_PRODUCERS; p++) {
+                if (mCount[p] > 0) {
+                    long measured = mMeasured[p * mCapacity + mHead[p]];
+                    if (measured < earliest) {
+                        earliest = measured;
+                        next = p;
+                    }
+                }
+            }
+            if (next < 0 || earliest > watermark) {
+                return;
+            }
+            int slot = next * mCapacity + mHead[next];
+            mHead[next] = (mHead[next] + 1) % mCapacity;
+            if (--mCount[next] == 0) {
+                mHolding &= ~(1 << next);
+            }
+            mLastReleased = earliest;
+            onAlignedEvent(mProducers[next], mWhat[slot], mValue[slot], mTimestamp[slot], earliest);
+        }
+    }
+}
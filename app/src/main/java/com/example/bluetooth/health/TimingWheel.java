@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel for protocol timeouts, driven by a single thread for all sessions.
+ *
+ * Timers are preallocated by their owners and linked into the wheel's buckets intrusively, so
+ * scheduling, rescheduling and cancelling are O(1) and allocate nothing.  Each tick the thread
+ * visits one bucket and fires the timers that are due; timers further away than a full turn of
+ * the wheel stay in their bucket until their turn.  Expiry callbacks run on the wheel thread,
+ * outside the wheel's lock, and must not block.  A timer that is rescheduled after it expired but
+ * before its callback ran is not fired.
+ */
+class TimingWheel implements Runnable {
+    private static final String TAG = "TimingWheel";
+
+    /**
+     * A timeout that can be scheduled on one wheel.  Subclasses implement {@link #onExpired}.
+     */
+    abstract static class Timer {
+        private Timer mPrev;
+        private Timer mNext;
+        // Chain of timers expired in one tick, to be fired outside the lock.
+        private Timer mNextExpired;
+        private long mDeadlineTick;
+        private boolean mScheduled;
+
+        // Called on the wheel thread when the timer expires.
+        protected abstract void onExpired();
+    }
+
+    private final String mName;
+    private final long mTickNanos;
+    private final int mMask;
+    // Sentinel heads of the circular bucket lists.
+    private final Timer[] mBuckets;
+    private final long mStart = System.nanoTime();
+    // Last tick whose bucket has been processed.
+    private long mTick;
+    private int mPending;
+    private Thread mThread;
+    private volatile boolean mParked;
+    private volatile boolean mRunning = true;
+
+    // wheelSize must be a power of two.
+    TimingWheel(String name, long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("wheelSize must be a power of two: " + wheelSize);
+        }
+        mName = name;
+        mTickNanos = tickMillis * 1000000L;
+        mMask = wheelSize - 1;
+        mBuckets = new Timer[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            Timer head = new Timer() {
+                @Override
+                protected void onExpired() {
+                }
+            };
+            head.mPrev = head;
+            head.mNext = head;
+            mBuckets[i] = head;
+        }
+    }
+
+    synchronized void start() {
+        mThread = new Thread(this, mName);
+        mThread.start();
+    }
+
+    void quit() {
+        mRunning = false;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Schedules a timer to expire after delayMillis, rounded up to the next tick.  A timer that
+     * is already scheduled is moved.
+     */
+    void schedule(Timer timer, long delayMillis) {
+        boolean wake;
+        synchronized (this) {
+            if (timer.mScheduled) {
+                unlink(timer);
+            }
+            if (mPending == 0) {
+                // The wheel thread does not advance while idle.
+                mTick = Math.max(mTick, (System.nanoTime() - mStart) / mTickNanos);
+            }
+            long ticks = Math.max(1, (delayMillis * 1000000L + mTickNanos - 1) / mTickNanos);
+            timer.mDeadlineTick = mTick + ticks;
+            Timer head = mBuckets[(int) (timer.mDeadlineTick & mMask)];
+            timer.mPrev = head.mPrev;
+            timer.mNext = head;
+            head.mPrev.mNext = timer;
+            head.mPrev = timer;
+            timer.mScheduled = true;
+            mPending++;
+            wake = mPending == 1;
+        }
+        // An idle wheel thread parks without a deadline.
+        if (wake && mParked) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    synchronized void cancel(Timer timer) {
+        if (timer.mScheduled) {
+            unlink(timer);
+        }
+    }
+
+    synchronized boolean isScheduled(Timer timer) {
+        return timer.mScheduled;
+    }
+
+    synchronized int getPending() {
+        return mPending;
+    }
+
+    private void unlink(Timer timer) {
+        timer.mPrev.mNext = timer.mNext;
+        timer.mNext.mPrev = timer.mPrev;
+        timer.mPrev = null;
+        timer.mNext = null;
+        timer.mScheduled = false;
+        mPending--;
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            long now = System.nanoTime();
+            long tick = (now - mStart) / mTickNanos;
+            Timer expired = advanceTo(tick);
+            // Fire outside the lock.
+            while (expired != null) {
+                Timer next = expired.mNextExpired;
+                expired.mNextExpired = null;
+                try {
+                    if (!isScheduled(expired)) {
+                        expired.onExpired();
+                    }
+                }
+                catch (RuntimeException e) {
+                    Log.e(TAG, "Timer failed", e);
+                }
+                expired = next;
+            }
+            mParked = true;
+            boolean idle;
+            synchronized (this) {
+                idle = mPending == 0;
+            }
+            if (idle) {
+                LockSupport.park(this);
+            }
+            else {
+                LockSupport.parkNanos(this, mStart + (tick + 1) * mTickNanos - System.nanoTime());
+            }
+            mParked = false;
+        }
+    }
+
+    // Processes all buckets up to tick and returns the expired timers as a chain.
+    private synchronized Timer advanceTo(long tick) {
+        if (mPending == 0) {
+            mTick = Math.max(mTick, tick);
+            return null;
+        }
+        Timer expired = null;
+        while (mTick < tick) {
+            mTick++;
+            Timer head = mBuckets[(int) (mTick & mMask)];
+            Timer timer = head.mNext;
+            while (timer != head) {
+                Timer next = timer.mNext;
+                if (timer.mDeadlineTick <= mTick) {
+                    unlink(timer);
+                    timer.mNextExpired = expired;
+                    expired = timer;
+                }
+                timer = next;
+            }
+        }
+        return expired;
+    }
+}
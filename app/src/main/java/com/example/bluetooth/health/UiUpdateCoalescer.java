@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import android.view.Choreographer;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * Coalesces value and indicator updates for {@link BluetoothHDPActivity}.  Incoming messages only
+ * record the latest value per field and the latest level per indicator; the views are updated
+ * once per display frame from a {@link Choreographer} callback.  Values are formatted into
+ * reusable char buffers, so no strings are built per update.
+ *
+ * All methods must be called on the UI thread.
+ */
+class UiUpdateCoalescer implements Choreographer.FrameCallback {
+    // Enough for any int including the sign.
+    private static final int MAX_DIGITS = 11;
+
+    private final TextView[] mFields;
+    private final int[] mPendingValues;
+    private final int[] mShownValues;
+    private final boolean[] mValueDirty;
+    // Two buffers per field; the TextView keeps a reference to the one it shows, so the other
+    // one is formatted into.
+    private final char[][][] mBuffers;
+    private final int[] mCurrentBuffer;
+
+    private final ImageView[] mIndicators;
+    private final int[] mPendingLevels;
+    private final int[] mShownLevels;
+
+    private boolean mFrameScheduled;
+    private boolean mPaused;
+
+    UiUpdateCoalescer(TextView[] fields, ImageView[] indicators) {
+        mFields = fields;
+        mPendingValues = new int[fields.length];
+        mShownValues = new int[fields.length];
+        mValueDirty = new boolean[fields.length];
+        mBuffers = new char[fields.length][2][MAX_DIGITS];
+        mCurrentBuffer = new int[fields.length];
+
+        mIndicators = indicators;
+        mPendingLevels = new int[indicators.length];
+        mShownLevels = new int[indicators.length];
+        for (int i = 0; i < indicators.length; i++) {
+            mPendingLevels[i] = -1;
+            mShownLevels[i] = -1;
+        }
+    }
+
+    void setValue(int field, int value) {
+        mPendingValues[field] = value;
+        mValueDirty[field] = true;
+        scheduleFrame();
+    }
+
+    void setIndicatorLevel(int indicator, int level) {
+        mPendingLevels[indicator] = level;
+        scheduleFrame();
+    }
+
+    // Stops applying updates while the activity is paused.  Updates keep being recorded and are
+    // applied on the first frame after resume().
+    void pause() {
+        mPaused = true;
+        if (mFrameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            mFrameScheduled = false;
+        }
+    }
+
+    void resume() {
+        mPaused = false;
+        scheduleFrame();
+    }
+
+    private void scheduleFrame() {
+        if (!mFrameScheduled && !mPaused) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mFrameScheduled = false;
+        for (int i = 0; i < mFields.length; i++) {
+            if (!mValueDirty[i]) {
+                continue;
+            }
+            mValueDirty[i] = false;
+            int value = mPendingValues[i];
+            if (value == mShownValues[i] && mCurrentBuffer[i] != 0) {
+                continue;
+            }
+            int next = mCurrentBuffer[i] == 1 ? 2 : 1;
+            char[] buffer = mBuffers[i][next - 1];
+            int length = format(value, buffer);
+            mFields[i].setText(buffer, 0, length);
+            mShownValues[i] = value;
+            mCurrentBuffer[i] = next;
+        }
+        for (int i = 0; i < mIndicators.length; i++) {
+            if (mPendingLevels[i] != mShownLevels[i]) {
+                mIndicators[i].setImageLevel(mPendingLevels[i]);
+                mShownLevels[i] = mPendingLevels[i];
+            }
+        }
+    }
+
+    // Writes the decimal representation of value into buffer and returns its length.
+    static int format(int value, char[] buffer) {
+        long v = value;
+        int length = 0;
+        if (v < 0) {
+            buffer[length++] = '-';
+            v = -v;
+        }
+        int start = length;
+        do {
+            buffer[length++] = (char) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        // Digits were written least significant first.
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            char c = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = c;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the BCD decoding of the 11073-20601 {@link AbsoluteTime}.
+ */
+public class AbsoluteTimeTest {
+    // Milliseconds of the given date and time in UTC.
+    private static long utc(int year, int month, int day, int hour, int minute, int second, int millis) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        calendar.set(Calendar.MILLISECOND, millis);
+        return calendar.getTimeInMillis();
+    }
+
+    private static byte[] bytes(int... octets) {
+        byte[] data = new byte[octets.length];
+        for (int i = 0; i < octets.length; i++) {
+            data[i] = (byte) octets[i];
+        }
+        return data;
+    }
+
+    @Test
+    public void decode_localTimeAsUtc() throws Exception {
+        byte[] data = bytes(0x20, 0x11, 0x03, 0x14, 0x15, 0x09, 0x26, 0x53);
+        assertEquals(utc(2011, 3, 14, 15, 9, 26, 530), AbsoluteTime.decode(data, 0));
+    }
+
+    @Test
+    public void decode_epochAndEarlier() throws Exception {
+        assertEquals(0, AbsoluteTime.decode(bytes(0x19, 0x70, 0x01, 0x01, 0x00, 0x00, 0x00, 0x00), 0));
+        assertEquals(-10, AbsoluteTime.decode(bytes(0x19, 0x69, 0x12, 0x31, 0x23, 0x59, 0x59, 0x99), 0));
+    }
+
+    @Test
+    public void decode_leapDaysAndCenturies() throws Exception {
+        assertEquals(utc(2000, 2, 29, 0, 0, 0, 0),
+                AbsoluteTime.decode(bytes(0x20, 0x00, 0x02, 0x29, 0x00, 0x00, 0x00, 0x00), 0));
+        assertEquals(utc(2100, 3, 1, 12, 0, 0, 0),
+                AbsoluteTime.decode(bytes(0x21, 0x00, 0x03, 0x01, 0x12, 0x00, 0x00, 0x00), 0));
+        assertEquals(utc(1999, 12, 31, 23, 59, 59, 990),
+                AbsoluteTime.decode(bytes(0x19, 0x99, 0x12, 0x31, 0x23, 0x59, 0x59, 0x99), 0));
+    }
+
+    @Test
+    public void decode_atOffset() throws Exception {
+        byte[] data = bytes(0xFF, 0xFF, 0x20, 0x16, 0x10, 0x18, 0x08, 0x30, 0x00, 0x00);
+        assertEquals(utc(2016, 10, 18, 8, 30, 0, 0), AbsoluteTime.decode(data, 2));
+    }
+
+    @Test
+    public void decode_invalid() throws Exception {
+        // Not set.
+        assertEquals(AbsoluteTime.INVALID,
+                AbsoluteTime.decode(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF), 0));
+        // Digit out of range.
+        assertEquals(AbsoluteTime.INVALID,
+                AbsoluteTime.decode(bytes(0x20, 0x1A, 0x03, 0x14, 0x15, 0x09, 0x26, 0x53), 0));
+        // Month 13, day 0, hour 24, minute 60.
+        assertEquals(AbsoluteTime.INVALID,
+                AbsoluteTime.decode(bytes(0x20, 0x11, 0x13, 0x14, 0x15, 0x09, 0x26, 0x53), 0));
+        assertEquals(AbsoluteTime.INVALID,
+                AbsoluteTime.decode(bytes(0x20, 0x11, 0x03, 0x00, 0x15, 0x09, 0x26, 0x53), 0));
+        assertEquals(AbsoluteTime.INVALID,
+                AbsoluteTime.decode(bytes(0x20, 0x11, 0x03, 0x14, 0x24, 0x09, 0x26, 0x53), 0));
+        assertEquals(AbsoluteTime.INVALID,
+                AbsoluteTime.decode(bytes(0x20, 0x11, 0x03, 0x14, 0x15, 0x60, 0x26, 0x53), 0));
+    }
+
+    @Test
+    public void decode_leapSecond() throws Exception {
+        assertEquals(utc(2016, 12, 31, 23, 59, 59, 0) + 1000,
+                AbsoluteTime.decode(bytes(0x20, 0x16, 0x12, 0x31, 0x23, 0x59, 0x60, 0x00), 0));
+    }
+}
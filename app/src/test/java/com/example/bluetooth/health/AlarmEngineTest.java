@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link AlarmEngine} limit, hysteresis, sustain and rate-of-change rules.
+ */
+public class AlarmEngineTest {
+    private static final long SECOND = 1000000000L;
+    private static final int SYS = BluetoothHDPService.RECEIVED_SYS;
+    private static final int O2 = BluetoothHDPService.RECEIVED_O2;
+
+    private final AlarmEngine mEngine = new AlarmEngine();
+
+    @Test
+    public void limits_raiseAndClearWithHysteresis() throws Exception {
+        mEngine.setRule(SYS, new AlarmEngine.Rule(80, 180, 5, 0, Float.NaN));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, SYS, 120, SECOND));
+        assertEquals(AlarmEngine.CONDITION_HIGH, mEngine.evaluate(0, SYS, 181, 2 * SECOND));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, SYS, 190, 3 * SECOND));
+        // Within the hysteresis band the alarm stays.
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, SYS, 177, 4 * SECOND));
+        assertEquals(AlarmEngine.CONDITION_NONE, mEngine.evaluate(0, SYS, 175, 5 * SECOND));
+        assertEquals(AlarmEngine.CONDITION_LOW, mEngine.evaluate(0, SYS, 79, 6 * SECOND));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, SYS, 84, 7 * SECOND));
+        assertEquals(AlarmEngine.CONDITION_NONE, mEngine.evaluate(0, SYS, 85, 8 * SECOND));
+    }
+
+    @Test
+    public void sustain_delaysRaisingButNotClearing() throws Exception {
+        mEngine.setRule(O2, new AlarmEngine.Rule(90, Float.NaN, 2, 10000, Float.NaN));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, O2, 88, SECOND));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, O2, 87, 6 * SECOND));
+        assertEquals(AlarmEngine.CONDITION_LOW, mEngine.evaluate(0, O2, 88, 11 * SECOND));
+        assertEquals(AlarmEngine.CONDITION_NONE, mEngine.evaluate(0, O2, 95, 12 * SECOND));
+        // An interrupted condition starts its sustain time over.
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, O2, 88, 13 * SECOND));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, O2, 95, 20 * SECOND));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, O2, 88, 21 * SECOND));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, O2, 88, 30 * SECOND));
+        assertEquals(AlarmEngine.CONDITION_LOW, mEngine.evaluate(0, O2, 88, 31 * SECOND));
+    }
+
+    @Test
+    public void rate_ofChangePerMinute() throws Exception {
+        mEngine.setRule(O2, new AlarmEngine.Rule(Float.NaN, Float.NaN, 0, 0, 10));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, O2, 98, SECOND));
+        // 1 % in 10 s is 6 % per minute.
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, O2, 97, 11 * SECOND));
+        // 3 % in 10 s is 18 % per minute.
+        assertEquals(AlarmEngine.CONDITION_RATE, mEngine.evaluate(0, O2, 94, 21 * SECOND));
+        assertEquals(AlarmEngine.CONDITION_NONE, mEngine.evaluate(0, O2, 94, 31 * SECOND));
+    }
+
+    @Test
+    public void ignored_withoutRuleOrValue() throws Exception {
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, SYS, 500, SECOND));
+        mEngine.setDefaultRules();
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, SYS - 1, 500, SECOND));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, SYS, -1, SECOND));
+        // SpO2 has no high limit.
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, O2, 100, SECOND));
+    }
+
+    @Test
+    public void setRule_ignoresOutOfRangeMetric() throws Exception {
+        AlarmEngine.Rule rule = new AlarmEngine.Rule(80, 180, 5, 0, Float.NaN);
+        assertFalse(mEngine.setRule(0, rule));
+        assertFalse(mEngine.setRule(SYS - 1, rule));
+        assertFalse(mEngine.setRule(SYS + BluetoothHDPService.RECEIVED_COUNT, rule));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, SYS, 500, SECOND));
+        assertTrue(mEngine.setRule(SYS + BluetoothHDPService.RECEIVED_COUNT - 1, rule));
+    }
+
+    @Test
+    public void producers_areIndependentAndReset() throws Exception {
+        mEngine.setRule(SYS, new AlarmEngine.Rule(80, 180, 5, 0, Float.NaN));
+        assertEquals(AlarmEngine.CONDITION_HIGH, mEngine.evaluate(0, SYS, 200, SECOND));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(1, SYS, 120, SECOND));
+        assertEquals(AlarmEngine.NO_CHANGE, mEngine.evaluate(0, SYS, 200, 2 * SECOND));
+        mEngine.reset(0);
+        assertEquals(AlarmEngine.CONDITION_HIGH, mEngine.evaluate(0, SYS, 200, 3 * SECOND));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link DeliveryPolicy} batching of deferred deliveries.
+ */
+public class DeliveryPolicyTest {
+    private static final long MILLI = 1000000L;
+    private static final int SYS = BluetoothHDPService.RECEIVED_SYS;
+    private static final int DIA = BluetoothHDPService.RECEIVED_DIA;
+
+    @Test
+    public void constructor_validatesMode() throws Exception {
+        assertTrue(DeliveryPolicy.DEFAULT.isImmediate());
+        DeliveryPolicy policy = new DeliveryPolicy(0x1007, DeliveryPolicy.BATCHED, 0, 10);
+        assertFalse(policy.isImmediate());
+        assertEquals(1, policy.maxCount);
+        assertEquals(10 * MILLI, policy.maxDelayNanos);
+        try {
+            new DeliveryPolicy(0x1007, 3, 1, 0);
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void batched_isDueWhenFull() throws Exception {
+        DeliveryPolicy.Batch batch = new DeliveryPolicy.Batch(
+                new DeliveryPolicy(0x1007, DeliveryPolicy.BATCHED, 3, 60000));
+        assertTrue(batch.isEmpty());
+        assertFalse(batch.isDue(0));
+        batch.add(SYS, 120, 1 * MILLI);
+        batch.add(DIA, 80, 2 * MILLI);
+        assertFalse(batch.isDue(3 * MILLI));
+        batch.add(SYS, 125, 3 * MILLI);
+        assertTrue(batch.isDue(3 * MILLI));
+        assertArrayEquals(new int[] {SYS, DIA, SYS}, batch.copyWhat());
+        assertArrayEquals(new float[] {120, 80, 125}, batch.copyValues(), 0f);
+        assertArrayEquals(new long[] {1 * MILLI, 2 * MILLI, 3 * MILLI}, batch.copyTimestamps());
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        assertEquals(0, batch.copyWhat().length);
+    }
+
+    @Test
+    public void batched_isDueWhenOldestIsMaxDelayOld() throws Exception {
+        DeliveryPolicy.Batch batch = new DeliveryPolicy.Batch(
+                new DeliveryPolicy(0x1007, DeliveryPolicy.BATCHED, 64, 100));
+        assertEquals(MeasurementBus.NO_DEADLINE, batch.getDeadline());
+        batch.add(SYS, 120, 10 * MILLI);
+        batch.add(SYS, 121, 50 * MILLI);
+        assertEquals(110 * MILLI, batch.getDeadline());
+        assertFalse(batch.isDue(109 * MILLI));
+        assertTrue(batch.isDue(110 * MILLI));
+        batch.clear();
+        // The delay counts from the first observation after a flush.
+        batch.add(SYS, 122, 120 * MILLI);
+        assertFalse(batch.isDue(200 * MILLI));
+    }
+
+    @Test
+    public void latestOnly_keepsLatestChangedValues() throws Exception {
+        DeliveryPolicy.Batch batch = new DeliveryPolicy.Batch(
+                new DeliveryPolicy(0x1007, DeliveryPolicy.LATEST_ONLY, 4, 60000));
+        batch.add(SYS, 120, MILLI);
+        batch.add(SYS, 125, MILLI);
+        assertTrue(batch.hasChanged(SYS));
+        assertFalse(batch.hasChanged(DIA));
+        assertEquals(125, batch.getLatest(SYS), 0f);
+        assertEquals(2, batch.getCount());
+        batch.clear();
+        assertFalse(batch.hasChanged(SYS));
+        batch.add(DIA, 80, MILLI);
+        assertTrue(batch.hasChanged(DIA));
+        assertFalse(batch.hasChanged(SYS));
+    }
+}
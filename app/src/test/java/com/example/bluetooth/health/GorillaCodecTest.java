@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip tests of the {@link GorillaCodec} block encoding, the on-disk format of the
+ * measurement archive.
+ */
+public class GorillaCodecTest {
+    private static final long START = 1300000000000L;
+
+    // Encodes the samples into one block and checks that they decode bit for bit.
+    private static void assertRoundTrip(long[] timestamps, float[] values) {
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(Integer.MAX_VALUE);
+        for (int i = 0; i < timestamps.length; i++) {
+            encoder.append(timestamps[i], values[i]);
+        }
+        assertEquals(timestamps.length, encoder.getCount());
+        assertEquals(timestamps[0], encoder.getFirstTimestamp());
+        assertEquals(timestamps[timestamps.length - 1], encoder.getLastTimestamp());
+        GorillaCodec.Decoder decoder = new GorillaCodec.Decoder(encoder.toByteArray(), encoder.getCount());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue(decoder.next());
+            assertEquals("timestamp " + i, timestamps[i], decoder.getTimestamp());
+            assertEquals("value " + i, Float.floatToRawIntBits(values[i]), Float.floatToRawIntBits(decoder.getValue()));
+        }
+        assertFalse(decoder.next());
+    }
+
+    // Timestamps whose delta-of-delta alternates between +dod and -dod around a 1 s interval.
+    private static long[] timestampsWithDeltaOfDelta(long dod) {
+        long[] timestamps = new long[6];
+        long delta = 1000;
+        timestamps[0] = START;
+        timestamps[1] = START + delta;
+        for (int i = 2; i < timestamps.length; i++) {
+            long next = delta + (i % 2 == 0 ? dod : -dod);
+            timestamps[i] = timestamps[i - 1] + next;
+            delta = next;
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void regularSamples_costOneBitEach() throws Exception {
+        long[] timestamps = new long[1000];
+        float[] values = new float[1000];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = START + i * 1000L;
+            values[i] = 98f;
+        }
+        assertRoundTrip(timestamps, values);
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(Integer.MAX_VALUE);
+        for (int i = 0; i < timestamps.length; i++) {
+            encoder.append(timestamps[i], values[i]);
+        }
+        // 96 bits for the first sample, 16 + 1 for the second, whose delta of delta is the first
+        // delta, then one bit for the delta of delta and one for the value.
+        assertEquals((96 + 17 + 998 * 2 + 7) / 8, encoder.getByteCount());
+    }
+
+    @Test
+    public void deltaOfDelta_bucketEdges() throws Exception {
+        long[] edges = {1, -1, 63, -63, 64, 65, -64, 255, -255, 256, 257, -256, 2047, -2047, 2048, 2049, -2048,
+                1L << 40, -(1L << 40)};
+        for (long dod : edges) {
+            long[] timestamps = timestampsWithDeltaOfDelta(dod);
+            float[] values = new float[timestamps.length];
+            assertRoundTrip(timestamps, values);
+        }
+    }
+
+    @Test
+    public void deltaOfDelta_singleStep() throws Exception {
+        // A delta of delta of exactly the bucket limits, once, after a regular interval.
+        long[] limits = {-63, 64, -255, 256, -2047, 2048, Integer.MAX_VALUE, -(1L << 40)};
+        for (long dod : limits) {
+            long[] timestamps = {START, START + 1000, START + 2000, START + 3000 + dod};
+            assertRoundTrip(timestamps, new float[] {1f, 2f, 3f, 4f});
+        }
+    }
+
+    @Test
+    public void equalTimestamps() throws Exception {
+        assertRoundTrip(new long[] {START, START, START, START + 5}, new float[] {120f, 80f, 72f, 120f});
+    }
+
+    @Test
+    public void values_specialAndExtreme() throws Exception {
+        float[] values = {0f, -0f, Float.NaN, Float.intBitsToFloat(0x7FC00001), Float.intBitsToFloat(0xFF800123),
+                Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE,
+                36.5f, 36.6f};
+        long[] timestamps = new long[values.length];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = START + i;
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void randomFloatBitPatterns() throws Exception {
+        Random random = new Random(42);
+        for (int block = 0; block < 100; block++) {
+            long[] timestamps = new long[200];
+            float[] values = new float[200];
+            long timestamp = START;
+            for (int i = 0; i < timestamps.length; i++) {
+                timestamp += random.nextInt(5000);
+                timestamps[i] = timestamp;
+                values[i] = Float.intBitsToFloat(random.nextInt());
+            }
+            assertRoundTrip(timestamps, values);
+        }
+    }
+
+    @Test
+    public void minMaxAndFull() throws Exception {
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(16);
+        encoder.append(START, 95f);
+        encoder.append(START + 1000, 99f);
+        encoder.append(START + 2000, 93f);
+        assertEquals(93f, encoder.getMin(), 0f);
+        assertEquals(99f, encoder.getMax(), 0f);
+        while (!encoder.isFull()) {
+            encoder.append(encoder.getLastTimestamp() + 1000, 97f);
+        }
+        assertTrue(encoder.getByteCount() >= 16);
+    }
+
+    @Test
+    public void reset_startsANewBlock() throws Exception {
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(Integer.MAX_VALUE);
+        for (int i = 0; i < 10; i++) {
+            encoder.append(START + i * 7, i);
+        }
+        encoder.reset();
+        assertEquals(0, encoder.getCount());
+        encoder.append(START + 100, 5f);
+        encoder.append(START + 200, 6f);
+        GorillaCodec.Decoder decoder = new GorillaCodec.Decoder(encoder.toByteArray(), encoder.getCount());
+        assertTrue(decoder.next());
+        assertEquals(START + 100, decoder.getTimestamp());
+        assertEquals(5f, decoder.getValue(), 0f);
+        assertTrue(decoder.next());
+        assertEquals(START + 200, decoder.getTimestamp());
+        assertEquals(6f, decoder.getValue(), 0f);
+        assertFalse(decoder.next());
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link HistoryExport} output and of resuming an interrupted export from its
+ * committed timestamp and byte count.
+ */
+public class HistoryExportTest {
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final long START = 1300000000000L;
+    // Enough rows that the export flushes its buffer several times.
+    private static final int ROWS_PER_SERIES = 3000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    // Records the result passed to the listener.
+    private static class ResultListener implements HistoryExport.Listener {
+        volatile int mResult = -1;
+
+        @Override
+        public void onProgress(HistoryExport export, int permille) {
+        }
+
+        @Override
+        public void onFinished(HistoryExport export, int result) {
+            mResult = result;
+        }
+    }
+
+    // Output that fails once more than limit bytes would have been written.
+    private static class FailingOutputStream extends OutputStream {
+        final ByteArrayOutputStream mWritten = new ByteArrayOutputStream();
+        private final int mLimit;
+
+        FailingOutputStream(int limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mWritten.size() + len > mLimit) {
+                throw new IOException("No space left");
+            }
+            mWritten.write(b, off, len);
+        }
+    }
+
+    // Writes one archive block of samples one second apart, in the format of MeasurementArchive.
+    private void writeBlock(int what, long first, float value, int count) throws IOException {
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder(Integer.MAX_VALUE);
+        for (int i = 0; i < count; i++) {
+            encoder.append(first + i * 1000L, value + (i % 4) * 0.25f);
+        }
+        byte[] payload = encoder.toByteArray();
+        File file = new File(mDirectory, ADDRESS.replace(':', '_') + "-" + what + MeasurementArchive.FILE_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        try {
+            out.writeInt(encoder.getCount());
+            out.writeLong(encoder.getFirstTimestamp());
+            out.writeLong(encoder.getLastTimestamp());
+            out.writeFloat(encoder.getMin());
+            out.writeFloat(encoder.getMax());
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = mFolder.newFolder("archive");
+        writeBlock(BluetoothHDPService.RECEIVED_O2, START, 97, ROWS_PER_SERIES);
+        writeBlock(BluetoothHDPService.RECEIVED_HEART_RATE, START, 60, ROWS_PER_SERIES);
+    }
+
+    private HistoryExport export(long after, int format, OutputStream out, ResultListener listener) {
+        return new HistoryExport(mDirectory, null, -1, Long.MIN_VALUE, Long.MAX_VALUE, after, format, out, listener);
+    }
+
+    private byte[] exportAll(int format) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResultListener listener = new ResultListener();
+        HistoryExport export = export(HistoryExport.NO_TIMESTAMP, format, out, listener);
+        export.run();
+        assertEquals(HistoryExport.RESULT_DONE, listener.mResult);
+        assertEquals(2 * ROWS_PER_SERIES, export.getRows());
+        assertEquals(START + (ROWS_PER_SERIES - 1) * 1000L, export.getCommittedTimestamp());
+        assertEquals(out.size(), export.getCommittedBytes());
+        return out.toByteArray();
+    }
+
+    // Checks that the committed part of an interrupted export and its resumption add up to the
+    // complete export.
+    private void assertResumes(HistoryExport interrupted, byte[] partial, int format) {
+        long after = interrupted.getCommittedTimestamp();
+        int committed = (int) interrupted.getCommittedBytes();
+        assertTrue(after != HistoryExport.NO_TIMESTAMP);
+        assertTrue(committed <= partial.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(partial, 0, committed);
+        ResultListener listener = new ResultListener();
+        export(after, format, out, listener).run();
+        assertEquals(HistoryExport.RESULT_DONE, listener.mResult);
+        assertArrayEquals(exportAll(format), out.toByteArray());
+    }
+
+    @Test
+    public void csv_headerAndRowsByTimestamp() throws Exception {
+        String csv = new String(exportAll(HistoryExport.FORMAT_CSV), "US-ASCII");
+        String[] lines = csv.split("\n");
+        assertEquals(1 + 2 * ROWS_PER_SERIES, lines.length);
+        assertEquals("device,metric,timestamp,value", lines[0]);
+        assertEquals(ADDRESS + "," + BluetoothHDPService.RECEIVED_O2 + "," + START + ",97", lines[1]);
+        assertEquals(ADDRESS + "," + BluetoothHDPService.RECEIVED_HEART_RATE + "," + START + ",60", lines[2]);
+        assertEquals(ADDRESS + "," + BluetoothHDPService.RECEIVED_O2 + "," + (START + 1000) + ",97.25", lines[3]);
+        assertEquals(ADDRESS + "," + BluetoothHDPService.RECEIVED_O2 + "," + (START + 2000) + ",97.5", lines[5]);
+    }
+
+    @Test
+    public void ndjson_oneObjectPerRow() throws Exception {
+        String json = new String(exportAll(HistoryExport.FORMAT_NDJSON), "US-ASCII");
+        String[] lines = json.split("\n");
+        assertEquals(2 * ROWS_PER_SERIES, lines.length);
+        assertEquals("{\"device\":\"" + ADDRESS + "\",\"metric\":" + BluetoothHDPService.RECEIVED_O2
+                + ",\"timestamp\":" + (START + 3000) + ",\"value\":97.75}", lines[6]);
+    }
+
+    @Test
+    public void failedExport_resumesAtCommittedBytes() throws Exception {
+        for (int format = HistoryExport.FORMAT_CSV; format <= HistoryExport.FORMAT_NDJSON; format++) {
+            FailingOutputStream out = new FailingOutputStream(150000);
+            ResultListener listener = new ResultListener();
+            HistoryExport export = export(HistoryExport.NO_TIMESTAMP, format, out, listener);
+            export.run();
+            assertEquals(HistoryExport.RESULT_FAILED, listener.mResult);
+            assertTrue(export.getCommittedBytes() > 0);
+            assertResumes(export, out.mWritten.toByteArray(), format);
+        }
+    }
+
+    @Test
+    public void cancelledExport_resumesAfterCommittedTimestamp() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResultListener listener = new ResultListener();
+        HistoryExport export = export(HistoryExport.NO_TIMESTAMP, HistoryExport.FORMAT_CSV, out, listener);
+        export.cancel();
+        export.run();
+        assertEquals(HistoryExport.RESULT_CANCELLED, listener.mResult);
+        // Both rows of the first timestamp are committed.
+        assertEquals(START, export.getCommittedTimestamp());
+        assertEquals(out.size(), export.getCommittedBytes());
+        assertResumes(export, out.toByteArray(), HistoryExport.FORMAT_CSV);
+        assertFalse(Arrays.equals(exportAll(HistoryExport.FORMAT_CSV), out.toByteArray()));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link InvokeTable} that matches responses to outstanding invocations and expires
+ * unanswered ones.
+ */
+public class InvokeTableTest {
+    private static final long DEADLINE = 1000;
+
+    @Test
+    public void allocate_completeReturnsKindOnce() throws Exception {
+        InvokeTable table = new InvokeTable(4);
+        int mds = table.allocate(InvokeTable.GET_MDS, DEADLINE);
+        int data = table.allocate(InvokeTable.DATA_REQUEST, DEADLINE);
+        assertNotEquals(mds, data);
+        assertEquals(2, table.size());
+        assertTrue(table.isOutstanding(InvokeTable.GET_MDS));
+
+        assertEquals(InvokeTable.GET_MDS, table.complete(mds));
+        assertFalse(table.isOutstanding(InvokeTable.GET_MDS));
+        assertEquals(InvokeTable.NONE, table.complete(mds));
+        assertEquals(InvokeTable.DATA_REQUEST, table.complete(data));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void allocate_fullTableRefuses() throws Exception {
+        InvokeTable table = new InvokeTable(4);
+        int first = table.allocate(InvokeTable.DATA_REQUEST, DEADLINE);
+        for (int i = 1; i < 4; i++) {
+            assertTrue(table.allocate(InvokeTable.DATA_REQUEST, DEADLINE) >= 0);
+        }
+        assertEquals(-1, table.allocate(InvokeTable.DATA_REQUEST, DEADLINE));
+        table.complete(first);
+        assertTrue(table.allocate(InvokeTable.DATA_REQUEST, DEADLINE) >= 0);
+    }
+
+    @Test
+    public void allocate_wrappingIdSkipsOutstandingOne() throws Exception {
+        InvokeTable table = new InvokeTable(4);
+        assertEquals(0, table.allocate(InvokeTable.GET_MDS, DEADLINE));
+        for (int i = 1; i <= 0xFFFF; i++) {
+            assertEquals(i, table.allocate(InvokeTable.DATA_REQUEST, DEADLINE));
+            table.complete(i);
+        }
+        assertEquals(1, table.allocate(InvokeTable.DATA_REQUEST, DEADLINE));
+        assertEquals(InvokeTable.GET_MDS, table.complete(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsCapacityNotPowerOfTwo() throws Exception {
+        new InvokeTable(3);
+    }
+
+    // Builds a table of capacity 4 (8 slots) holding invoke-ids 0, 7 and 8, where 8 collides with
+    // 0 and sits in slot 1.
+    private static InvokeTable collidingTable(long deadline0, long deadline7, long deadline8) {
+        InvokeTable table = new InvokeTable(4);
+        for (int i = 0; i < 7; i++) {
+            table.allocate(InvokeTable.DATA_REQUEST, deadline0);
+            if (i > 0) {
+                table.complete(i);
+            }
+        }
+        assertEquals(7, table.allocate(InvokeTable.DATA_REQUEST, deadline7));
+        assertEquals(8, table.allocate(InvokeTable.GET_MDS, deadline8));
+        return table;
+    }
+
+    @Test
+    public void expire_keepsCollidingEntryReachable() throws Exception {
+        InvokeTable table = collidingTable(100, 300, 200);
+        int[] expired = new int[4];
+        assertEquals(1, table.expire(150, expired));
+        assertEquals(0, expired[0]);
+        assertEquals(2, table.size());
+        // Removing id 0 shifts id 8 back into its home slot; it must still be found.
+        assertEquals(InvokeTable.GET_MDS, table.complete(8));
+        assertEquals(InvokeTable.DATA_REQUEST, table.complete(7));
+    }
+
+    @Test
+    public void expire_revisitsShiftedEntry() throws Exception {
+        InvokeTable table = collidingTable(100, 300, 100);
+        int[] expired = new int[4];
+        assertEquals(2, table.expire(100, expired));
+        assertEquals(0, expired[0]);
+        assertEquals(8, expired[1]);
+        assertEquals(1, table.size());
+        assertEquals(300, table.nextDeadline());
+    }
+
+    @Test
+    public void expire_stopsWhenArrayIsFull() throws Exception {
+        InvokeTable table = collidingTable(100, 100, 100);
+        int[] expired = new int[2];
+        assertEquals(2, table.expire(100, expired));
+        assertEquals(1, table.size());
+        assertEquals(1, table.expire(100, expired));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void nextDeadline_isEarliestAcrossNanoTimeWrap() throws Exception {
+        InvokeTable table = new InvokeTable(4);
+        assertEquals(Long.MAX_VALUE, table.nextDeadline());
+        table.allocate(InvokeTable.DATA_REQUEST, Long.MIN_VALUE + 10);
+        table.allocate(InvokeTable.DATA_REQUEST, Long.MAX_VALUE - 10);
+        assertEquals(Long.MAX_VALUE - 10, table.nextDeadline());
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(Long.MAX_VALUE, table.nextDeadline());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the SFLOAT and FLOAT decoding of {@link MderFloat}.
+ */
+public class MderFloatTest {
+    @Test
+    public void sFloat_positiveExponentAndMantissa() throws Exception {
+        // Systolic 120 mmHg, pulse 72 bpm, SpO2 98 % as sent by the standard configurations.
+        assertEquals(120f, MderFloat.decodeSFloat(0x0078), 0f);
+        assertEquals(72f, MderFloat.decodeSFloat(0x0048), 0f);
+        assertEquals(98f, MderFloat.decodeSFloat(0x0062), 0f);
+        assertEquals(2000f, MderFloat.decodeSFloat(0x10C8), 0f);
+        assertEquals(20000f, MderFloat.decodeSFloat(0x20C8), 0f);
+    }
+
+    @Test
+    public void sFloat_negativeExponent() throws Exception {
+        // 365 * 10^-1, a body temperature.
+        assertEquals(36.5f, MderFloat.decodeSFloat(0xF16D), 0f);
+        assertEquals(0.05f, MderFloat.decodeSFloat(0xE005), 0f);
+        // Smallest exponent, -8.
+        assertEquals(1e-8f, MderFloat.decodeSFloat(0x8001), 0f);
+    }
+
+    @Test
+    public void sFloat_negativeMantissa() throws Exception {
+        assertEquals(-1f, MderFloat.decodeSFloat(0x0FFF), 0f);
+        assertEquals(-0.05f, MderFloat.decodeSFloat(0xEFFB), 0f);
+        // Smallest mantissa, -2048, outside the special value range once the exponent is non-zero.
+        assertEquals(-20480f, MderFloat.decodeSFloat(0x1800), 0f);
+        assertEquals(-2045f, MderFloat.decodeSFloat(0x0803), 0f);
+    }
+
+    @Test
+    public void sFloat_specialValues() throws Exception {
+        assertTrue(Float.isNaN(MderFloat.decodeSFloat(0x07FF)));
+        assertTrue(Float.isNaN(MderFloat.decodeSFloat(0x0800)));
+        assertTrue(Float.isNaN(MderFloat.decodeSFloat(0x0801)));
+        assertEquals(Float.POSITIVE_INFINITY, MderFloat.decodeSFloat(0x07FE), 0f);
+        assertEquals(Float.NEGATIVE_INFINITY, MderFloat.decodeSFloat(0x0802), 0f);
+    }
+
+    @Test
+    public void sFloat_specialMantissasWithExponentAreNumbers() throws Exception {
+        assertEquals(20470f, MderFloat.decodeSFloat(0x17FF), 0f);
+        assertEquals(2046e-1f, MderFloat.decodeSFloat(0xF7FE), 0f);
+        assertEquals(-2048e-1f, MderFloat.decodeSFloat(0xF800), 0f);
+    }
+
+    @Test
+    public void sFloat_fromBytes() throws Exception {
+        byte[] data = {0x00, 0x00, (byte) 0xF1, 0x6D, 0x00, 0x78, 0x07, (byte) 0xFF};
+        assertEquals(36.5f, MderFloat.decodeSFloat(data, 2), 0f);
+        float[] values = new float[4];
+        MderFloat.decodeSFloats(data, 2, 3, values, 1);
+        assertEquals(0f, values[0], 0f);
+        assertEquals(36.5f, values[1], 0f);
+        assertEquals(120f, values[2], 0f);
+        assertTrue(Float.isNaN(values[3]));
+    }
+
+    @Test
+    public void float_values() throws Exception {
+        assertEquals(120.0, MderFloat.decodeFloat(0x00000078), 0.0);
+        assertEquals(36.5, MderFloat.decodeFloat(0xFF00016D), 0.0);
+        assertEquals(30.0, MderFloat.decodeFloat(0xFD007530), 0.0);
+        // Largest mantissa, 2^23 - 3, and exponents at both ends of the range.
+        assertEquals(8388605.0, MderFloat.decodeFloat(0x007FFFFD), 0.0);
+        assertEquals(1e127, MderFloat.decodeFloat(0x7F000001), 0.0);
+        // Powers beyond 10^22 are not exact; the result is correctly rounded or off by an ulp.
+        assertEquals(1e-128, MderFloat.decodeFloat(0x80000001), Math.ulp(1e-128));
+    }
+
+    @Test
+    public void float_negativeMantissa() throws Exception {
+        assertEquals(-1.0, MderFloat.decodeFloat(0x00FFFFFF), 0.0);
+        assertEquals(-0.1, MderFloat.decodeFloat(0xFFFFFFFF), 0.0);
+        assertEquals(-8388605.0, MderFloat.decodeFloat(0x00800003), 0.0);
+        assertEquals(-8388608e-2, MderFloat.decodeFloat(0xFE800000), 0.0);
+    }
+
+    @Test
+    public void float_specialValues() throws Exception {
+        assertTrue(Double.isNaN(MderFloat.decodeFloat(0x007FFFFF)));
+        assertTrue(Double.isNaN(MderFloat.decodeFloat(0x00800000)));
+        assertTrue(Double.isNaN(MderFloat.decodeFloat(0x00800001)));
+        assertEquals(Double.POSITIVE_INFINITY, MderFloat.decodeFloat(0x007FFFFE), 0.0);
+        assertEquals(Double.NEGATIVE_INFINITY, MderFloat.decodeFloat(0x00800002), 0.0);
+        assertEquals(8388607e1, MderFloat.decodeFloat(0x017FFFFF), 0.0);
+    }
+
+    @Test
+    public void float_fromBytes() throws Exception {
+        byte[] data = {0x00, (byte) 0xFF, 0x00, 0x01, 0x6D, 0x00, 0x00, 0x00, 0x78};
+        assertEquals(36.5, MderFloat.decodeFloat(data, 1), 0.0);
+        double[] values = new double[2];
+        MderFloat.decodeFloats(data, 1, 2, values, 0);
+        assertEquals(36.5, values[0], 0.0);
+        assertEquals(120.0, values[1], 0.0);
+    }
+}
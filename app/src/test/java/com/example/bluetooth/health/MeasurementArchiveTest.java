@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link MeasurementArchive} recovery from its journal and checkpoint after a
+ * crash.
+ */
+public class MeasurementArchiveTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+    private static final long START = 1300000000000L;
+    // Large enough that blocks are only written by checkpoints.
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    // Archive that signals when its thread has stopped and when readings were committed.
+    private static class TestArchive extends MeasurementArchive {
+        final CountDownLatch mStopped = new CountDownLatch(1);
+        final CountDownLatch mCommitted;
+
+        TestArchive(File directory, int readings) {
+            super(directory, BLOCK_BYTES, 1, 1000);
+            mCommitted = new CountDownLatch(readings);
+            setCommitListener(new CommitListener() {
+                @Override
+                public void onCommitted(MeasurementArchive archive, int count, long lastTimestamp) {
+                    for (int i = 0; i < count; i++) {
+                        mCommitted.countDown();
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected void onStop() {
+            super.onStop();
+            mStopped.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = mFolder.newFolder("archive");
+    }
+
+    // Starts an archive on a directory, archives count readings one second apart from first and
+    // waits until they are committed to the journal.
+    private TestArchive archive(MeasurementBus bus, File directory, long first, int count) throws Exception {
+        TestArchive archive = new TestArchive(directory, count);
+        bus.addConsumer(archive);
+        MeasurementBus.Producer producer = bus.openProducer(ADDRESS, 0);
+        for (int i = 0; i < count; i++) {
+            producer.publish(BluetoothHDPService.RECEIVED_O2, 90 + i, MeasurementBus.QUALITY_GOOD,
+                    System.nanoTime(), first + i * 1000L);
+        }
+        assertTrue(archive.mCommitted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        return archive;
+    }
+
+    // Archives readings and shuts the archive down cleanly.
+    private void archiveAndStop(File directory, long first, int count) throws Exception {
+        MeasurementBus bus = new MeasurementBus(64);
+        TestArchive archive = archive(bus, directory, first, count);
+        bus.shutdown();
+        assertTrue(archive.mStopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    // Archives readings and returns a copy of the directory taken while the archive still runs,
+    // as a crash would leave it.
+    private File archiveAndCrash(File directory, long first, int count) throws Exception {
+        MeasurementBus bus = new MeasurementBus(64);
+        TestArchive archive = archive(bus, directory, first, count);
+        File crashed = mFolder.newFolder();
+        for (File file : directory.listFiles()) {
+            copy(file, new File(crashed, file.getName()));
+        }
+        bus.shutdown();
+        assertTrue(archive.mStopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        return crashed;
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    // Returns the archived timestamps in order, after a clean start and stop of the archive.
+    private static List<Long> recovered(File directory) throws Exception {
+        MeasurementBus bus = new MeasurementBus(64);
+        TestArchive archive = new TestArchive(directory, 0);
+        bus.addConsumer(archive);
+        bus.shutdown();
+        assertTrue(archive.mStopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        List<Long> timestamps = new ArrayList<Long>();
+        for (MeasurementHistoryProvider.Series series : MeasurementHistoryProvider.openSeries(
+                directory, ADDRESS, BluetoothHDPService.RECEIVED_O2, Long.MIN_VALUE, Long.MAX_VALUE)) {
+            try {
+                while (series.hasSample()) {
+                    timestamps.add(series.getTimestamp());
+                    series.advance();
+                }
+            }
+            finally {
+                series.close();
+            }
+        }
+        return timestamps;
+    }
+
+    private static void assertTimestamps(List<Long> timestamps, long... expected) {
+        assertEquals(expected.length, timestamps.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], (long) timestamps.get(i));
+        }
+    }
+
+    @Test
+    public void crash_replaysCommittedReadings() throws Exception {
+        archiveAndStop(mDirectory, START, 2);
+        File crashed = archiveAndCrash(mDirectory, START + 10000, 2);
+        assertTimestamps(recovered(crashed), START, START + 1000, START + 10000, START + 11000);
+    }
+
+    @Test
+    public void crashAfterInterruptedCheckpoint_keepsAllReadings() throws Exception {
+        archiveAndStop(mDirectory, START, 2);
+        File checkpoint = new File(mDirectory, MeasurementArchive.CHECKPOINT_FILE);
+        File stale = mFolder.newFile();
+        copy(checkpoint, stale);
+        // A crash after the journal was truncated but before the checkpoint was replaced.
+        archiveAndStop(mDirectory, START + 10000, 2);
+        copy(stale, checkpoint);
+
+        File crashed = archiveAndCrash(mDirectory, START + 20000, 2);
+        assertTimestamps(recovered(crashed), START, START + 1000, START + 10000, START + 11000,
+                START + 20000, START + 21000);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link MeasurementBus} fan-out: delivery, overrun of a slow consumer and reuse of
+ * producer slots.
+ */
+public class MeasurementBusTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final MeasurementBus mBus = new MeasurementBus(8);
+
+    // Records the events it receives; blocks in onEvent until opened.
+    private static class RecordingConsumer extends MeasurementBus.Consumer {
+        final CountDownLatch mGate;
+        final long[] mValues = new long[1024];
+        final int[] mProducers = new int[1024];
+        final int[] mQualities = new int[1024];
+        final long[] mMeasured = new long[1024];
+        volatile int mCount;
+
+        RecordingConsumer(boolean open) {
+            super("recording");
+            mGate = new CountDownLatch(open ? 0 : 1);
+        }
+
+        @Override
+        protected void onEvent(MeasurementBus.Producer producer, int what, float value, long timestamp) {
+            try {
+                mGate.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            int i = mCount;
+            // Every event is published with what == value == timestamp, so a slot read while it
+            // was rewritten shows up as a mismatch.
+            mValues[i] = what == (int) value && timestamp == what ? what : -1;
+            mProducers[i] = producer.id;
+            mQualities[i] = getQuality();
+            mMeasured[i] = getMeasuredMillis(timestamp);
+            mCount = i + 1;
+        }
+
+        void awaitCount(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (mCount < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(count, mCount);
+        }
+
+        // The cursor is stored after the batch, so the lag drops to zero after the last onEvent.
+        void awaitCaughtUp() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (getLag() != 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(0, getLag());
+        }
+    }
+
+    // Asks for onIdle 100 ms after each event and records when it ran.
+    private static class DeadlineConsumer extends MeasurementBus.Consumer {
+        volatile long mDeadline = MeasurementBus.NO_DEADLINE;
+        volatile long mIdleAt;
+
+        DeadlineConsumer() {
+            super("deadline");
+        }
+
+        @Override
+        protected void onEvent(MeasurementBus.Producer producer, int what, float value, long timestamp) {
+            mDeadline = System.nanoTime() + 100000000L;
+        }
+
+        @Override
+        protected void onIdle() {
+            if (mDeadline != MeasurementBus.NO_DEADLINE && System.nanoTime() - mDeadline >= 0) {
+                mIdleAt = System.nanoTime();
+                mDeadline = MeasurementBus.NO_DEADLINE;
+            }
+        }
+
+        @Override
+        protected long getIdleDeadline() {
+            return mDeadline;
+        }
+    }
+
+    private static void publish(MeasurementBus.Producer producer, int value) {
+        producer.publish(value, value, MeasurementBus.QUALITY_GOOD, value, 1000L * value);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mBus.shutdown();
+    }
+
+    @Test
+    public void deliversEventsInOrderWithQualityAndMeasuredTime() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer(true);
+        mBus.addConsumer(consumer);
+        MeasurementBus.Producer producer = mBus.openProducer("00:11:22:33:44:55", 1);
+        // Fewer events than the ring holds, so none can be overwritten.
+        for (int i = 1; i <= 7; i++) {
+            producer.publish(i, i, i % 2 == 0 ? MeasurementBus.QUALITY_ARTIFACT : MeasurementBus.QUALITY_GOOD, i,
+                    1000L * i);
+        }
+        consumer.awaitCount(7);
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i + 1, consumer.mValues[i]);
+            assertEquals(i % 2 == 1 ? MeasurementBus.QUALITY_ARTIFACT : MeasurementBus.QUALITY_GOOD,
+                    consumer.mQualities[i]);
+            assertEquals(1000L * (i + 1), consumer.mMeasured[i]);
+        }
+        consumer.awaitCaughtUp();
+        assertEquals(0, consumer.getDropped());
+    }
+
+    @Test
+    public void slowConsumerSkipsOverwrittenEvents() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer(false);
+        mBus.addConsumer(consumer);
+        MeasurementBus.Producer producer = mBus.openProducer("00:11:22:33:44:55", 1);
+        // The consumer blocks on the first event; the next 20 lap the ring of 8 slots.
+        publish(producer, 1);
+        Thread.sleep(50);
+        for (int i = 2; i <= 21; i++) {
+            publish(producer, i);
+        }
+        consumer.mGate.countDown();
+        // The slot of the next sequence may be rewritten any time, so 7 events are readable.
+        consumer.awaitCount(8);
+        assertEquals(1, consumer.mValues[0]);
+        for (int i = 1; i < 8; i++) {
+            assertEquals(14 + i, consumer.mValues[i]);
+        }
+        assertEquals(13, consumer.getDropped());
+        assertEquals(20, consumer.getMaxLag());
+    }
+
+    @Test
+    public void closedSlotIsNotReusedUntilConsumersCaughtUp() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer(false);
+        mBus.addConsumer(consumer);
+        MeasurementBus.Producer first = mBus.openProducer("00:11:22:33:44:55", 1);
+        publish(first, 1);
+        publish(first, 2);
+        first.close();
+        MeasurementBus.Producer second = mBus.openProducer("66:77:88:99:AA:BB", 2);
+        assertNotEquals(first.id, second.id);
+        assertEquals("00:11:22:33:44:55", first.getAddress());
+
+        consumer.mGate.countDown();
+        consumer.awaitCount(2);
+        assertEquals(first.id, consumer.mProducers[0]);
+        second.close();
+        MeasurementBus.Producer third = mBus.openProducer("CC:DD:EE:FF:00:11", 1);
+        assertEquals(first.id, third.id);
+    }
+
+    @Test
+    public void openProducer_returnsNullWhenAllSlotsAreInUse() throws Exception {
+        MeasurementBus.Producer[] producers = new MeasurementBus.Producer[MeasurementBus.MAX_PRODUCERS];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = mBus.openProducer("00:11:22:33:44:55", 1);
+            assertNotNull(producers[i]);
+        }
+        assertNull(mBus.openProducer("66:77:88:99:AA:BB", 1));
+        producers[3].close();
+        assertEquals(3, mBus.openProducer("66:77:88:99:AA:BB", 1).id);
+    }
+
+    @Test
+    public void idleConsumer_sleepsUntilPublish() throws Exception {
+        RecordingConsumer consumer = new RecordingConsumer(true);
+        mBus.addConsumer(consumer);
+        MeasurementBus.Producer producer = mBus.openProducer("00:11:22:33:44:55", 1);
+        publish(producer, 1);
+        consumer.awaitCount(1);
+        consumer.awaitCaughtUp();
+        Thread.sleep(50);
+        long wakeups = consumer.getWakeups();
+        Thread.sleep(500);
+        assertEquals(wakeups, consumer.getWakeups());
+        publish(producer, 2);
+        consumer.awaitCount(2);
+    }
+
+    @Test
+    public void idleDeadline_runsOnIdleOnTime() throws Exception {
+        DeadlineConsumer consumer = new DeadlineConsumer();
+        mBus.addConsumer(consumer);
+        MeasurementBus.Producer producer = mBus.openProducer("00:11:22:33:44:55", 1);
+        long start = System.nanoTime();
+        publish(producer, 1);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (consumer.mIdleAt == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        long elapsedMillis = (consumer.mIdleAt - start) / 1000000L;
+        assertTrue(elapsedMillis >= 100);
+        assertTrue(elapsedMillis < 1000);
+    }
+
+    @Test
+    public void consumerOnlySeesEventsPublishedAfterItWasAdded() throws Exception {
+        MeasurementBus.Producer producer = mBus.openProducer("00:11:22:33:44:55", 1);
+        publish(producer, 1);
+        RecordingConsumer consumer = new RecordingConsumer(true);
+        mBus.addConsumer(consumer);
+        publish(producer, 2);
+        consumer.awaitCount(1);
+        Thread.sleep(20);
+        assertEquals(1, consumer.mCount);
+        assertEquals(2, consumer.mValues[0]);
+    }
+}
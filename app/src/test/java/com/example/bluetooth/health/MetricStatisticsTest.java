@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the incremental {@link MetricStatistics} against direct computation.
+ */
+public class MetricStatisticsTest {
+    @Test
+    public void empty_isNaN() throws Exception {
+        MetricStatistics statistics = new MetricStatistics(8, 0.5);
+        assertEquals(0, statistics.getCount());
+        assertTrue(Double.isNaN(statistics.getMean()));
+        assertTrue(Float.isNaN(statistics.getMin()));
+        assertTrue(Float.isNaN(statistics.getMax()));
+        assertTrue(Double.isNaN(statistics.getEwma()));
+        assertTrue(Double.isNaN(statistics.getQuantile(0)));
+    }
+
+    @Test
+    public void window_matchesDirectComputation() throws Exception {
+        int windowSize = 16;
+        MetricStatistics statistics = new MetricStatistics(windowSize, 0.25);
+        Random random = new Random(42);
+        float[] values = new float[1000];
+        double ewma = 0;
+        for (int n = 0; n < values.length; n++) {
+            // Runs of rising and falling values exercise both monotonic queues.
+            values[n] = n % 50 < 25 ? n % 50 + random.nextInt(5) : 50 - n % 50 + random.nextInt(5);
+            statistics.add(values[n]);
+            ewma = n == 0 ? values[n] : ewma + 0.25 * (values[n] - ewma);
+
+            int from = Math.max(0, n - windowSize + 1);
+            double sum = 0;
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (int i = from; i <= n; i++) {
+                sum += values[i];
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+            }
+            assertEquals(n + 1, statistics.getCount());
+            assertEquals("mean " + n, sum / (n - from + 1), statistics.getMean(), 1e-9);
+            assertEquals("min " + n, min, statistics.getMin(), 0f);
+            assertEquals("max " + n, max, statistics.getMax(), 0f);
+            assertEquals("ewma " + n, ewma, statistics.getEwma(), 1e-9);
+        }
+    }
+
+    @Test
+    public void quantiles_fewSamplesAreExact() throws Exception {
+        MetricStatistics statistics = new MetricStatistics(8, 0.5);
+        statistics.add(30);
+        statistics.add(10);
+        statistics.add(20);
+        // The median of 10, 20, 30.
+        assertEquals(20, statistics.getQuantile(0), 0);
+    }
+
+    @Test
+    public void quantiles_approximateUniformStream() throws Exception {
+        MetricStatistics statistics = new MetricStatistics(8, 0.5);
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            statistics.add(random.nextFloat() * 100);
+        }
+        for (int i = 0; i < MetricStatistics.QUANTILES.length; i++) {
+            assertEquals(MetricStatistics.QUANTILES[i] * 100, statistics.getQuantile(i), 1.0);
+        }
+    }
+}
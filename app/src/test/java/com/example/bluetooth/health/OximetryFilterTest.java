@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link OximetryFilter} artifact rejection.
+ */
+public class OximetryFilterTest {
+    private static final long SECOND = 1000000000L;
+    private static final int SPO2 = BluetoothHDPService.RECEIVED_O2;
+    private static final int PULSE = BluetoothHDPService.RECEIVED_HEART_RATE;
+
+    private final OximetryFilter mFilter = new OximetryFilter();
+    private long mNow = SECOND;
+
+    // Filters a sample of producer 0 arriving the given number of seconds after the previous one.
+    private int filter(int what, float value, int status, long seconds) {
+        mNow += seconds * SECOND;
+        return mFilter.filter(0, what, value, status, mNow);
+    }
+
+    private void steady(int what, float value) {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(MeasurementBus.QUALITY_GOOD, filter(what, value, 0, 1));
+        }
+    }
+
+    @Test
+    public void outOfRange_isArtifact() throws Exception {
+        assertEquals(MeasurementBus.QUALITY_ARTIFACT, filter(SPO2, 0, 0, 1));
+        assertEquals(MeasurementBus.QUALITY_ARTIFACT, filter(SPO2, 101, 0, 1));
+        assertEquals(MeasurementBus.QUALITY_ARTIFACT, filter(PULSE, 10, 0, 1));
+        assertEquals(MeasurementBus.QUALITY_ARTIFACT, filter(PULSE, Float.NaN, 0, 1));
+        assertEquals(MeasurementBus.QUALITY_GOOD, filter(PULSE, 60, 0, 1));
+    }
+
+    @Test
+    public void measurementStatus() throws Exception {
+        assertEquals(MeasurementBus.QUALITY_ARTIFACT, filter(SPO2, 97, OximetryFilter.MSMT_INVALID, 1));
+        assertEquals(MeasurementBus.QUALITY_ARTIFACT, filter(SPO2, 97, OximetryFilter.MSMT_NOT_AVAILABLE, 1));
+        assertEquals(MeasurementBus.QUALITY_QUESTIONABLE, filter(SPO2, 97, OximetryFilter.MSMT_QUESTIONABLE, 1));
+        assertEquals(MeasurementBus.QUALITY_QUESTIONABLE, filter(SPO2, 97, OximetryFilter.MSMT_EARLY_INDICATION, 1));
+        assertEquals(MeasurementBus.QUALITY_GOOD, filter(SPO2, 97, 0, 1));
+    }
+
+    @Test
+    public void spike_isArtifactAndDoesNotMoveTheBaseline() throws Exception {
+        steady(SPO2, 97);
+        assertEquals(MeasurementBus.QUALITY_ARTIFACT, filter(SPO2, 80, 0, 1));
+        assertEquals(MeasurementBus.QUALITY_GOOD, filter(SPO2, 97, 0, 1));
+    }
+
+    @Test
+    public void slowDeviation_isQuestionable() throws Exception {
+        steady(SPO2, 97);
+        assertEquals(MeasurementBus.QUALITY_QUESTIONABLE, filter(SPO2, 90, 0, 10));
+    }
+
+    @Test
+    public void fastChangeNearTheMedian_isQuestionable() throws Exception {
+        steady(PULSE, 60);
+        // 20 beats/min within 100 ms is too fast, but within the deviation of the median.
+        mNow += SECOND / 10;
+        assertEquals(MeasurementBus.QUALITY_QUESTIONABLE, mFilter.filter(0, PULSE, 80, 0, mNow));
+    }
+
+    @Test
+    public void step_isAcceptedOnceItMovedTheMedian() throws Exception {
+        steady(SPO2, 97);
+        // The rate is measured from the last accepted sample, so the third sample of the step is
+        // slow enough; by the fourth the step is the median.
+        int[] expected = {
+                MeasurementBus.QUALITY_ARTIFACT, MeasurementBus.QUALITY_ARTIFACT, MeasurementBus.QUALITY_QUESTIONABLE,
+                MeasurementBus.QUALITY_GOOD, MeasurementBus.QUALITY_GOOD
+        };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("sample " + i, expected[i], filter(SPO2, 90, 0, 1));
+        }
+    }
+
+    @Test
+    public void streams_areIndependent() throws Exception {
+        steady(SPO2, 97);
+        // Producer 1 and the pulse stream of producer 0 have no baseline yet.
+        assertEquals(MeasurementBus.QUALITY_GOOD, mFilter.filter(1, SPO2, 80, 0, mNow + SECOND / 10));
+        assertEquals(MeasurementBus.QUALITY_GOOD, filter(PULSE, 120, 0, 1));
+        // Other metrics are not filtered.
+        assertEquals(MeasurementBus.QUALITY_GOOD, filter(BluetoothHDPService.RECEIVED_SYS, 500, 0, 1));
+        mFilter.reset(0);
+        assertEquals(MeasurementBus.QUALITY_GOOD, filter(SPO2, 80, 0, 1));
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link ReadingJournal} group commits, replay and recovery of a torn tail.
+ */
+public class ReadingJournalTest {
+    private static final long ADDRESS = 0x001122334455L;
+    private static final long START = 1300000000000L;
+    // Long enough that only a full commit or an explicit commit() writes.
+    private static final long NEVER_MILLIS = 3600000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Collects the timestamps of the replayed records and checks the rest of each record.
+    private static List<Long> replay(File file) throws IOException {
+        final List<Long> timestamps = new ArrayList<Long>();
+        int count = ReadingJournal.replay(file, new ReadingJournal.Visitor() {
+            @Override
+            public void onRecord(long address, int what, long timestamp, float value) {
+                assertEquals(ADDRESS, address);
+                assertEquals(7, what);
+                assertEquals((float) (timestamp - START), value, 0f);
+                timestamps.add(timestamp);
+            }
+        });
+        assertEquals(timestamps.size(), count);
+        return timestamps;
+    }
+
+    private static int append(ReadingJournal journal, int i) throws IOException {
+        return journal.append(ADDRESS, 7, START + i, i);
+    }
+
+    @Test
+    public void append_commitsWhenFull() throws Exception {
+        File file = mFolder.newFile("journal");
+        ReadingJournal journal = new ReadingJournal(file, 3, NEVER_MILLIS);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, append(journal, i));
+        }
+        assertEquals(0, journal.size());
+        assertEquals(3, append(journal, 3));
+        assertEquals(3 * ReadingJournal.RECORD_BYTES, journal.size());
+        assertEquals(START + 2, journal.getCommittedTimestamp());
+        assertEquals(1, journal.getSyncs());
+        assertEquals(1, journal.commit());
+        assertEquals(0, journal.commit());
+        assertEquals(2, journal.getSyncs());
+        journal.close();
+        assertEquals(4 * ReadingJournal.RECORD_BYTES, file.length());
+        assertEquals(4, replay(file).size());
+    }
+
+    @Test
+    public void commitIfDue_waitsForTheWindow() throws Exception {
+        ReadingJournal journal = new ReadingJournal(mFolder.newFile("journal"), 10, NEVER_MILLIS);
+        append(journal, 0);
+        assertEquals(0, journal.commitIfDue(System.nanoTime()));
+        journal.close();
+
+        journal = new ReadingJournal(mFolder.newFile("journal2"), 10, 1000);
+        assertEquals(MeasurementBus.NO_DEADLINE, journal.getCommitDeadline());
+        long before = System.nanoTime();
+        append(journal, 0);
+        long deadline = journal.getCommitDeadline();
+        assertTrue(deadline - before >= 1000 * 1000000L);
+        assertTrue(deadline - System.nanoTime() <= 1000 * 1000000L);
+        assertEquals(0, journal.commitIfDue(deadline - 1));
+        assertEquals(1, journal.commitIfDue(deadline));
+        assertEquals(MeasurementBus.NO_DEADLINE, journal.getCommitDeadline());
+        journal.close();
+
+        journal = new ReadingJournal(mFolder.newFile("journal3"), 10, 0);
+        append(journal, 0);
+        append(journal, 1);
+        assertEquals(2, journal.commitIfDue(System.nanoTime()));
+        assertEquals(0, journal.commitIfDue(System.nanoTime()));
+        journal.close();
+    }
+
+    @Test
+    public void replay_returnsRecordsInOrder() throws Exception {
+        File file = mFolder.newFile("journal");
+        ReadingJournal journal = new ReadingJournal(file, 4, NEVER_MILLIS);
+        for (int i = 0; i < 10; i++) {
+            append(journal, i);
+        }
+        journal.commit();
+        journal.close();
+        List<Long> timestamps = replay(file);
+        assertEquals(10, timestamps.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(START + i, (long) timestamps.get(i));
+        }
+        assertEquals(0, ReadingJournal.replay(new File(mFolder.getRoot(), "missing"), null));
+    }
+
+    @Test
+    public void tornTail_isIgnoredByReplayAndTruncatedOnOpen() throws Exception {
+        File file = mFolder.newFile("journal");
+        ReadingJournal journal = new ReadingJournal(file, 4, NEVER_MILLIS);
+        append(journal, 0);
+        append(journal, 1);
+        journal.commit();
+        journal.close();
+        // A crash in the middle of the next commit.
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[ReadingJournal.RECORD_BYTES + 10]);
+        out.close();
+
+        assertEquals(3, ReadingJournal.replay(file, new ReadingJournal.Visitor() {
+            @Override
+            public void onRecord(long address, int what, long timestamp, float value) {
+            }
+        }));
+        journal = new ReadingJournal(file, 4, NEVER_MILLIS);
+        assertEquals(3 * ReadingJournal.RECORD_BYTES, journal.size());
+        assertEquals(3 * ReadingJournal.RECORD_BYTES, file.length());
+        journal.close();
+
+        // Only the torn record is lost; later records stay aligned.
+        out = new FileOutputStream(file, true);
+        out.getChannel().truncate(2 * ReadingJournal.RECORD_BYTES + 10);
+        out.close();
+        assertEquals(2, replay(file).size());
+        journal = new ReadingJournal(file, 4, NEVER_MILLIS);
+        assertEquals(2 * ReadingJournal.RECORD_BYTES, file.length());
+        append(journal, 2);
+        journal.commit();
+        journal.close();
+        List<Long> timestamps = replay(file);
+        assertEquals(3, timestamps.size());
+        assertEquals(START + 2, (long) timestamps.get(2));
+    }
+
+    @Test
+    public void truncate_keepsUncommittedReadings() throws Exception {
+        File file = mFolder.newFile("journal");
+        ReadingJournal journal = new ReadingJournal(file, 4, NEVER_MILLIS);
+        append(journal, 0);
+        journal.commit();
+        append(journal, 1);
+        journal.truncate();
+        assertEquals(0, journal.size());
+        assertEquals(0, file.length());
+        assertEquals(1, journal.commit());
+        journal.close();
+        List<Long> timestamps = replay(file);
+        assertEquals(1, timestamps.size());
+        assertEquals(START + 1, (long) timestamps.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsEmptyWindow() throws Exception {
+        new ReadingJournal(mFolder.newFile("journal"), 0, NEVER_MILLIS);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link TimeAlignedMerge} ordering of several channels by measurement time, driven
+ * through a {@link MeasurementBus}.
+ */
+public class TimeAlignedMergeTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final long START = 1300000000000L;
+
+    private final MeasurementBus mBus = new MeasurementBus(64);
+
+    // Records the released events; every event is published with its measurement offset as value.
+    private static class RecordingMerge extends TimeAlignedMerge {
+        final long[] mMeasured = new long[64];
+        final long[] mReleasedNanos = new long[64];
+        volatile int mCount;
+
+        RecordingMerge(long windowMillis, int capacity) {
+            super("merge", windowMillis, capacity);
+        }
+
+        @Override
+        protected void onAlignedEvent(MeasurementBus.Producer producer, int what, float value, long timestamp,
+                                      long measuredMillis) {
+            int i = mCount;
+            assertEquals(START + (long) value, measuredMillis);
+            mMeasured[i] = (long) value;
+            mReleasedNanos[i] = System.nanoTime();
+            mCount = i + 1;
+        }
+
+        void awaitCount(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (mCount < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(count, mCount);
+        }
+
+        void assertReleased(long... measured) {
+            assertEquals(measured.length, mCount);
+            for (int i = 0; i < measured.length; i++) {
+                assertEquals("event " + i, measured[i], mMeasured[i]);
+            }
+        }
+    }
+
+    private static void publish(MeasurementBus.Producer producer, long measured) {
+        producer.publish(1, measured, MeasurementBus.QUALITY_GOOD, System.nanoTime(), START + measured);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mBus.shutdown();
+    }
+
+    @Test
+    public void singleChannel_isReleasedRightAway() throws Exception {
+        RecordingMerge merge = new RecordingMerge(TIMEOUT_MILLIS, 4);
+        mBus.addConsumer(merge);
+        MeasurementBus.Producer producer = mBus.openProducer("00:11:22:33:44:55", 1);
+        publish(producer, 10);
+        publish(producer, 20);
+        // Long before the window of TIMEOUT_MILLIS.
+        merge.awaitCount(2);
+        merge.assertReleased(10, 20);
+        assertEquals(0, merge.getLate());
+    }
+
+    @Test
+    public void channels_areMergedByMeasurementTime() throws Exception {
+        RecordingMerge merge = new RecordingMerge(TIMEOUT_MILLIS, 4);
+        mBus.addConsumer(merge);
+        MeasurementBus.Producer first = mBus.openProducer("00:11:22:33:44:55", 1);
+        MeasurementBus.Producer second = mBus.openProducer("66:77:88:99:AA:BB", 1);
+        publish(first, 10);
+        merge.awaitCount(1);
+        publish(second, 30);
+        publish(first, 20);
+        merge.awaitCount(2);
+        Thread.sleep(50);
+        // 30 waits until the first channel has passed it.
+        merge.assertReleased(10, 20);
+        publish(first, 40);
+        merge.awaitCount(3);
+        Thread.sleep(50);
+        merge.assertReleased(10, 20, 30);
+        assertEquals(0, merge.getLate());
+    }
+
+    @Test
+    public void silentChannel_holdsOthersForAtMostTheWindow() throws Exception {
+        RecordingMerge merge = new RecordingMerge(200, 4);
+        mBus.addConsumer(merge);
+        MeasurementBus.Producer first = mBus.openProducer("00:11:22:33:44:55", 1);
+        MeasurementBus.Producer second = mBus.openProducer("66:77:88:99:AA:BB", 1);
+        long start = System.nanoTime();
+        publish(first, 10);
+        publish(second, 20);
+        merge.awaitCount(1);
+        // The first channel falls silent; 20 is held until its last event leaves the window.
+        merge.awaitCount(2);
+        merge.assertReleased(10, 20);
+        assertTrue((merge.mReleasedNanos[1] - start) / 1000000L >= 200);
+    }
+
+    @Test
+    public void lateEvent_isReleasedRightAwayAndCounted() throws Exception {
+        RecordingMerge merge = new RecordingMerge(TIMEOUT_MILLIS, 4);
+        mBus.addConsumer(merge);
+        MeasurementBus.Producer producer = mBus.openProducer("00:11:22:33:44:55", 1);
+        publish(producer, 20);
+        merge.awaitCount(1);
+        publish(producer, 10);
+        merge.awaitCount(2);
+        merge.assertReleased(20, 10);
+        assertEquals(1, merge.getLate());
+    }
+
+    @Test
+    public void fullBuffer_releasesEarly() throws Exception {
+        RecordingMerge merge = new RecordingMerge(TIMEOUT_MILLIS, 2);
+        mBus.addConsumer(merge);
+        MeasurementBus.Producer first = mBus.openProducer("00:11:22:33:44:55", 1);
+        MeasurementBus.Producer second = mBus.openProducer("66:77:88:99:AA:BB", 1);
+        publish(first, 100);
+        merge.awaitCount(1);
+        // The first channel stays at 100, so the second channel's events are held.
+        publish(second, 200);
+        publish(second, 300);
+        publish(second, 400);
+        merge.awaitCount(2);
+        Thread.sleep(50);
+        merge.assertReleased(100, 200);
+        assertEquals(1, merge.getLate());
+        // Stopping releases the rest in order.
+        mBus.shutdown();
+        merge.awaitCount(4);
+        merge.assertReleased(100, 200, 300, 400);
+    }
+}
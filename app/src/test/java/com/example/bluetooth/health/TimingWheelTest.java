@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.bluetooth.health;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the {@link TimingWheel} that drives the protocol timeouts.  A tick of 10 ms and a
+ * wheel of 8 buckets make one turn last 80 ms.
+ */
+public class TimingWheelTest {
+    private static final long TICK_MILLIS = 10;
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final TimingWheel mWheel = new TimingWheel("test-wheel", TICK_MILLIS, 8);
+
+    // Counts its expiries and remembers when it last fired.
+    private static class RecordingTimer extends TimingWheel.Timer {
+        final AtomicInteger mFired = new AtomicInteger();
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile long mFiredNanos;
+
+        @Override
+        protected void onExpired() {
+            mFiredNanos = System.nanoTime();
+            mFired.incrementAndGet();
+            mLatch.countDown();
+        }
+
+        // Waits for the expiry and returns the milliseconds since start.
+        long awaitMillis(long start) throws InterruptedException {
+            assertTrue(mLatch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            return (mFiredNanos - start) / 1000000L;
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWheel.quit();
+    }
+
+    @Test
+    public void schedule_firesOnceAfterDelay() throws Exception {
+        mWheel.start();
+        RecordingTimer timer = new RecordingTimer();
+        long start = System.nanoTime();
+        mWheel.schedule(timer, 50);
+        assertTrue(mWheel.isScheduled(timer));
+        // The current tick has partly passed, so the deadline may be up to one tick early.
+        assertTrue(timer.awaitMillis(start) >= 50 - TICK_MILLIS);
+        assertFalse(mWheel.isScheduled(timer));
+        assertEquals(0, mWheel.getPending());
+        Thread.sleep(100);
+        assertEquals(1, timer.mFired.get());
+    }
+
+    @Test
+    public void schedule_beyondOneTurnWaitsForItsTurn() throws Exception {
+        mWheel.start();
+        RecordingTimer timer = new RecordingTimer();
+        long start = System.nanoTime();
+        mWheel.schedule(timer, 250);
+        assertTrue(timer.awaitMillis(start) >= 250 - TICK_MILLIS);
+        assertEquals(1, timer.mFired.get());
+    }
+
+    @Test
+    public void cancel_preventsExpiry() throws Exception {
+        mWheel.start();
+        RecordingTimer timer = new RecordingTimer();
+        mWheel.schedule(timer, 30);
+        mWheel.cancel(timer);
+        assertFalse(mWheel.isScheduled(timer));
+        assertEquals(0, mWheel.getPending());
+        Thread.sleep(100);
+        assertEquals(0, timer.mFired.get());
+        // Cancelling an unscheduled timer is harmless.
+        mWheel.cancel(timer);
+        assertEquals(0, mWheel.getPending());
+    }
+
+    @Test
+    public void schedule_movesScheduledTimer() throws Exception {
+        mWheel.start();
+        RecordingTimer timer = new RecordingTimer();
+        long start = System.nanoTime();
+        mWheel.schedule(timer, 30);
+        mWheel.schedule(timer, 150);
+        assertEquals(1, mWheel.getPending());
+        assertTrue(timer.awaitMillis(start) >= 150 - TICK_MILLIS);
+        Thread.sleep(50);
+        assertEquals(1, timer.mFired.get());
+    }
+
+    @Test
+    public void failingTimer_doesNotStopTheWheel() throws Exception {
+        mWheel.start();
+        TimingWheel.Timer failing = new TimingWheel.Timer() {
+            @Override
+            protected void onExpired() {
+                throw new IllegalStateException("test");
+            }
+        };
+        RecordingTimer timer = new RecordingTimer();
+        long start = System.nanoTime();
+        mWheel.schedule(failing, 20);
+        mWheel.schedule(timer, 60);
+        assertTrue(timer.awaitMillis(start) >= 60 - TICK_MILLIS);
+    }
+}